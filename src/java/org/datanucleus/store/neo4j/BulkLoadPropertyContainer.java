@@ -0,0 +1,130 @@
+/**********************************************************************
+Copyright (c) 2013 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.neo4j;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.PropertyContainer;
+
+/**
+ * PropertyContainer for a Node being written by a Neo4jBulkLoader. Collects the properties in memory so that the
+ * normal field managers can populate it, and writes them when the Node is created (or flushed).
+ */
+public class BulkLoadPropertyContainer implements PropertyContainer
+{
+    Neo4jBulkLoader loader;
+
+    Map<String, Object> properties = new HashMap<String, Object>();
+
+    long nodeId = -1;
+
+    boolean dirty = false;
+
+    public BulkLoadPropertyContainer(Neo4jBulkLoader loader)
+    {
+        this.loader = loader;
+    }
+
+    /**
+     * Accessor for the id of the Node, creating it (with the properties set so far) if not yet created.
+     * @return Id of the Node
+     */
+    public long getNodeId()
+    {
+        if (nodeId < 0)
+        {
+            nodeId = loader.createNode(new HashMap<String, Object>(properties));
+            dirty = false;
+        }
+        return nodeId;
+    }
+
+    /**
+     * Method to write the properties to the Node, creating it if not yet created.
+     * @return Id of the Node
+     */
+    public long flush()
+    {
+        if (nodeId < 0)
+        {
+            return getNodeId();
+        }
+        if (dirty)
+        {
+            loader.setNodeProperties(nodeId, new HashMap<String, Object>(properties));
+            dirty = false;
+        }
+        return nodeId;
+    }
+
+    public GraphDatabaseService getGraphDatabase()
+    {
+        throw new UnsupportedOperationException("Node " + nodeId + " is being bulk loaded so has no GraphDatabaseService");
+    }
+
+    public boolean hasProperty(String key)
+    {
+        return properties.containsKey(key);
+    }
+
+    public Object getProperty(String key)
+    {
+        Object value = properties.get(key);
+        if (value == null)
+        {
+            throw new NotFoundException("Property " + key + " not found");
+        }
+        return value;
+    }
+
+    public Object getProperty(String key, Object defaultValue)
+    {
+        Object value = properties.get(key);
+        return (value != null ? value : defaultValue);
+    }
+
+    public void setProperty(String key, Object value)
+    {
+        properties.put(key, value);
+        dirty = true;
+    }
+
+    public Object removeProperty(String key)
+    {
+        dirty = true;
+        return properties.remove(key);
+    }
+
+    public Iterable<String> getPropertyKeys()
+    {
+        return properties.keySet();
+    }
+
+    public Iterable<Object> getPropertyValues()
+    {
+        return properties.values();
+    }
+
+    public String toString()
+    {
+        return "BulkLoadNode[" + (nodeId >= 0 ? "" + nodeId : "new") + "]";
+    }
+}
@@ -0,0 +1,194 @@
+/**********************************************************************
+Copyright (c) 2013 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.neo4j;
+
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.datanucleus.util.NucleusLogger;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.index.IndexHits;
+
+/**
+ * Warms the Neo4j caches at startup by walking the "DN_TYPES" index (or the type nodes) for the specified classes and touching
+ * the properties of each Node and of its Relationships, so that the first requests after a restart don't pay
+ * for paging in the store files. Classes can be processed in parallel, and the whole warm-up can be time-bounded.
+ */
+public class CacheWarmer
+{
+    /** Number of Nodes of a class between progress messages. */
+    private static final int PROGRESS_INTERVAL = 10000;
+
+    GraphDatabaseService db;
+
+    /** Type nodes when the store uses type nodes, otherwise null. */
+    TypeNodeRegistry typeNodes;
+
+    /** Time (ms) at which to stop warming (0 means no limit). */
+    long deadline = 0;
+
+    AtomicLong numNodes = new AtomicLong();
+
+    AtomicLong numRelationships = new AtomicLong();
+
+    public CacheWarmer(GraphDatabaseService db, TypeNodeRegistry typeNodes)
+    {
+        this.db = db;
+        this.typeNodes = typeNodes;
+    }
+
+    /**
+     * Method to warm the caches for the specified classes.
+     * @param classNames Names of the classes
+     * @param numThreads Number of threads to use
+     * @param maxMillis Max time (ms) to spend warming (0 means no limit)
+     */
+    public void warm(Collection<String> classNames, int numThreads, long maxMillis)
+    {
+        String typeIndexName = (typeNodes != null ? Neo4jStoreManager.PROPCONTAINER_TYPE_NODE_INDEX : Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX);
+        if (!db.index().existsForNodes(typeIndexName))
+        {
+            // Nothing persisted yet
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        deadline = (maxMillis > 0 ? startTime + maxMillis : 0);
+        NucleusLogger.DATASTORE.info("Neo4j cache warm-up starting for " + classNames.size() + " classes using " + numThreads + " thread(s)" +
+            (maxMillis > 0 ? " limited to " + maxMillis + " ms" : ""));
+
+        if (numThreads <= 1)
+        {
+            for (String className : classNames)
+            {
+                warmClass(className);
+            }
+        }
+        else
+        {
+            ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+            for (final String className : classNames)
+            {
+                executor.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        warmClass(className);
+                    }
+                });
+            }
+            executor.shutdown();
+            try
+            {
+                if (!executor.awaitTermination(maxMillis > 0 ? maxMillis : Long.MAX_VALUE, TimeUnit.MILLISECONDS))
+                {
+                    executor.shutdownNow();
+                }
+            }
+            catch (InterruptedException ie)
+            {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        NucleusLogger.DATASTORE.info("Neo4j cache warm-up " + (isExpired() ? "stopped at time limit" : "completed") +
+            " having read " + numNodes.get() + " Nodes and " + numRelationships.get() + " Relationships in " +
+            (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    protected void warmClass(String className)
+    {
+        long startTime = System.currentTimeMillis();
+        long classNodes = 0;
+        Iterable<Node> nodes = null;
+        if (typeNodes != null)
+        {
+            Node typeNode = typeNodes.getTypeNode(db, className);
+            if (typeNode == null)
+            {
+                return;
+            }
+            nodes = TypeNodeRegistry.getInstanceNodes(typeNode);
+        }
+        else
+        {
+            nodes = db.index().forNodes(Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX).get(
+                Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX_KEY, className + "-EXCLUSIVE");
+        }
+        try
+        {
+            for (Node node : nodes)
+            {
+                if (isExpired())
+                {
+                    break;
+                }
+
+                touchProperties(node);
+                for (Relationship rel : node.getRelationships())
+                {
+                    touchProperties(rel);
+                    numRelationships.incrementAndGet();
+                }
+                numNodes.incrementAndGet();
+                classNodes++;
+                if (classNodes % PROGRESS_INTERVAL == 0)
+                {
+                    NucleusLogger.DATASTORE.info("Neo4j cache warm-up has read " + classNodes + " Nodes of " + className);
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            NucleusLogger.DATASTORE.warn("Neo4j cache warm-up of " + className + " failed", e);
+        }
+        finally
+        {
+            if (nodes instanceof IndexHits)
+            {
+                ((IndexHits<Node>)nodes).close();
+            }
+        }
+
+        if (NucleusLogger.DATASTORE.isDebugEnabled())
+        {
+            NucleusLogger.DATASTORE.debug("Neo4j cache warm-up read " + classNodes + " Nodes of " + className +
+                " in " + (System.currentTimeMillis() - startTime) + " ms");
+        }
+    }
+
+    private void touchProperties(PropertyContainer propObj)
+    {
+        for (String key : propObj.getPropertyKeys())
+        {
+            propObj.getProperty(key);
+        }
+    }
+
+    private boolean isExpired()
+    {
+        return deadline > 0 && System.currentTimeMillis() >= deadline;
+    }
+}
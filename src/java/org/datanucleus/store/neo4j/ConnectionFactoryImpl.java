@@ -18,36 +18,57 @@ Contributors:
 package org.datanucleus.store.neo4j;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.WeakHashMap;
 
+import javax.transaction.TransactionManager;
 import javax.transaction.xa.XAException;
 import javax.transaction.xa.XAResource;
 import javax.transaction.xa.Xid;
 
 import org.datanucleus.ExecutionContext;
+import org.datanucleus.ExecutionContextListener;
 import org.datanucleus.PropertyNames;
+import org.datanucleus.exceptions.NucleusDataStoreException;
 import org.datanucleus.exceptions.NucleusException;
+import org.datanucleus.exceptions.NucleusUserException;
 import org.datanucleus.store.StoreManager;
 import org.datanucleus.store.connection.AbstractConnectionFactory;
 import org.datanucleus.store.connection.AbstractEmulatedXAResource;
 import org.datanucleus.store.connection.AbstractManagedConnection;
 import org.datanucleus.store.connection.ManagedConnection;
 import org.datanucleus.store.connection.ManagedConnectionResourceListener;
+import org.datanucleus.store.neo4j.management.Neo4jStatistics;
 import org.datanucleus.util.Localiser;
 import org.datanucleus.util.NucleusLogger;
 import org.datanucleus.util.StringUtils;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.PropertyContainer;
 import org.neo4j.graphdb.Transaction;
-import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.kernel.GraphDatabaseAPI;
 
 /**
  * Implementation of a ConnectionFactory for Neo4j.
  * Accepts a URL of the form 
  * <pre>neo4j:{db_path}</pre>
- * If {db_path} is not specified then will use "datanucleus" as the DB_PATH.
+ * If {db_path} is not specified then will use "datanucleus" as the DB_PATH. Alternatively accepts a URL of the form
+ * <pre>neo4j:http://{host}:{port}/db/data</pre>
+ * for connecting to a remote Neo4j server via its REST API (requiring java-rest-binding in the CLASSPATH).
  * Obtains the GraphDbService when initialising the ConnectionFactory and starts/finishes transactions for
  * each ExecutionContext. In Neo4j a thread has its own transaction which doesn't map directly onto
- * an ExecutionContext
+ * an ExecutionContext. Since Neo4j doesn't need a transaction for reads, non-transactional connections only start
+ * a Neo4j transaction when something is written (see <i>ManagedConnectionImpl.startTransactionForWrite</i>).
+ * With group commit, the non-transactional writes of an ExecutionContext share a Neo4j transaction that is suspended
+ * from the thread between writes, so it doesn't affect other work of the thread and can be committed from any thread.
  */
 public class ConnectionFactoryImpl extends AbstractConnectionFactory
 {
@@ -56,6 +77,30 @@ public class ConnectionFactoryImpl extends AbstractConnectionFactory
 
     GraphDatabaseService graphDB;
 
+    /** Loader used instead of the GraphDatabaseService when in bulk-load mode. */
+    Neo4jBulkLoader bulkLoader;
+
+    /** Hook writing the bulk loaded data if the JVM exits without closing the store (removed on close). */
+    Thread bulkLoaderShutdownHook;
+
+    /** Max number of non-transactional writes committed together (group commit is disabled when 1 or less). */
+    int groupCommitMaxOperations;
+
+    /** Max time (ms) that non-transactional writes are held before committing (must be positive when grouping). */
+    int groupCommitMaxMillis;
+
+    /** Transaction manager of the embedded database, to move group commits between threads (null if no group commit). */
+    TransactionManager txManager;
+
+    /** Group commits pending for each ExecutionContext, from all threads (guarded by itself). */
+    final Map<ExecutionContext, GroupCommit> groupCommits = new HashMap<ExecutionContext, GroupCommit>();
+
+    /** ExecutionContexts that will end any pending group commit when they close. */
+    final Map<ExecutionContext, Boolean> groupCommitContexts = Collections.synchronizedMap(new WeakHashMap<ExecutionContext, Boolean>());
+
+    /** Timer committing the group commits pending for longer than the max time (null if no max time). */
+    Timer groupCommitTimer;
+
     /**
      * Constructor.
      * @param storeMgr Store Manager
@@ -64,6 +109,8 @@ public class ConnectionFactoryImpl extends AbstractConnectionFactory
     public ConnectionFactoryImpl(StoreManager storeMgr, String resourceType)
     {
         super(storeMgr, resourceType);
+        groupCommitMaxOperations = storeMgr.getIntProperty(Neo4jStoreManager.PROPERTY_GROUP_COMMIT_MAX_OPERATIONS);
+        groupCommitMaxMillis = storeMgr.getIntProperty(Neo4jStoreManager.PROPERTY_GROUP_COMMIT_MAX_MILLIS);
 
         // "neo4j:[db_path]"
         String url = storeMgr.getConnectionURL();
@@ -84,45 +131,162 @@ public class ConnectionFactoryImpl extends AbstractConnectionFactory
         {
             dbName = remains;
         }
-        if (dbName.startsWith("http:"))
+        if (dbName.startsWith("http:") || dbName.startsWith("https:"))
         {
-            // TODO Support java-rest-binding to connect to remote databases
-            throw new NucleusException("Neo4j database name starts with http - do not currently support connecting to remote databases");
+            if (((Neo4jStoreManager)storeMgr).isBulkLoad())
+            {
+                throw new NucleusException("Neo4j bulk-load mode is not supported when connecting to a remote database");
+            }
+
+            // Remote database, accessed via the REST API
+            graphDB = RestDatabaseSupport.connect(dbName, storeMgr.getConnectionUserName(), storeMgr.getConnectionPassword(),
+                storeMgr.getBooleanProperty(Neo4jStoreManager.PROPERTY_REMOTE_BATCH_TRANSACTIONS));
+            ((Neo4jStoreManager)storeMgr).getCypherEngineRegistry().registerRemoteDatabase(graphDB);
+            if (groupCommitMaxOperations > 1)
+            {
+                NucleusLogger.CONNECTION.info("Group commit is not supported for a remote database so is ignored");
+            }
+            return;
         }
 
-        GraphDatabaseFactory factory = new GraphDatabaseFactory();
-        String propsFileName = storeMgr.getStringProperty("datanucleus.ConnectionPropertiesFile");
-        if (StringUtils.isWhitespace(propsFileName))
+        Map<String, String> config = getConfigForPropertiesFile(storeMgr.getStringProperty("datanucleus.ConnectionPropertiesFile"));
+        if (((Neo4jStoreManager)storeMgr).isBulkLoad())
         {
-            graphDB = factory.newEmbeddedDatabase(dbName);
+            // Bulk-load mode, so write directly to the store files with no GraphDatabaseService
+            bulkLoader = ((Neo4jStoreManager)storeMgr).getBulkLoader(dbName, config);
+            bulkLoaderShutdownHook = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    bulkLoader.shutdown();
+                }
+            };
+            Runtime.getRuntime().addShutdownHook(bulkLoaderShutdownHook);
+            return;
         }
-        else
+
+        // Embedded database, shared with any other factory for the same path
+        graphDB = EmbeddedDatabaseRegistry.acquire(dbName, config);
+        ((Neo4jStoreManager)storeMgr).getStatistics().addStoreDirectory(dbName);
+
+        if (groupCommitMaxOperations > 1)
         {
-            File propsFile = new File(propsFileName);
-            if (!propsFile.exists())
+            if (groupCommitMaxMillis <= 0)
             {
-                NucleusLogger.CONNECTION.warn("Connection properties file " + propsFileName + " doesn't exist! Ignoring and creating database using defaults");
-                graphDB = factory.newEmbeddedDatabase(dbName);
+                // Pending writes hold their locks, so they must be committed within a bounded time
+                throw new NucleusUserException("Persistence property " + Neo4jStoreManager.PROPERTY_GROUP_COMMIT_MAX_MILLIS +
+                    " must be positive when using group commit (" + Neo4jStoreManager.PROPERTY_GROUP_COMMIT_MAX_OPERATIONS + " > 1)");
             }
-            else
+            txManager = ((GraphDatabaseAPI)graphDB).getTxManager();
+
+            // Commit groups that reach the max time without another write
+            groupCommitTimer = new Timer("DataNucleus-Neo4j-GroupCommit", true);
+            groupCommitTimer.schedule(new TimerTask()
             {
-                graphDB = new GraphDatabaseFactory().newEmbeddedDatabaseBuilder(dbName).loadPropertiesFromFile(propsFileName).newGraphDatabase();
-            }
+                public void run()
+                {
+                    endExpiredGroupCommits();
+                }
+            }, groupCommitMaxMillis, groupCommitMaxMillis);
         }
+    }
 
-        Runtime.getRuntime().addShutdownHook(new Thread()
+    /**
+     * Convenience method to load the Neo4j config from the specified connection properties file.
+     * @param propsFileName Name of the properties file (or null)
+     * @return The config (or null if no file specified, or the file doesn't exist)
+     */
+    private static Map<String, String> getConfigForPropertiesFile(String propsFileName)
+    {
+        if (StringUtils.isWhitespace(propsFileName))
         {
-            @Override
-            public void run()
-            {
-                graphDB.shutdown();
-            }
-        });
+            return null;
+        }
+
+        File propsFile = new File(propsFileName);
+        if (!propsFile.exists())
+        {
+            NucleusLogger.CONNECTION.warn("Connection properties file " + propsFileName + " doesn't exist! Ignoring and creating database using defaults");
+            return null;
+        }
+        try
+        {
+            return MapUtil.load(propsFile);
+        }
+        catch (IOException ioe)
+        {
+            throw new NucleusException("Error loading connection properties file " + propsFileName, ioe);
+        }
     }
 
     public void close()
     {
+        if (groupCommitTimer != null)
+        {
+            groupCommitTimer.cancel();
+            groupCommitTimer = null;
+        }
+
+        // Commit all writes awaiting group commit
+        List<GroupCommit> groups = new ArrayList<GroupCommit>();
+        synchronized (groupCommits)
+        {
+            Iterator<GroupCommit> groupIter = groupCommits.values().iterator();
+            while (groupIter.hasNext())
+            {
+                GroupCommit group = groupIter.next();
+                if (group.inUse)
+                {
+                    // Committed when its current write is released
+                    group.endRequested = true;
+                }
+                else
+                {
+                    groupIter.remove();
+                    groups.add(group);
+                }
+            }
+        }
+        for (GroupCommit group : groups)
+        {
+            endSuspendedGroupCommit(group, true);
+        }
+
         super.close();
+
+        if (bulkLoaderShutdownHook != null)
+        {
+            // The StoreManager writes the bulk loaded data when it closes
+            try
+            {
+                Runtime.getRuntime().removeShutdownHook(bulkLoaderShutdownHook);
+            }
+            catch (IllegalStateException ise)
+            {
+                // JVM already shutting down
+            }
+            bulkLoaderShutdownHook = null;
+            bulkLoader = null;
+        }
+
+        if (graphDB != null)
+        {
+            // Release the Cypher engine for this database
+            ((Neo4jStoreManager)storeMgr).getCypherEngineRegistry().deregister(graphDB);
+
+            if (((Neo4jStoreManager)storeMgr).isRemote())
+            {
+                // Our own connection to the server
+                graphDB.shutdown();
+            }
+            else
+            {
+                // Release our use of the embedded database (shutting it down if no longer used)
+                EmbeddedDatabaseRegistry.release(graphDB);
+            }
+            graphDB = null;
+        }
     }
 
     /**
@@ -134,16 +298,224 @@ public class ConnectionFactoryImpl extends AbstractConnectionFactory
      */
     public ManagedConnection createManagedConnection(ExecutionContext ec, Map txnOptionsIgnored)
     {
-        return new ManagedConnectionImpl();
+        return new ManagedConnectionImpl(ec);
+    }
+
+    /**
+     * Accessor for whether non-transactional writes are committed in groups rather than individually.
+     * Only supported for embedded databases.
+     * @return Whether using group commit
+     */
+    public boolean isGroupCommit()
+    {
+        return txManager != null;
+    }
+
+    /**
+     * Method to end the group commit pending for the specified ExecutionContext (if any), committing or rolling back
+     * all writes grouped in its Neo4j transaction. If a write of the group is in progress then the group is instead
+     * committed when that write is released.
+     * @param ec ExecutionContext
+     * @param commit Whether to commit (otherwise roll back)
+     */
+    public void endGroupCommit(ExecutionContext ec, boolean commit)
+    {
+        GroupCommit group = null;
+        synchronized (groupCommits)
+        {
+            group = groupCommits.get(ec);
+            if (group == null)
+            {
+                return;
+            }
+            if (group.inUse)
+            {
+                group.endRequested = true;
+                return;
+            }
+            groupCommits.remove(ec);
+        }
+        endSuspendedGroupCommit(group, commit);
+    }
+
+    /**
+     * Method to commit all group commits that have been pending for longer than the max time, so that writes of an
+     * ExecutionContext that stops writing aren't held indefinitely. Called by the group commit timer.
+     */
+    protected void endExpiredGroupCommits()
+    {
+        List<GroupCommit> groups = new ArrayList<GroupCommit>();
+        long now = System.currentTimeMillis();
+        synchronized (groupCommits)
+        {
+            Iterator<GroupCommit> groupIter = groupCommits.values().iterator();
+            while (groupIter.hasNext())
+            {
+                GroupCommit group = groupIter.next();
+                if (!group.inUse && now - group.startTime >= groupCommitMaxMillis)
+                {
+                    groupIter.remove();
+                    groups.add(group);
+                }
+            }
+        }
+        for (GroupCommit group : groups)
+        {
+            try
+            {
+                endSuspendedGroupCommit(group, true);
+            }
+            catch (RuntimeException re)
+            {
+                NucleusLogger.CONNECTION.error("Exception committing group of " + group.numOperations + " non-transactional writes", re);
+            }
+        }
+    }
+
+    /**
+     * Method to end a group commit that is suspended (not associated with any thread), resuming its Neo4j
+     * transaction on the current thread to commit or roll it back. Any transaction of the current thread is
+     * suspended meanwhile.
+     * @param group The group commit
+     * @param commit Whether to commit (otherwise roll back)
+     */
+    protected void endSuspendedGroupCommit(GroupCommit group, boolean commit)
+    {
+        javax.transaction.Transaction threadTx = null;
+        try
+        {
+            threadTx = txManager.suspend();
+            txManager.resume(group.jtaTx);
+        }
+        catch (Exception e)
+        {
+            throw new NucleusDataStoreException("Exception resuming group of " + group.numOperations + " non-transactional writes", e);
+        }
+
+        try
+        {
+            endGroupCommit(group, commit);
+        }
+        finally
+        {
+            if (threadTx != null)
+            {
+                try
+                {
+                    txManager.resume(threadTx);
+                }
+                catch (Exception e)
+                {
+                    throw new NucleusDataStoreException("Exception resuming Neo4j transaction after ending a group commit", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Method to end a group commit whose Neo4j transaction is associated with the current thread.
+     * @param group The group commit
+     * @param commit Whether to commit (otherwise roll back)
+     */
+    protected void endGroupCommit(GroupCommit group, boolean commit)
+    {
+        boolean committed = false;
+        try
+        {
+            if (commit)
+            {
+                group.graphTx.success();
+            }
+            else
+            {
+                group.graphTx.failure();
+            }
+            group.graphTx.finish();
+            committed = commit;
+        }
+        finally
+        {
+            getStatistics().transactionEnded(committed, System.nanoTime() - group.startNanos);
+        }
+        if (NucleusLogger.CONNECTION.isDebugEnabled())
+        {
+            NucleusLogger.CONNECTION.debug("Group commit of " + group.numOperations + " operations " +
+                (commit ? "committed" : "rolled back") + " after " + (System.currentTimeMillis() - group.startTime) + " ms");
+        }
+    }
+
+    /**
+     * Accessor for the statistics of the store, to record connection and transaction usage.
+     * @return The statistics
+     */
+    protected Neo4jStatistics getStatistics()
+    {
+        return ((Neo4jStoreManager)storeMgr).getStatistics();
+    }
+
+    /**
+     * Neo4j transaction shared by the non-transactional writes of an ExecutionContext until they are committed as a
+     * group. The transaction is associated with the thread of a write only while the write is in progress, and is
+     * suspended in between. The group is committed when it reaches the max number of operations, or the max time,
+     * or when the ExecutionContext next reads (so it reads its own writes), closes, or starts a transactional connection. If any
+     * operation in the group fails, or the commit fails, then all writes of the group are rolled back, including
+     * those of operations that had already returned successfully.
+     */
+    static class GroupCommit
+    {
+        ExecutionContext ec;
+        Transaction graphTx;
+
+        /** The JTA transaction of graphTx while suspended. */
+        javax.transaction.Transaction jtaTx;
+
+        /** Whether a write of the group is in progress (so graphTx is associated with the thread of the write). */
+        boolean inUse = true;
+
+        /** Whether to commit the group when the write in progress is released. */
+        boolean endRequested = false;
+
+        int numOperations = 0;
+        long startTime = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+
+        GroupCommit(ExecutionContext ec, Transaction graphTx)
+        {
+            this.ec = ec;
+            this.graphTx = graphTx;
+        }
+    }
+
+    /**
+     * Listener for the closing of an ExecutionContext, ending any group commit pending for it.
+     */
+    class GroupCommitFlusher implements ExecutionContextListener
+    {
+        public void executionContextClosing(ExecutionContext ec)
+        {
+            groupCommitContexts.remove(ec);
+            endGroupCommit(ec, true);
+        }
     }
 
     public class ManagedConnectionImpl extends AbstractManagedConnection
     {
+        ExecutionContext ec;
         Transaction graphTx;
         XAResource xaRes = null;
 
-        public ManagedConnectionImpl()
+        /** Group commit whose Neo4j transaction this connection is using (if any). */
+        GroupCommit group;
+
+        /** Whether a write on this connection failed, so its Neo4j transaction must be rolled back. */
+        boolean rollbackOnly = false;
+
+        /** Time (ns) at which the Neo4j transaction of this connection started. */
+        long txStartNanos;
+
+        public ManagedConnectionImpl(ExecutionContext ec)
         {
+            this.ec = ec;
         }
 
         /* (non-Javadoc)
@@ -161,24 +533,264 @@ public class ConnectionFactoryImpl extends AbstractConnectionFactory
         {
             if (conn == null)
             {
-                // Set the "connection" to the graphDB, and start its transaction
-                conn = graphDB;
-                graphTx = graphDB.beginTx();
+                // Set the "connection" to the graphDB (or the loader in bulk-load mode)
+                conn = (bulkLoader != null ? bulkLoader : graphDB);
+                getStatistics().connectionOpened();
                 NucleusLogger.CONNECTION.debug("Managed connection " + this.toString() + " is starting");
             }
-            if (graphTx == null)
+            if (bulkLoader == null && graphTx == null && !isTransactionDeferred())
             {
                 // Make sure the graphTx is started
-                graphTx = ((GraphDatabaseService)conn).beginTx();
-                NucleusLogger.CONNECTION.debug("Managed connection " + this.toString() + " is starting");
+                startTransaction();
+            }
+        }
+
+        /**
+         * Whether to defer starting the Neo4j transaction until something is written. This is the case for
+         * non-transactional connections (so reads have no transaction state), and for transactional connections
+         * when the store is configured with "datanucleus.neo4j.deferTransactionStart" (so read-only transactions
+         * have no transaction state).
+         * @return Whether to start the Neo4j transaction only on write
+         */
+        protected boolean isTransactionDeferred()
+        {
+            return commitOnRelease || storeMgr.getBooleanProperty(Neo4jStoreManager.PROPERTY_DEFER_TRANSACTION_START);
+        }
+
+        protected void startTransaction()
+        {
+            if (commitOnRelease && isGroupCommit() && ec != null && joinGroupCommit())
+            {
+                return;
+            }
+
+            if (!commitOnRelease && isGroupCommit() && ec != null)
+            {
+                // Commit any non-transactional writes of this ExecutionContext first, so their locks aren't held meanwhile
+                endGroupCommit(ec, true);
+            }
+
+            graphTx = ((GraphDatabaseService)conn).beginTx();
+            txStartNanos = System.nanoTime();
+            getStatistics().transactionStarted();
+            if (NucleusLogger.CONNECTION.isDebugEnabled())
+            {
+                NucleusLogger.CONNECTION.debug("Managed connection " + this.toString() + " has started its Neo4j transaction");
+            }
+        }
+
+        /**
+         * Method to use the Neo4j transaction of the group commit of the ExecutionContext for this non-transactional
+         * connection, resuming it on this thread (or starting the group if none is pending).
+         * @return Whether joined a group commit (otherwise this write is committed on its own)
+         */
+        protected boolean joinGroupCommit()
+        {
+            try
+            {
+                if (txManager.getTransaction() != null)
+                {
+                    // Thread already has a Neo4j transaction
+                    return false;
+                }
+
+                GroupCommit pendingGroup = null;
+                synchronized (groupCommits)
+                {
+                    pendingGroup = groupCommits.get(ec);
+                    if (pendingGroup != null)
+                    {
+                        if (pendingGroup.inUse)
+                        {
+                            // ExecutionContext used by another thread at the same time
+                            return false;
+                        }
+                        pendingGroup.inUse = true;
+                    }
+                }
+
+                if (pendingGroup != null)
+                {
+                    txManager.resume(pendingGroup.jtaTx);
+                    pendingGroup.jtaTx = null;
+                }
+                else
+                {
+                    pendingGroup = new GroupCommit(ec, ((GraphDatabaseService)conn).beginTx());
+                    getStatistics().transactionStarted();
+                    synchronized (groupCommits)
+                    {
+                        groupCommits.put(ec, pendingGroup);
+                    }
+                    if (groupCommitContexts.put(ec, Boolean.TRUE) == null)
+                    {
+                        ec.registerExecutionContextListener(new GroupCommitFlusher());
+                    }
+                }
+                group = pendingGroup;
+                graphTx = group.graphTx;
+                return true;
+            }
+            catch (Exception e)
+            {
+                throw new NucleusDataStoreException("Exception resuming group of non-transactional writes", e);
+            }
+        }
+
+        /**
+         * Method to release this connection from its group commit after a write, either ending the group (when
+         * complete, failed, or requested) or suspending its Neo4j transaction from this thread until the next write.
+         */
+        protected void releaseGroupCommit()
+        {
+            GroupCommit theGroup = group;
+            group = null;
+            graphTx = null;
+            xaRes = null;
+
+            theGroup.numOperations++;
+            if (rollbackOnly || theGroup.numOperations >= groupCommitMaxOperations ||
+                System.currentTimeMillis() - theGroup.startTime >= groupCommitMaxMillis)
+            {
+                synchronized (groupCommits)
+                {
+                    groupCommits.remove(ec);
+                }
+                endGroupCommit(theGroup, !rollbackOnly);
+                rollbackOnly = false;
+                return;
+            }
+
+            boolean endNow = false;
+            try
+            {
+                theGroup.jtaTx = txManager.suspend();
+            }
+            catch (Exception e)
+            {
+                throw new NucleusDataStoreException("Exception suspending group of non-transactional writes", e);
+            }
+            synchronized (groupCommits)
+            {
+                endNow = theGroup.endRequested;
+                if (endNow)
+                {
+                    groupCommits.remove(ec);
+                }
+                else
+                {
+                    theGroup.inUse = false;
+                }
+            }
+            if (endNow)
+            {
+                endSuspendedGroupCommit(theGroup, true);
+            }
+        }
+
+        /**
+         * Method to be called before reading via this connection. The non-transactional writes of the ExecutionContext
+         * pending in a group commit are in a Neo4j transaction that is suspended between writes, so a read outside
+         * it wouldn't see them; the group is therefore committed first.
+         */
+        public void prepareForRead()
+        {
+            if (commitOnRelease && isGroupCommit() && ec != null && group == null && graphTx == null)
+            {
+                endGroupCommit(ec, true);
+            }
+        }
+
+        /**
+         * Method to make sure that the Neo4j transaction is started, to be called before writing to the
+         * GraphDatabaseService of this connection.
+         */
+        public void startTransactionForWrite()
+        {
+            if (bulkLoader != null)
+            {
+                return;
+            }
+            if (conn == null)
+            {
+                obtainNewConnection();
+            }
+            if (graphTx == null)
+            {
+                startTransaction();
+            }
+        }
+
+        /**
+         * Method to take the write lock on a Node/Relationship in the Neo4j transaction of this connection (starting
+         * the transaction if not yet started). The lock is held until the transaction ends.
+         * @param propObj The Node/Relationship
+         * @return Whether the lock was taken (false when bulk loading, where there is no transaction)
+         * @throws NucleusUserException if the database is a remote server, which doesn't support locking
+         */
+        public boolean acquireWriteLock(PropertyContainer propObj)
+        {
+            if (((Neo4jStoreManager)storeMgr).isRemote())
+            {
+                throw new NucleusUserException("Cannot lock " + propObj + " since locking is not supported by a remote Neo4j server," +
+                    " so reads can't be serialised (serializeRead)");
+            }
+            startTransactionForWrite();
+            if (graphTx == null)
+            {
+                return false;
+            }
+            graphTx.acquireWriteLock(propObj);
+            return true;
+        }
+
+        /**
+         * Method to commit or roll back the (non-grouped) Neo4j transaction of this connection.
+         * @param commit Whether to commit (otherwise roll back)
+         */
+        void finishTransaction(boolean commit)
+        {
+            boolean committed = false;
+            try
+            {
+                if (commit)
+                {
+                    graphTx.success();
+                }
+                else
+                {
+                    graphTx.failure();
+                }
+                graphTx.finish();
+                committed = commit;
+            }
+            finally
+            {
+                getStatistics().transactionEnded(committed, System.nanoTime() - txStartNanos);
+                graphTx = null;
+                xaRes = null;
+            }
+        }
+
+        /**
+         * Method to mark the Neo4j transaction as failed when a non-transactional write fails, so that it (and any
+         * writes grouped with it) are rolled back rather than committed on release. Transactional connections are
+         * left for the owning transaction to roll back.
+         */
+        public void setRollbackOnly()
+        {
+            if (commitOnRelease && graphTx != null)
+            {
+                graphTx.failure();
+                rollbackOnly = true;
             }
         }
 
         public Object getConnection()
         {
-            if (conn == null || graphTx == null)
+            if (conn == null || (graphTx == null && bulkLoader == null && !isTransactionDeferred()))
             {
-                // Set the "connection" to the graphDB, and start its transaction
+                // Set the "connection" to the graphDB, and start its transaction if required
                 obtainNewConnection();
             }
             return conn;
@@ -188,13 +800,16 @@ public class ConnectionFactoryImpl extends AbstractConnectionFactory
         {
             if (commitOnRelease)
             {
-                if (conn != null)
+                if (conn != null && group != null)
+                {
+                    // Part of a group commit, so only end the transaction when the group is complete (or failed)
+                    releaseGroupCommit();
+                }
+                else if (conn != null && graphTx != null)
                 {
                     NucleusLogger.CONNECTION.debug("Managed connection " + this.toString() + " is committing");
-                    graphTx.success();
-                    graphTx.finish();
-                    graphTx = null;
-                    xaRes = null;
+                    finishTransaction(!rollbackOnly);
+                    rollbackOnly = false;
                     NucleusLogger.CONNECTION.debug("Managed connection " + this.toString() + " committed connection");
                 }
             }
@@ -214,14 +829,23 @@ public class ConnectionFactoryImpl extends AbstractConnectionFactory
                 ((ManagedConnectionResourceListener)listeners.get(i)).managedConnectionPreClose();
             }
 
-            if (graphTx != null)
+            if (group != null)
             {
-                // End the current request
-                NucleusLogger.CONNECTION.debug("ManagedConnection " + this.toString() + " is committing");
-                graphTx.success();
-                graphTx.finish();
+                // Closed mid-operation when part of a group commit, so end the group
+                synchronized (groupCommits)
+                {
+                    groupCommits.remove(group.ec);
+                }
+                endGroupCommit(group, !rollbackOnly);
+                group = null;
                 graphTx = null;
                 xaRes = null;
+            }
+            else if (graphTx != null)
+            {
+                // End the current request
+                NucleusLogger.CONNECTION.debug("ManagedConnection " + this.toString() + " is committing");
+                finishTransaction(!rollbackOnly);
                 NucleusLogger.CONNECTION.debug("ManagedConnection " + this.toString() + " committed connection");
             }
 
@@ -233,15 +857,16 @@ public class ConnectionFactoryImpl extends AbstractConnectionFactory
 
             conn = null;
             xaRes = null;
+            getStatistics().connectionClosed();
         }
 
         public XAResource getXAResource()
         {
             if (xaRes == null)
             {
-                if (conn == null || graphTx == null)
+                if (conn == null || (graphTx == null && bulkLoader == null && !isTransactionDeferred()))
                 {
-                    // Make sure we have a connection and graphTx
+                    // Make sure we have a connection and graphTx (if not deferred)
                     obtainNewConnection();
                 }
                 xaRes = new EmulatedXAResource(this);
@@ -255,29 +880,28 @@ public class ConnectionFactoryImpl extends AbstractConnectionFactory
      */
     static class EmulatedXAResource extends AbstractEmulatedXAResource
     {
-        Transaction graphTx;
-
         EmulatedXAResource(ManagedConnectionImpl mconn)
         {
             super(mconn);
-            this.graphTx = mconn.graphTx;
         }
 
         public void commit(Xid xid, boolean onePhase) throws XAException
         {
             super.commit(xid, onePhase);
-            graphTx.success();
-            graphTx.finish();
-            ((ManagedConnectionImpl)mconn).graphTx = null;
+            if (((ManagedConnectionImpl)mconn).graphTx != null)
+            {
+                ((ManagedConnectionImpl)mconn).finishTransaction(true);
+            }
             ((ManagedConnectionImpl)mconn).xaRes = null;
         }
 
         public void rollback(Xid xid) throws XAException
         {
             super.rollback(xid);
-            graphTx.failure();
-            graphTx.finish();
-            ((ManagedConnectionImpl)mconn).graphTx = null;
+            if (((ManagedConnectionImpl)mconn).graphTx != null)
+            {
+                ((ManagedConnectionImpl)mconn).finishTransaction(false);
+            }
             ((ManagedConnectionImpl)mconn).xaRes = null;
         }
 
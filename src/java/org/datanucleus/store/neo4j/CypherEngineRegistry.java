@@ -0,0 +1,152 @@
+/**********************************************************************
+Copyright (c) 2013 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.neo4j;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.datanucleus.store.neo4j.management.LatencyHistogram;
+import org.datanucleus.util.NucleusLogger;
+import org.neo4j.cypher.javacompat.ExecutionEngine;
+import org.neo4j.graphdb.GraphDatabaseService;
+
+/**
+ * Registry of Cypher ExecutionEngines, one per GraphDatabaseService, shared by all users of the StoreManager.
+ * An ExecutionEngine holds the parsed/planned form of the Cypher queries it has executed, so creating one per
+ * call throws that away. All Cypher execution in the plugin should go through here so that the plan cache is reused.
+ * Cypher for a remote database is sent to the server instead (where the server maintains its own plan cache).
+ * <p>
+ * The time taken by each execution is recorded. Since embedded results are lazily evaluated, this covers
+ * planning and starting the query, but not the iteration of its results.
+ * </p>
+ */
+public class CypherEngineRegistry
+{
+    /** ExecutionEngine keyed by the GraphDatabaseService it executes against. */
+    private final Map<GraphDatabaseService, ExecutionEngine> engines = new ConcurrentHashMap<GraphDatabaseService, ExecutionEngine>();
+
+    /** Cypher execution for remote databases, keyed by the GraphDatabaseService for the server. */
+    private final Map<GraphDatabaseService, RestDatabaseSupport> remoteEngines = new ConcurrentHashMap<GraphDatabaseService, RestDatabaseSupport>();
+
+    private final LatencyHistogram executionTimes = new LatencyHistogram();
+
+    /**
+     * Accessor for the ExecutionEngine for the specified database, creating it if not yet present.
+     * @param db The GraphDatabaseService
+     * @return The (shared) ExecutionEngine
+     */
+    public ExecutionEngine getExecutionEngine(GraphDatabaseService db)
+    {
+        ExecutionEngine engine = engines.get(db);
+        if (engine == null)
+        {
+            synchronized (engines)
+            {
+                engine = engines.get(db);
+                if (engine == null)
+                {
+                    if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled())
+                    {
+                        NucleusLogger.DATASTORE_NATIVE.debug("Creating Cypher ExecutionEngine for " + db);
+                    }
+                    engine = new ExecutionEngine(db);
+                    engines.put(db, engine);
+                }
+            }
+        }
+        return engine;
+    }
+
+    /**
+     * Method to register a remote database (from <i>RestDatabaseSupport.connect</i>), so that Cypher against it
+     * is sent to the server rather than executed by an embedded ExecutionEngine.
+     * @param db The GraphDatabaseService for the server
+     */
+    public void registerRemoteDatabase(GraphDatabaseService db)
+    {
+        remoteEngines.put(db, new RestDatabaseSupport(db));
+    }
+
+    /**
+     * Method to execute the provided Cypher text against the specified database.
+     * @param db The GraphDatabaseService
+     * @param cypherText The Cypher query
+     * @return The result rows
+     */
+    public Iterable<Map<String, Object>> execute(GraphDatabaseService db, String cypherText)
+    {
+        return execute(db, cypherText, null);
+    }
+
+    /**
+     * Method to execute the provided (parameterised) Cypher text against the specified database.
+     * @param db The GraphDatabaseService
+     * @param cypherText The Cypher query
+     * @param params Values for the parameters in the Cypher query, keyed by name
+     * @return The result rows
+     */
+    public Iterable<Map<String, Object>> execute(GraphDatabaseService db, String cypherText, Map<String, Object> params)
+    {
+        long startTime = System.nanoTime();
+        try
+        {
+            RestDatabaseSupport remote = remoteEngines.get(db);
+            if (remote != null)
+            {
+                return remote.execute(cypherText, params);
+            }
+            if (params == null || params.isEmpty())
+            {
+                return getExecutionEngine(db).execute(cypherText);
+            }
+            return getExecutionEngine(db).execute(cypherText, params);
+        }
+        finally
+        {
+            executionTimes.record(System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * Accessor for the times taken by the Cypher executions.
+     * @return The execution time histogram
+     */
+    public LatencyHistogram getExecutionTimes()
+    {
+        return executionTimes;
+    }
+
+    /**
+     * Method to remove the ExecutionEngine for a database, for use when the database is shut down.
+     * @param db The GraphDatabaseService
+     */
+    public void deregister(GraphDatabaseService db)
+    {
+        engines.remove(db);
+        remoteEngines.remove(db);
+    }
+
+    /**
+     * Method to release all ExecutionEngines.
+     */
+    public void close()
+    {
+        engines.clear();
+        remoteEngines.clear();
+    }
+}
@@ -0,0 +1,163 @@
+/**********************************************************************
+Copyright (c) 2013 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.neo4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.util.NucleusLogger;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+
+/**
+ * JVM-wide registry of embedded Neo4j databases, keyed by the canonical path of the store.
+ * All connection factories (the tx and non-tx factories of each PMF/EMF) for the same store share one
+ * GraphDatabaseService, so that the store is opened (and locked) once, with one set of caches and mapped memory.
+ * The database is reference counted, and shut down when the last user releases it (or at JVM shutdown).
+ */
+public class EmbeddedDatabaseRegistry
+{
+    private static final Map<String, RegisteredDatabase> databases = new HashMap<String, RegisteredDatabase>();
+
+    private EmbeddedDatabaseRegistry()
+    {
+    }
+
+    /**
+     * Embedded database with the config it was opened with, and the number of users.
+     */
+    static class RegisteredDatabase
+    {
+        GraphDatabaseService db;
+        Map<String, String> config;
+        int refCount = 0;
+        Thread shutdownHook;
+    }
+
+    /**
+     * Method to obtain the embedded database for the specified store, opening it if not yet open in this JVM.
+     * Each call must be matched by a call to <i>release</i>.
+     * @param dbPath Path of the store
+     * @param config Config for the database (or null for defaults)
+     * @return The database
+     * @throws NucleusUserException if the database is already open with a different config
+     */
+    public static synchronized GraphDatabaseService acquire(String dbPath, Map<String, String> config)
+    {
+        String key = getCanonicalPath(dbPath);
+        Map<String, String> theConfig = (config != null ? config : Collections.<String, String>emptyMap());
+
+        RegisteredDatabase regDb = databases.get(key);
+        if (regDb != null)
+        {
+            if (!regDb.config.equals(theConfig))
+            {
+                throw new NucleusUserException("Neo4j database " + key + " is already open in this JVM with different config " +
+                    regDb.config + " so cannot be opened with config " + theConfig);
+            }
+        }
+        else
+        {
+            final RegisteredDatabase newDb = new RegisteredDatabase();
+            if (theConfig.isEmpty())
+            {
+                newDb.db = new GraphDatabaseFactory().newEmbeddedDatabase(dbPath);
+            }
+            else
+            {
+                newDb.db = new GraphDatabaseFactory().newEmbeddedDatabaseBuilder(dbPath).setConfig(theConfig).newGraphDatabase();
+            }
+            newDb.config = theConfig;
+            newDb.shutdownHook = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    newDb.db.shutdown();
+                }
+            };
+            Runtime.getRuntime().addShutdownHook(newDb.shutdownHook);
+            databases.put(key, newDb);
+            regDb = newDb;
+            NucleusLogger.CONNECTION.info("Opened Neo4j embedded database " + key);
+        }
+
+        regDb.refCount++;
+        if (NucleusLogger.CONNECTION.isDebugEnabled())
+        {
+            NucleusLogger.CONNECTION.debug("Neo4j embedded database " + key + " acquired (now " + regDb.refCount + " users)");
+        }
+        return regDb.db;
+    }
+
+    /**
+     * Method to release a use of an embedded database, shutting it down if this was the last user.
+     * @param db The database
+     */
+    public static synchronized void release(GraphDatabaseService db)
+    {
+        Iterator<Map.Entry<String, RegisteredDatabase>> iter = databases.entrySet().iterator();
+        while (iter.hasNext())
+        {
+            Map.Entry<String, RegisteredDatabase> entry = iter.next();
+            RegisteredDatabase regDb = entry.getValue();
+            if (regDb.db == db)
+            {
+                regDb.refCount--;
+                if (regDb.refCount <= 0)
+                {
+                    iter.remove();
+                    try
+                    {
+                        Runtime.getRuntime().removeShutdownHook(regDb.shutdownHook);
+                    }
+                    catch (IllegalStateException ise)
+                    {
+                        // JVM already shutting down, so the hook will shut it down
+                        return;
+                    }
+                    regDb.db.shutdown();
+                    NucleusLogger.CONNECTION.info("Shut down Neo4j embedded database " + entry.getKey());
+                }
+                else if (NucleusLogger.CONNECTION.isDebugEnabled())
+                {
+                    NucleusLogger.CONNECTION.debug("Neo4j embedded database " + entry.getKey() + " released (now " + regDb.refCount + " users)");
+                }
+                return;
+            }
+        }
+    }
+
+    private static String getCanonicalPath(String dbPath)
+    {
+        File file = new File(dbPath);
+        try
+        {
+            return file.getCanonicalPath();
+        }
+        catch (IOException ioe)
+        {
+            return file.getAbsolutePath();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/**********************************************************************
+Copyright (c) 2013 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.neo4j;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded cache of the concrete class name of the object with an identity, for identities of classes with
+ * subclasses (where finding the class needs a datastore lookup). The cache is split into segments, each an LRU
+ * guarded by its own lock, so that concurrent lookups of different identities rarely contend.
+ * <p>
+ * The class of the object with an identity can only change by deleting the object and persisting another with the
+ * same identity, so entries are removed when an object is deleted or inserted. Changes made by other processes are
+ * not seen, in the same way as for the level 2 cache.
+ * </p>
+ */
+public class IdentityClassNameCache
+{
+    private static final int NUMBER_OF_SEGMENTS = 16;
+
+    private final Map<Object, String>[] segments;
+
+    /**
+     * Constructor.
+     * @param maxSize Maximum number of identities to cache
+     */
+    @SuppressWarnings("unchecked")
+    public IdentityClassNameCache(int maxSize)
+    {
+        int numSegments = Math.max(1, Math.min(NUMBER_OF_SEGMENTS, maxSize));
+        final int segmentSize = (maxSize + numSegments - 1) / numSegments;
+        segments = new Map[numSegments];
+        for (int i=0;i<numSegments;i++)
+        {
+            segments[i] = new LinkedHashMap<Object, String>(16, 0.75f, true)
+            {
+                private static final long serialVersionUID = -4290341750358167262L;
+
+                protected boolean removeEldestEntry(Map.Entry<Object, String> eldest)
+                {
+                    return size() > segmentSize;
+                }
+            };
+        }
+    }
+
+    /**
+     * Accessor for the cached class name of the object with the specified identity.
+     * @param id The identity
+     * @return Name of the class (or null if not cached)
+     */
+    public String get(Object id)
+    {
+        Map<Object, String> segment = getSegment(id);
+        synchronized (segment)
+        {
+            return segment.get(id);
+        }
+    }
+
+    /**
+     * Method to cache the class name of the object with the specified identity.
+     * @param id The identity
+     * @param className Name of the class
+     */
+    public void put(Object id, String className)
+    {
+        Map<Object, String> segment = getSegment(id);
+        synchronized (segment)
+        {
+            segment.put(id, className);
+        }
+    }
+
+    /**
+     * Method to remove any cached class name of the object with the specified identity.
+     * @param id The identity
+     */
+    public void remove(Object id)
+    {
+        Map<Object, String> segment = getSegment(id);
+        synchronized (segment)
+        {
+            segment.remove(id);
+        }
+    }
+
+    /**
+     * Method to remove all cached class names.
+     */
+    public void clear()
+    {
+        for (Map<Object, String> segment : segments)
+        {
+            synchronized (segment)
+            {
+                segment.clear();
+            }
+        }
+    }
+
+    private Map<Object, String> getSegment(Object id)
+    {
+        int hash = id.hashCode();
+        hash ^= (hash >>> 16);
+        return segments[(hash & 0x7fffffff) % segments.length];
+    }
+}
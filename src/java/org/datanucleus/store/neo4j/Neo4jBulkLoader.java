@@ -0,0 +1,223 @@
+/**********************************************************************
+Copyright (c) 2013 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.neo4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.util.NucleusLogger;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.graphdb.index.IndexManager;
+import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.index.lucene.unsafe.batchinsert.LuceneBatchInserterIndexProvider;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserterIndex;
+import org.neo4j.unsafe.batchinsert.BatchInserterIndexProvider;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+
+/**
+ * Loader writing directly to the Neo4j store files using a BatchInserter, for the initial load of large volumes of data.
+ * Nodes, Relationships and the DN_TYPES/identity index entries are written with the same naming as when persisting
+ * via a GraphDatabaseService, as are the class id of each Node and the class nodes of the "DN_CLASS_IDS" index (see
+ * <i>TypeNodeRegistry</i>), so the resultant store is usable normally afterwards. There are no transactions and
+ * nothing can be read back, so only inserts are supported. The store must be shut down for the data to be persisted.
+ */
+public class Neo4jBulkLoader
+{
+    /** Config for the indexes, the same as the default for a GraphDatabaseService legacy node index. */
+    private static final Map<String, String> INDEX_CONFIG = MapUtil.stringMap(IndexManager.PROVIDER, "lucene", "type", "exact");
+
+    BatchInserter inserter;
+
+    BatchInserterIndexProvider indexProvider;
+
+    Map<String, BatchInserterIndex> nodeIndexes = new HashMap<String, BatchInserterIndex>();
+
+    /** Class id, keyed by class name. Loaded from the class nodes on first use. */
+    Map<String, Integer> classIdsByClassName = null;
+
+    /** Highest class id known. */
+    int maxClassId = 0;
+
+    /**
+     * Constructor, opening the store for bulk loading.
+     * @param storeDir Directory of the Neo4j store
+     * @param config Any config for the store (or null)
+     */
+    public Neo4jBulkLoader(String storeDir, Map<String, String> config)
+    {
+        inserter = (config != null ? BatchInserters.inserter(storeDir, config) : BatchInserters.inserter(storeDir));
+        indexProvider = new LuceneBatchInserterIndexProvider(inserter);
+        NucleusLogger.CONNECTION.info("Neo4j store " + storeDir + " opened for bulk loading");
+    }
+
+    /**
+     * Method to create a Node with the specified properties.
+     * @param props The properties
+     * @return Id of the Node
+     */
+    public synchronized long createNode(Map<String, Object> props)
+    {
+        return inserter.createNode(props);
+    }
+
+    /**
+     * Method to replace the properties of a Node created by this loader.
+     * @param nodeId Id of the Node
+     * @param props The properties
+     */
+    public synchronized void setNodeProperties(long nodeId, Map<String, Object> props)
+    {
+        inserter.setNodeProperties(nodeId, props);
+    }
+
+    /**
+     * Method to create a Relationship between two Nodes.
+     * @param fromNodeId Id of the start Node
+     * @param toNodeId Id of the end Node
+     * @param type Type of Relationship
+     * @param props The properties of the Relationship
+     * @return Id of the Relationship
+     */
+    public synchronized long createRelationship(long fromNodeId, long toNodeId, RelationshipType type, Map<String, Object> props)
+    {
+        return inserter.createRelationship(fromNodeId, toNodeId, type, props);
+    }
+
+    /**
+     * Method to add a Node to the "DN_TYPES" index under {class-name}-EXCLUSIVE, {class-name} and the names of
+     * all persistable superclasses, as for a Node persisted via a GraphDatabaseService.
+     * @param nodeId Id of the Node
+     * @param cmd Metadata for the class of the object stored in this Node
+     */
+    public synchronized void addNodeToTypeIndex(long nodeId, AbstractClassMetaData cmd)
+    {
+        List<String> classNames = new ArrayList<String>();
+        classNames.add(cmd.getFullClassName() + "-EXCLUSIVE");
+        AbstractClassMetaData theCmd = cmd;
+        while (theCmd != null)
+        {
+            classNames.add(theCmd.getFullClassName());
+            theCmd = theCmd.getSuperAbstractClassMetaData();
+        }
+        getNodeIndex(Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX).add(nodeId,
+            Collections.<String, Object>singletonMap(Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX_KEY, classNames.toArray(new String[classNames.size()])));
+    }
+
+    /**
+     * Method to register a Node in the identity index of its inheritance tree (see <i>Neo4jUtils.addNodeToIdentityIndex</i>).
+     * @param nodeId Id of the Node
+     * @param cmd Metadata for the class of the object stored in this Node
+     * @param idxValue The identity index value
+     */
+    public synchronized void addNodeToIdentityIndex(long nodeId, AbstractClassMetaData cmd, String idxValue)
+    {
+        Map<String, Object> props = new HashMap<String, Object>();
+        AbstractClassMetaData theCmd = cmd;
+        while (theCmd != null)
+        {
+            props.put(theCmd.getFullClassName(), idxValue);
+            theCmd = theCmd.getSuperAbstractClassMetaData();
+        }
+        getNodeIndex(Neo4jUtils.getIdentityIndexName(cmd)).add(nodeId, props);
+    }
+
+    /**
+     * Accessor for the class id of the specified class, creating its class node if not yet existing. No other
+     * process can use the store while it is open for bulk loading, so the next free class id is always available.
+     * @param cmd Metadata for the class
+     * @return The class id
+     */
+    public synchronized int getClassId(AbstractClassMetaData cmd)
+    {
+        if (classIdsByClassName == null)
+        {
+            // Load the class nodes of any existing data
+            classIdsByClassName = new HashMap<String, Integer>();
+            IndexHits<Long> classNodeIds = getNodeIndex(Neo4jStoreManager.PROPCONTAINER_CLASS_ID_INDEX).query(
+                Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX_KEY, "*");
+            try
+            {
+                for (Long classNodeId : classNodeIds)
+                {
+                    Map<String, Object> props = inserter.getNodeProperties(classNodeId);
+                    int classId = ((Number)props.get(TypeNodeRegistry.CLASS_ID_PROPERTY)).intValue();
+                    classIdsByClassName.put((String)props.get(TypeNodeRegistry.CLASS_NAME_PROPERTY), classId);
+                    maxClassId = Math.max(maxClassId, classId);
+                }
+            }
+            finally
+            {
+                classNodeIds.close();
+            }
+        }
+
+        Integer classId = classIdsByClassName.get(cmd.getFullClassName());
+        if (classId == null)
+        {
+            classId = ++maxClassId;
+            Map<String, Object> props = new HashMap<String, Object>();
+            props.put(TypeNodeRegistry.CLASS_NAME_PROPERTY, cmd.getFullClassName());
+            props.put(TypeNodeRegistry.CLASS_ID_PROPERTY, classId);
+            long classNodeId = inserter.createNode(props);
+
+            Map<String, Object> idxProps = new HashMap<String, Object>();
+            idxProps.put(Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX_KEY, cmd.getFullClassName());
+            idxProps.put(TypeNodeRegistry.CLASS_ID_INDEX_KEY, "" + classId);
+            getNodeIndex(Neo4jStoreManager.PROPCONTAINER_CLASS_ID_INDEX).add(classNodeId, idxProps);
+            classIdsByClassName.put(cmd.getFullClassName(), classId);
+        }
+        return classId;
+    }
+
+    protected BatchInserterIndex getNodeIndex(String name)
+    {
+        BatchInserterIndex idx = nodeIndexes.get(name);
+        if (idx == null)
+        {
+            idx = indexProvider.nodeIndex(name, INDEX_CONFIG);
+            nodeIndexes.put(name, idx);
+        }
+        return idx;
+    }
+
+    /**
+     * Method to shut down the loader, writing all data and indexes to the store.
+     */
+    public synchronized void shutdown()
+    {
+        if (inserter == null)
+        {
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        indexProvider.shutdown();
+        inserter.shutdown();
+        indexProvider = null;
+        inserter = null;
+        nodeIndexes.clear();
+        classIdsByClassName = null;
+        NucleusLogger.CONNECTION.info("Neo4j bulk load store shut down in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+}
@@ -17,9 +17,22 @@ Contributors:
 **********************************************************************/
 package org.datanucleus.store.neo4j;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.datanucleus.ClassLoaderResolver;
 import org.datanucleus.ExecutionContext;
+import org.datanucleus.FetchPlan;
 import org.datanucleus.PropertyNames;
 import org.datanucleus.exceptions.NucleusDataStoreException;
 import org.datanucleus.exceptions.NucleusException;
@@ -27,23 +40,28 @@ import org.datanucleus.exceptions.NucleusObjectNotFoundException;
 import org.datanucleus.exceptions.NucleusOptimisticException;
 import org.datanucleus.exceptions.NucleusUserException;
 import org.datanucleus.identity.OID;
+import org.datanucleus.identity.SCOID;
 import org.datanucleus.metadata.AbstractClassMetaData;
 import org.datanucleus.metadata.AbstractMemberMetaData;
-import org.datanucleus.metadata.DiscriminatorMetaData;
-import org.datanucleus.metadata.DiscriminatorStrategy;
+import org.datanucleus.metadata.FieldRole;
 import org.datanucleus.metadata.IdentityType;
+import org.datanucleus.metadata.MetaDataUtils;
+import org.datanucleus.metadata.RelationType;
 import org.datanucleus.metadata.VersionMetaData;
 import org.datanucleus.metadata.VersionStrategy;
 import org.datanucleus.state.ObjectProvider;
 import org.datanucleus.store.AbstractPersistenceHandler;
+import org.datanucleus.store.FieldValues;
 import org.datanucleus.store.StoreManager;
 import org.datanucleus.store.VersionHelper;
 import org.datanucleus.store.connection.ManagedConnection;
 import org.datanucleus.store.fieldmanager.DeleteFieldManager;
 import org.datanucleus.store.fieldmanager.FieldManager;
 import org.datanucleus.store.neo4j.fieldmanager.FetchFieldManager;
+import org.datanucleus.store.neo4j.fieldmanager.BulkLoadStoreFieldManager;
 import org.datanucleus.store.neo4j.fieldmanager.StoreFieldManager;
-import org.datanucleus.store.schema.naming.ColumnType;
+import org.datanucleus.store.neo4j.management.Neo4jStatistics;
+import org.datanucleus.store.neo4j.management.Neo4jStatistics.Operation;
 import org.datanucleus.util.Localiser;
 import org.datanucleus.util.NucleusLogger;
 import org.datanucleus.util.StringUtils;
@@ -51,6 +69,7 @@ import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.PropertyContainer;
 import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.index.Index;
 
 /**
  * Persistence Handler for Neo4j.
@@ -60,6 +79,19 @@ public class Neo4jPersistenceHandler extends AbstractPersistenceHandler
     protected static final Localiser LOCALISER_NEO4J = Localiser.getInstance(
         "org.datanucleus.store.neo4j.Localisation", Neo4jStoreManager.class.getClassLoader());
 
+    /** Order in which to lock the Nodes/Relationships of objects (see Neo4jUtils.PROPCONTAINER_LOCK_ORDER). */
+    private static final Comparator<Map.Entry<ObjectProvider, PropertyContainer>> PROPCONTAINER_LOCK_ORDER =
+        new Comparator<Map.Entry<ObjectProvider, PropertyContainer>>()
+    {
+        public int compare(Map.Entry<ObjectProvider, PropertyContainer> entry1, Map.Entry<ObjectProvider, PropertyContainer> entry2)
+        {
+            return Neo4jUtils.PROPCONTAINER_LOCK_ORDER.compare(entry1.getValue(), entry2.getValue());
+        }
+    };
+
+    /** Names of the classes checked as able to be bulk loaded. */
+    private final Set<String> bulkLoadableClassNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
     public Neo4jPersistenceHandler(StoreManager storeMgr)
     {
         super(storeMgr);
@@ -78,23 +110,37 @@ public class Neo4jPersistenceHandler extends AbstractPersistenceHandler
     @Override
     public void insertObjects(ObjectProvider... ops)
     {
+        if (((Neo4jStoreManager)storeMgr).isBulkLoad())
+        {
+            bulkInsertObjects(ops);
+            return;
+        }
+
         ExecutionContext ec = ops[0].getExecutionContext();
         ManagedConnection mconn = storeMgr.getConnection(ec);
         try
         {
-            GraphDatabaseService db = (GraphDatabaseService)mconn.getConnection();
+            GraphDatabaseService db = Neo4jUtils.getGraphDatabaseForWrite(mconn);
 
             long startTime = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
             if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled())
             {
                 NucleusLogger.DATASTORE_PERSIST.debug(LOCALISER_NEO4J.msg("Neo4j.InsertObjects.Start",
                     StringUtils.objectArrayToString(ops)));
             }
 
+            // Check for existing objects with these identities, for all objects at once
+            for (ObjectProvider op : ops)
+            {
+                assertReadOnlyForUpdateOfObject(op);
+            }
+            checkObjectsDoNotExist(db, ops);
+
             // Do initial insert to create PropertyContainers (Node/Relationship)
             for (ObjectProvider op : ops)
             {
-                insertObjectToPropertyContainer(op, db);
+                createPropertyContainerForObject(op, db);
             }
 
             // Do second pass for relation fields
@@ -104,7 +150,7 @@ public class Neo4jPersistenceHandler extends AbstractPersistenceHandler
                 PropertyContainer propObj = (PropertyContainer)op.getAssociatedValue(Neo4jStoreManager.OBJECT_PROVIDER_PROPCONTAINER);
 
                 // Process relation fields
-                int[] relPositions = cmd.getRelationMemberPositions(ec.getClassLoaderResolver(), ec.getMetaDataManager());
+                int[] relPositions = getPersistencePlan(cmd, ec).getRelationMemberPositions();
                 if (relPositions.length > 0)
                 {
                     StoreFieldManager fm = new StoreFieldManager(op, propObj, true);
@@ -112,6 +158,7 @@ public class Neo4jPersistenceHandler extends AbstractPersistenceHandler
                 }
             }
 
+            recordLatencies(ops, Operation.INSERT, startNanos);
             if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled())
             {
                 NucleusLogger.DATASTORE_PERSIST.debug(LOCALISER_NEO4J.msg("Neo4j.ExecutionTime", 
@@ -126,6 +173,7 @@ public class Neo4jPersistenceHandler extends AbstractPersistenceHandler
         catch (Exception e)
         {
             NucleusLogger.PERSISTENCE.error("Exception inserting objects ", e);
+            Neo4jUtils.setRollbackOnly(mconn);
             throw new NucleusDataStoreException("Exception inserting objects", e);
         }
         finally
@@ -147,21 +195,76 @@ public class Neo4jPersistenceHandler extends AbstractPersistenceHandler
     {
         assertReadOnlyForUpdateOfObject(op);
 
-        AbstractClassMetaData cmd = op.getClassMetaData();
-        if ((cmd.getIdentityType() == IdentityType.APPLICATION || cmd.getIdentityType() == IdentityType.DATASTORE) &&
-            !cmd.pkIsDatastoreAttributed(storeMgr))
+        // Enforce uniqueness of datastore rows
+        checkObjectsDoNotExist(db, op);
+
+        return createPropertyContainerForObject(op, db);
+    }
+
+    /**
+     * Method to check that no objects exist in the datastore with the identities of the specified (new) objects.
+     * The objects of each inheritance tree are checked together, with one identity index query (or one Cypher query
+     * where there is no identity index) rather than one lookup per object. Objects whose identity is attributed by
+     * the datastore need no check, and neither do those whose uniqueness is enforced by a complete identity index.
+     * @param db The GraphDB
+     * @param ops ObjectProviders of the objects being inserted
+     * @throws NucleusUserException if an object already exists with the identity of one of the objects
+     */
+    protected void checkObjectsDoNotExist(GraphDatabaseService db, ObjectProvider... ops)
+    {
+        boolean uniquenessFromIndex = ((Neo4jStoreManager)storeMgr).isIdentityUniquenessFromIndex();
+        Set<String> identities = new HashSet<String>();
+        List<ObjectProvider> opsToCheck = new ArrayList<ObjectProvider>(ops.length);
+        for (ObjectProvider op : ops)
         {
-            // Enforce uniqueness of datastore rows
-            try
+            AbstractClassMetaData cmd = op.getClassMetaData();
+            if ((cmd.getIdentityType() != IdentityType.APPLICATION && cmd.getIdentityType() != IdentityType.DATASTORE) ||
+                cmd.pkIsDatastoreAttributed(storeMgr))
+            {
+                continue;
+            }
+
+            AbstractClassMetaData rootCmd = cmd.getBaseAbstractClassMetaData();
+            if (!identities.add(rootCmd.getFullClassName() + ":" + Neo4jUtils.getIdentityIndexValueForObjectProvider(op)))
             {
-                locateObject(op);
+                // Two objects being inserted with the same identity
                 throw new NucleusUserException(LOCALISER_NEO4J.msg("Neo4j.Insert.ObjectWithIdAlreadyExists",
                     op.getObjectAsPrintable(), op.getInternalObjectId()));
             }
-            catch (NucleusObjectNotFoundException onfe)
+            if (uniquenessFromIndex && Neo4jUtils.classUsesIdentityIndex(storeMgr, rootCmd) &&
+                ((Neo4jStoreManager)storeMgr).isIdentityIndexComplete(db, rootCmd))
             {
-                // Do nothing since object with this id doesn't exist
+                // Enforced when registering the Node in the identity index (which has every Node of this inheritance tree)
+                continue;
             }
+            opsToCheck.add(op);
+        }
+
+        Map<ObjectProvider, PropertyContainer> existing = Neo4jUtils.findPropertyContainersForObjectProviders(db, opsToCheck);
+        if (!existing.isEmpty())
+        {
+            ObjectProvider op = existing.keySet().iterator().next();
+            throw new NucleusUserException(LOCALISER_NEO4J.msg("Neo4j.Insert.ObjectWithIdAlreadyExists",
+                op.getObjectAsPrintable(), op.getInternalObjectId()));
+        }
+    }
+
+    /**
+     * Method that creates the PropertyContainer for the specified ObjectProvider, setting all properties except
+     * for any relation fields. Doesn't check for an existing PropertyContainer with this identity.
+     * @param op ObjectProvider
+     * @param db The GraphDB
+     * @return The PropertyContainer
+     */
+    protected PropertyContainer createPropertyContainerForObject(ObjectProvider op, GraphDatabaseService db)
+    {
+        AbstractClassMetaData cmd = op.getClassMetaData();
+
+        // An identity index created along with the first Node of its inheritance tree covers every Node of the tree
+        boolean identityIndexComplete = false;
+        if (Neo4jUtils.classUsesIdentityIndex(storeMgr, cmd) && !db.index().existsForNodes(Neo4jUtils.getIdentityIndexName(cmd)))
+        {
+            identityIndexComplete = !Neo4jUtils.hasInstancesOfClassTree(storeMgr, db, cmd.getBaseAbstractClassMetaData());
         }
 
         // Create the PropertyContainer; currently only support as a Node.
@@ -171,61 +274,134 @@ public class Neo4jPersistenceHandler extends AbstractPersistenceHandler
         {
             NucleusLogger.DATASTORE_NATIVE.debug("Persisting " + op + " as " + propObj);
         }
-        addPropertyContainerToTypeIndex(db, propObj, cmd, false);
+        if (((Neo4jStoreManager)storeMgr).usesTypeNodes() && propObj instanceof Node)
+        {
+            // Relate it to the type node of its class
+            ((Neo4jStoreManager)storeMgr).getTypeNodeRegistry().addInstance(db, (Node)propObj, cmd);
+        }
+        else
+        {
+            addPropertyContainerToTypeIndex(db, propObj, cmd, false);
+            if (propObj instanceof Node)
+            {
+                // Record its class id, so its class is known without searching the DN_TYPES index
+                ((Neo4jStoreManager)storeMgr).getTypeNodeRegistry().setClassId(db, (Node)propObj, cmd);
+            }
+        }
 
         // Cache the PropertyContainer with the ObjectProvider
         op.setAssociatedValue(Neo4jStoreManager.OBJECT_PROVIDER_PROPCONTAINER, propObj);
+        ((Neo4jStoreManager)storeMgr).evictClassNameForObjectID(op.getInternalObjectId());
 
         if (cmd.pkIsDatastoreAttributed(storeMgr))
         {
+            if (((Neo4jStoreManager)storeMgr).isRemote() && storeMgr.getBooleanProperty(Neo4jStoreManager.PROPERTY_REMOTE_BATCH_TRANSACTIONS))
+            {
+                // Node id is only allocated by the server when the batch is sent
+                throw new NucleusUserException("Class " + cmd.getFullClassName() + " uses the Neo4j id as its identity" +
+                    " which is not available until commit when using batched transactions with a remote server");
+            }
             long id = (propObj instanceof Node ? ((Node)propObj).getId() : ((Relationship)propObj).getId());
+            setIdentityForNewObject(op, id);
+        }
+
+        // Set properties for all non-relation fields (and surrogate columns)
+        storePropertiesForNewObject(op, propObj);
 
-            // Set the identity of the object based on the datastore-generated IDENTITY strategy value
-            if (cmd.getIdentityType() == IdentityType.DATASTORE)
+        if (propObj instanceof Node && Neo4jUtils.classUsesIdentityIndex(storeMgr, cmd))
+        {
+            // Register the Node against its identity for lookup
+            String idxValue = Neo4jUtils.getIdentityIndexValueForObjectProvider(op);
+            if (((Neo4jStoreManager)storeMgr).isIdentityUniquenessFromIndex())
             {
-                op.setPostStoreNewObjectId(id);
-                if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled())
+                if (Neo4jUtils.addNodeToIdentityIndexIfAbsent(db, (Node)propObj, cmd, idxValue) != null)
                 {
-                    NucleusLogger.DATASTORE_PERSIST.debug(LOCALISER_NEO4J.msg("Neo4j.Insert.ObjectPersistedWithIdentity",
-                        op.getObjectAsPrintable(), id));
+                    throw new NucleusUserException(LOCALISER_NEO4J.msg("Neo4j.Insert.ObjectWithIdAlreadyExists",
+                        op.getObjectAsPrintable(), op.getInternalObjectId()));
                 }
             }
-            else if (cmd.getIdentityType() == IdentityType.APPLICATION)
+            else
+            {
+                Neo4jUtils.addNodeToIdentityIndex(db, (Node)propObj, cmd, idxValue);
+            }
+            if (identityIndexComplete)
+            {
+                ((Neo4jStoreManager)storeMgr).setIdentityIndexComplete(db, cmd);
+            }
+        }
+
+        return propObj;
+    }
+
+    /**
+     * Method to set the identity of a new object whose identity is attributed by the datastore (the Neo4j id).
+     * @param op ObjectProvider
+     * @param id The Neo4j id of the Node/Relationship
+     */
+    protected void setIdentityForNewObject(ObjectProvider op, long id)
+    {
+        AbstractClassMetaData cmd = op.getClassMetaData();
+
+        // Set the identity of the object based on the datastore-generated IDENTITY strategy value
+        if (cmd.getIdentityType() == IdentityType.DATASTORE)
+        {
+            op.setPostStoreNewObjectId(id);
+            if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled())
+            {
+                NucleusLogger.DATASTORE_PERSIST.debug(LOCALISER_NEO4J.msg("Neo4j.Insert.ObjectPersistedWithIdentity",
+                    op.getObjectAsPrintable(), id));
+            }
+        }
+        else if (cmd.getIdentityType() == IdentityType.APPLICATION)
+        {
+            int[] pkFieldNumbers = cmd.getPKMemberPositions();
+            for (int i=0;i<pkFieldNumbers.length;i++)
             {
-                int[] pkFieldNumbers = cmd.getPKMemberPositions();
-                for (int i=0;i<pkFieldNumbers.length;i++)
+                AbstractMemberMetaData mmd = cmd.getMetaDataForManagedMemberAtAbsolutePosition(pkFieldNumbers[i]);
+                if (storeMgr.isStrategyDatastoreAttributed(cmd, pkFieldNumbers[i]))
                 {
-                    AbstractMemberMetaData mmd = cmd.getMetaDataForManagedMemberAtAbsolutePosition(pkFieldNumbers[i]);
-                    if (storeMgr.isStrategyDatastoreAttributed(cmd, pkFieldNumbers[i]))
+                    if (!Number.class.isAssignableFrom(mmd.getType()) &&
+                            mmd.getType() != long.class && mmd.getType() != int.class)
                     {
-                        if (!Number.class.isAssignableFrom(mmd.getType()) &&
-                                mmd.getType() != long.class && mmd.getType() != int.class)
-                        {
-                            // Field type must be Long since Neo4j node id is a long
-                            throw new NucleusUserException("Any field using IDENTITY value generation with Neo4j should be of type numeric");
-                        }
-                        op.setPostStoreNewObjectId(id);
-                        if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled())
-                        {
-                            NucleusLogger.DATASTORE_PERSIST.debug(LOCALISER_NEO4J.msg("Neo4j.Insert.ObjectPersistedWithIdentity",
-                                op.getObjectAsPrintable(), id));
-                        }
+                        // Field type must be Long since Neo4j node id is a long
+                        throw new NucleusUserException("Any field using IDENTITY value generation with Neo4j should be of type numeric");
+                    }
+                    op.setPostStoreNewObjectId(id);
+                    if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled())
+                    {
+                        NucleusLogger.DATASTORE_PERSIST.debug(LOCALISER_NEO4J.msg("Neo4j.Insert.ObjectPersistedWithIdentity",
+                            op.getObjectAsPrintable(), id));
                     }
                 }
             }
         }
+    }
 
-        if (cmd.getIdentityType() == IdentityType.DATASTORE)
+    private PersistencePlan getPersistencePlan(AbstractClassMetaData cmd, ExecutionContext ec)
+    {
+        return ((Neo4jStoreManager)storeMgr).getPersistencePlan(cmd, ec.getClassLoaderResolver());
+    }
+
+    /**
+     * Method to set the properties of the PropertyContainer for a new object, for the datastore identity, version,
+     * discriminator, multi-tenancy and all non-relation fields.
+     * @param op ObjectProvider
+     * @param propObj The PropertyContainer
+     */
+    protected void storePropertiesForNewObject(ObjectProvider op, PropertyContainer propObj)
+    {
+        AbstractClassMetaData cmd = op.getClassMetaData();
+        ExecutionContext ec = op.getExecutionContext();
+        PersistencePlan plan = getPersistencePlan(cmd, ec);
+        if (plan.getDatastoreIdPropertyName() != null)
         {
-            String propName = storeMgr.getNamingFactory().getColumnName(cmd, ColumnType.DATASTOREID_COLUMN);
             Object key = ((OID)op.getInternalObjectId()).getKeyValue();
-            propObj.setProperty(propName, key);
+            propObj.setProperty(plan.getDatastoreIdPropertyName(), key);
         }
 
-        if (cmd.isVersioned())
+        VersionMetaData vermd = plan.getVersionMetaData();
+        if (vermd != null)
         {
-            VersionMetaData vermd = cmd.getVersionMetaDataForClass();
-            String propName = storeMgr.getNamingFactory().getColumnName(cmd, ColumnType.VERSION_COLUMN);
             if (vermd.getVersionStrategy() == VersionStrategy.VERSION_NUMBER)
             {
                 long versionNumber = 1;
@@ -235,9 +411,9 @@ public class Neo4jPersistenceHandler extends AbstractPersistenceHandler
                     NucleusLogger.DATASTORE.debug(LOCALISER_NEO4J.msg("Neo4j.Insert.ObjectPersistedWithVersion",
                         op.getObjectAsPrintable(), op.getInternalObjectId(), "" + versionNumber));
                 }
-                if (vermd.getFieldName() != null)
+                AbstractMemberMetaData verMmd = plan.getVersionMember();
+                if (verMmd != null)
                 {
-                    AbstractMemberMetaData verMmd = cmd.getMetaDataForMember(vermd.getFieldName());
                     Object verFieldValue = Long.valueOf(versionNumber);
                     if (verMmd.getType() == int.class || verMmd.getType() == Integer.class)
                     {
@@ -247,49 +423,26 @@ public class Neo4jPersistenceHandler extends AbstractPersistenceHandler
                 }
                 else
                 {
-                    propObj.setProperty(propName, versionNumber);
+                    propObj.setProperty(plan.getVersionPropertyName(), versionNumber);
                 }
             }
         }
 
-        if (cmd.hasDiscriminatorStrategy())
+        if (plan.getDiscriminatorPropertyName() != null)
         {
             // Add discriminator field
-            DiscriminatorMetaData discmd = cmd.getDiscriminatorMetaData();
-            String propName = storeMgr.getNamingFactory().getColumnName(cmd, ColumnType.DISCRIMINATOR_COLUMN);
-            Object discVal = null;
-            if (cmd.getDiscriminatorStrategy() == DiscriminatorStrategy.CLASS_NAME)
-            {
-                discVal = cmd.getFullClassName();
-            }
-            else
-            {
-                discVal = discmd.getValue();
-            }
-            propObj.setProperty(propName, discVal);
+            propObj.setProperty(plan.getDiscriminatorPropertyName(), plan.getDiscriminatorValue());
         }
 
         // Add multi-tenancy discriminator if applicable
-        if (storeMgr.getStringProperty(PropertyNames.PROPERTY_MAPPING_TENANT_ID) != null)
+        if (plan.getMultitenancyPropertyName() != null)
         {
-            if ("true".equalsIgnoreCase(cmd.getValueForExtension("multitenancy-disable")))
-            {
-                // Don't bother with multitenancy for this class
-            }
-            else
-            {
-                String propName = storeMgr.getNamingFactory().getColumnName(cmd, ColumnType.MULTITENANCY_COLUMN);
-                propObj.setProperty(propName, storeMgr.getStringProperty(PropertyNames.PROPERTY_MAPPING_TENANT_ID));
-            }
+            propObj.setProperty(plan.getMultitenancyPropertyName(), storeMgr.getStringProperty(PropertyNames.PROPERTY_MAPPING_TENANT_ID));
         }
 
         // Insert non-relation fields
-        ExecutionContext ec = op.getExecutionContext();
-        int[] nonRelPositions = cmd.getNonRelationMemberPositions(ec.getClassLoaderResolver(), ec.getMetaDataManager());
         StoreFieldManager fm = new StoreFieldManager(op, propObj, true);
-        op.provideFields(nonRelPositions, fm);
-
-        return propObj;
+        op.provideFields(plan.getNonRelationMemberPositions(), fm);
     }
 
     /* (non-Javadoc)
@@ -297,13 +450,20 @@ public class Neo4jPersistenceHandler extends AbstractPersistenceHandler
      */
     public void insertObject(ObjectProvider op)
     {
+        if (((Neo4jStoreManager)storeMgr).isBulkLoad())
+        {
+            bulkInsertObjects(op);
+            return;
+        }
+
         ExecutionContext ec = op.getExecutionContext();
         ManagedConnection mconn = storeMgr.getConnection(ec);
         try
         {
-            GraphDatabaseService db = (GraphDatabaseService)mconn.getConnection();
+            GraphDatabaseService db = Neo4jUtils.getGraphDatabaseForWrite(mconn);
  
             long startTime = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
             if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled())
             {
                 NucleusLogger.DATASTORE_PERSIST.debug(LOCALISER_NEO4J.msg("Neo4j.Insert.Start", 
@@ -315,13 +475,14 @@ public class Neo4jPersistenceHandler extends AbstractPersistenceHandler
             AbstractClassMetaData cmd = op.getClassMetaData();
 
             // Step 2 : Set relation fields
-            int[] relPositions = cmd.getRelationMemberPositions(ec.getClassLoaderResolver(), ec.getMetaDataManager());
+            int[] relPositions = getPersistencePlan(cmd, ec).getRelationMemberPositions();
             if (relPositions.length > 0)
             {
                 StoreFieldManager fm = new StoreFieldManager(op, propObj, true);
                 op.provideFields(relPositions, fm);
             }
 
+            recordLatency(op.getClassMetaData(), Operation.INSERT, startNanos);
             if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled())
             {
                 NucleusLogger.DATASTORE_PERSIST.debug(LOCALISER_NEO4J.msg("Neo4j.ExecutionTime", 
@@ -336,6 +497,7 @@ public class Neo4jPersistenceHandler extends AbstractPersistenceHandler
         catch (Exception e)
         {
             NucleusLogger.PERSISTENCE.error("Exception inserting object " + op, e);
+            Neo4jUtils.setRollbackOnly(mconn);
             throw new NucleusDataStoreException("Exception inserting object for " + op, e);
         }
         finally
@@ -344,6 +506,196 @@ public class Neo4jPersistenceHandler extends AbstractPersistenceHandler
         }
     }
 
+    /**
+     * Method to insert the specified objects when the store is in bulk-load mode, writing them (and all reachable
+     * objects) via the Neo4jBulkLoader. No check is made for existing objects with the same identity.
+     * @param ops ObjectProviders of the objects to insert
+     */
+    protected void bulkInsertObjects(ObjectProvider... ops)
+    {
+        ExecutionContext ec = ops[0].getExecutionContext();
+        for (ObjectProvider op : ops)
+        {
+            // Check before writing anything, since what is written by the bulk loader can't be rolled back
+            assertClassCanBeBulkLoaded(op.getClassMetaData(), ec);
+        }
+
+        ManagedConnection mconn = storeMgr.getConnection(ec);
+        try
+        {
+            Neo4jBulkLoader loader = (Neo4jBulkLoader)mconn.getConnection();
+
+            long startTime = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
+            if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled())
+            {
+                NucleusLogger.DATASTORE_PERSIST.debug(LOCALISER_NEO4J.msg("Neo4j.InsertObjects.Start",
+                    StringUtils.objectArrayToString(ops)));
+            }
+
+            // Do initial insert to create the Nodes with non-relation fields
+            for (ObjectProvider op : ops)
+            {
+                insertObjectToBulkLoader(op, loader);
+            }
+
+            // Do second pass for relation fields
+            for (ObjectProvider op : ops)
+            {
+                AbstractClassMetaData cmd = op.getClassMetaData();
+                BulkLoadPropertyContainer propObj = (BulkLoadPropertyContainer)op.getAssociatedValue(Neo4jStoreManager.OBJECT_PROVIDER_PROPCONTAINER);
+                int[] relPositions = getPersistencePlan(cmd, ec).getRelationMemberPositions();
+                if (relPositions.length > 0)
+                {
+                    BulkLoadStoreFieldManager fm = new BulkLoadStoreFieldManager(op, propObj, loader);
+                    op.provideFields(relPositions, fm);
+
+                    // Write any properties of embedded fields
+                    propObj.flush();
+                }
+            }
+
+            recordLatencies(ops, Operation.INSERT, startNanos);
+            if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled())
+            {
+                NucleusLogger.DATASTORE_PERSIST.debug(LOCALISER_NEO4J.msg("Neo4j.ExecutionTime", 
+                    (System.currentTimeMillis() - startTime)));
+            }
+            if (ec.getStatistics() != null)
+            {
+                ec.getStatistics().incrementNumWrites();
+                ec.getStatistics().incrementInsertCount();
+            }
+        }
+        catch (Exception e)
+        {
+            NucleusLogger.PERSISTENCE.error("Exception bulk loading objects ", e);
+            throw new NucleusDataStoreException("Exception bulk loading objects", e);
+        }
+        finally
+        {
+            mconn.release();
+        }
+    }
+
+    /**
+     * Method to create the Node for the specified ObjectProvider via the bulk loader, setting all properties
+     * (including its class id) except for any relation fields, and adding it to the DN_TYPES and identity indexes.
+     * @param op ObjectProvider
+     * @param loader The bulk loader
+     * @return The PropertyContainer for the Node
+     */
+    protected BulkLoadPropertyContainer insertObjectToBulkLoader(ObjectProvider op, Neo4jBulkLoader loader)
+    {
+        assertReadOnlyForUpdateOfObject(op);
+
+        AbstractClassMetaData cmd = op.getClassMetaData();
+        BulkLoadPropertyContainer propObj = new BulkLoadPropertyContainer(loader);
+        propObj.setProperty(TypeNodeRegistry.CLASS_ID_PROPERTY, loader.getClassId(cmd));
+        op.setAssociatedValue(Neo4jStoreManager.OBJECT_PROVIDER_PROPCONTAINER, propObj);
+        if (cmd.pkIsDatastoreAttributed(storeMgr))
+        {
+            // Need the Node id for the identity, so create the Node now
+            setIdentityForNewObject(op, propObj.getNodeId());
+        }
+
+        storePropertiesForNewObject(op, propObj);
+        long nodeId = propObj.flush();
+        if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled())
+        {
+            NucleusLogger.DATASTORE_NATIVE.debug("Bulk loading " + op + " as " + propObj);
+        }
+
+        loader.addNodeToTypeIndex(nodeId, cmd);
+        if (Neo4jUtils.classUsesIdentityIndex(storeMgr, cmd))
+        {
+            loader.addNodeToIdentityIndex(nodeId, cmd, Neo4jUtils.getIdentityIndexValueForObjectProvider(op));
+        }
+        return propObj;
+    }
+
+    /**
+     * Method to check that objects of the specified class can be bulk loaded. The bulk loader only writes Nodes, and
+     * only writes Relationships for collection, array and single-valued relation fields of the object itself (not of
+     * embedded objects, nor for maps).
+     * @param cmd Metadata for the class
+     * @param ec ExecutionContext
+     * @throws NucleusUserException if the class can't be bulk loaded
+     */
+    protected void assertClassCanBeBulkLoaded(AbstractClassMetaData cmd, ExecutionContext ec)
+    {
+        if (bulkLoadableClassNames.contains(cmd.getFullClassName()))
+        {
+            return;
+        }
+
+        PersistencePlan plan = getPersistencePlan(cmd, ec);
+        if (plan.isAttributedRelation())
+        {
+            throw new NucleusUserException(LOCALISER_NEO4J.msg("Neo4j.BulkLoad.AttributedRelationNotSupported", cmd.getFullClassName()));
+        }
+        assertMembersCanBeBulkLoaded(cmd, plan.getRelationMemberPositions(), null, ec);
+        bulkLoadableClassNames.add(cmd.getFullClassName());
+    }
+
+    private void assertMembersCanBeBulkLoaded(AbstractClassMetaData cmd, int[] relationMemberPositions,
+            AbstractMemberMetaData ownerMmd, ExecutionContext ec)
+    {
+        ClassLoaderResolver clr = ec.getClassLoaderResolver();
+        for (int i=0;i<relationMemberPositions.length;i++)
+        {
+            AbstractMemberMetaData mmd = cmd.getMetaDataForManagedMemberAtAbsolutePosition(relationMemberPositions[i]);
+            RelationType relationType = mmd.getRelationType(clr);
+            if (relationType == RelationType.NONE || mmd.isSerialized())
+            {
+                continue;
+            }
+            if (MetaDataUtils.getInstance().isMemberEmbedded(ec.getMetaDataManager(), clr, mmd, relationType, ownerMmd))
+            {
+                if (RelationType.isRelationSingleValued(relationType))
+                {
+                    // Relations of the embedded object would be written to the same Node
+                    AbstractClassMetaData embCmd = ec.getMetaDataManager().getMetaDataForClass(mmd.getType(), clr);
+                    if (embCmd != null)
+                    {
+                        assertMembersCanBeBulkLoaded(embCmd, embCmd.getRelationMemberPositions(clr, ec.getMetaDataManager()), mmd, ec);
+                    }
+                }
+                continue;
+            }
+
+            if (ownerMmd != null)
+            {
+                throw new NucleusUserException(LOCALISER_NEO4J.msg("Neo4j.BulkLoad.MemberNotSupported", mmd.getFullFieldName(),
+                    "relations of embedded objects"));
+            }
+            else if (mmd.hasMap())
+            {
+                throw new NucleusUserException(LOCALISER_NEO4J.msg("Neo4j.BulkLoad.MemberNotSupported", mmd.getFullFieldName(),
+                    "relation maps"));
+            }
+            else if ((mmd.hasCollection() && mmd.getCollection().isSerializedElement()) ||
+                (mmd.hasArray() && mmd.getArray().isSerializedElement()))
+            {
+                throw new NucleusUserException(LOCALISER_NEO4J.msg("Neo4j.BulkLoad.MemberNotSupported", mmd.getFullFieldName(),
+                    "serialised elements"));
+            }
+        }
+    }
+
+    /**
+     * Convenience method to throw an exception when the store is in bulk-load mode, since only inserts are possible.
+     * @param op ObjectProvider
+     * @param operation Name of the operation
+     */
+    private void assertNotBulkLoad(ObjectProvider op, String operation)
+    {
+        if (((Neo4jStoreManager)storeMgr).isBulkLoad())
+        {
+            throw new NucleusUserException(LOCALISER_NEO4J.msg("Neo4j.BulkLoad.OperationNotSupported", operation, op.getObjectAsPrintable()));
+        }
+    }
+
     /**
      * When a Node is inserted it is added to the index "DN_TYPES" with the key "class" set to
      * {class-name}, {class-name}-EXCUSIVE, as well as any persistable superclasses.
@@ -395,15 +747,17 @@ public class Neo4jPersistenceHandler extends AbstractPersistenceHandler
      */
     public void updateObject(ObjectProvider op, int[] fieldNumbers)
     {
+        assertNotBulkLoad(op, "update");
         assertReadOnlyForUpdateOfObject(op);
 
         ExecutionContext ec = op.getExecutionContext();
         ManagedConnection mconn = storeMgr.getConnection(ec);
         try
         {
-            GraphDatabaseService db = (GraphDatabaseService) mconn.getConnection();
+            GraphDatabaseService db = Neo4jUtils.getGraphDatabaseForWrite(mconn);
 
             long startTime = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
             AbstractClassMetaData cmd = op.getClassMetaData();
             if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled())
             {
@@ -433,6 +787,7 @@ public class Neo4jPersistenceHandler extends AbstractPersistenceHandler
                     throw new NucleusDataStoreException("Could not find object with id " + op.getInternalObjectId());
                 }
             }
+            checkVersions(mconn, Collections.singletonMap(op, propObj));
 
             int[] updatedFieldNums = fieldNumbers;
             if (cmd.isVersioned())
@@ -468,13 +823,29 @@ public class Neo4jPersistenceHandler extends AbstractPersistenceHandler
                 else
                 {
                     // Update the stored surrogate value
-                    String propName = storeMgr.getNamingFactory().getColumnName(cmd, ColumnType.VERSION_COLUMN);
+                    String propName = getPersistencePlan(cmd, ec).getVersionPropertyName();
                     propObj.setProperty(propName, nextVersion);
                 }
             }
 
             StoreFieldManager fm = new StoreFieldManager(op, propObj, false);
             op.provideFields(updatedFieldNums, fm);
+            fm.flush();
+
+            if (propObj instanceof Node && cmd.getIdentityType() == IdentityType.APPLICATION &&
+                Neo4jUtils.classUsesIdentityIndex(storeMgr, cmd))
+            {
+                for (int i=0;i<fieldNumbers.length;i++)
+                {
+                    if (cmd.getMetaDataForManagedMemberAtAbsolutePosition(fieldNumbers[i]).isPrimaryKey())
+                    {
+                        // PK field changed so re-register the Node against its new identity
+                        Neo4jUtils.removeNodeFromIdentityIndex(db, (Node)propObj, cmd);
+                        Neo4jUtils.addNodeToIdentityIndex(db, (Node)propObj, cmd, Neo4jUtils.getIdentityIndexValueForObjectProvider(op));
+                        break;
+                    }
+                }
+            }
 
             if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled())
             {
@@ -487,15 +858,22 @@ public class Neo4jPersistenceHandler extends AbstractPersistenceHandler
                 ec.getStatistics().incrementUpdateCount();
             }
 
+            recordLatency(cmd, Operation.UPDATE, startNanos);
             if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled())
             {
                 NucleusLogger.DATASTORE_PERSIST.debug(LOCALISER_NEO4J.msg("Neo4j.ExecutionTime", 
                     (System.currentTimeMillis() - startTime)));
             }
         }
+        catch (NucleusOptimisticException noe)
+        {
+            Neo4jUtils.setRollbackOnly(mconn);
+            throw noe;
+        }
         catch (Exception e)
         {
             NucleusLogger.PERSISTENCE.error("Exception updating object " + op, e);
+            Neo4jUtils.setRollbackOnly(mconn);
             throw new NucleusDataStoreException("Exception updating object for " + op, e);
         }
         finally
@@ -504,33 +882,147 @@ public class Neo4jPersistenceHandler extends AbstractPersistenceHandler
         }
     }
 
-    /* (non-Javadoc)
-     * @see org.datanucleus.store.StorePersistenceHandler#deleteObject(org.datanucleus.store.ObjectProvider)
+    /**
+     * Method to record the latency of an operation on an object in the per-class statistics.
+     * @param cmd Metadata for the class of the object
+     * @param operation The operation
+     * @param startNanos Time (ns) at which the operation started
      */
-    public void deleteObject(ObjectProvider op)
+    protected void recordLatency(AbstractClassMetaData cmd, Operation operation, long startNanos)
     {
-        // Check if read-only so update not permitted
-        assertReadOnlyForUpdateOfObject(op);
+        ((Neo4jStoreManager)storeMgr).getStatistics().recordOperation(cmd.getFullClassName(), operation, System.nanoTime() - startNanos);
+    }
 
-        AbstractClassMetaData cmd = op.getClassMetaData();
-        ExecutionContext ec = op.getExecutionContext();
-        ManagedConnection mconn = storeMgr.getConnection(ec);
-        try
+    /**
+     * Method to record the latency of an operation on a batch of objects in the per-class statistics, as one sample
+     * (of the latency of the whole batch) for each class with objects in the batch.
+     * @param ops ObjectProviders of the objects
+     * @param operation The operation
+     * @param startNanos Time (ns) at which the operation started
+     */
+    protected void recordLatencies(ObjectProvider[] ops, Operation operation, long startNanos)
+    {
+        long nanos = System.nanoTime() - startNanos;
+        Neo4jStatistics stats = ((Neo4jStoreManager)storeMgr).getStatistics();
+        Set<String> classNames = new HashSet<String>();
+        for (ObjectProvider op : ops)
         {
-            GraphDatabaseService db = (GraphDatabaseService)mconn.getConnection();
-
-            PropertyContainer propObj = Neo4jUtils.getPropertyContainerForObjectProvider(db, op);
-            if (propObj == null)
+            if (classNames.add(op.getClassMetaData().getFullClassName()))
             {
-                throw new NucleusException("Attempt to delete " + op + " yet no Node/Relationship found! See the log for details");
+                stats.recordOperation(op.getClassMetaData().getFullClassName(), operation, nanos);
             }
+        }
+    }
 
-            // Invoke any cascade deletion
-            op.loadUnloadedFields();
-            int[] relMemberPosns = cmd.getRelationMemberPositions(ec.getClassLoaderResolver(), ec.getMetaDataManager());
+    /**
+     * Method to check, in an optimistic transaction, that the version of each of the specified (versioned) objects in
+     * the datastore is the version the object was read with. The Node/Relationship of each object is write-locked
+     * before its version is read, so the version can't change between this check and the write that follows it
+     * (except with a remote server, which doesn't support locking).
+     * Locks are taken in order of id, so that transactions checking overlapping batches can't deadlock.
+     * @param mconn The connection
+     * @param propObjs Node/Relationship of each object, keyed by ObjectProvider
+     * @throws NucleusOptimisticException if the datastore version of an object differs
+     */
+    protected void checkVersions(ManagedConnection mconn, Map<ObjectProvider, PropertyContainer> propObjs)
+    {
+        List<Map.Entry<ObjectProvider, PropertyContainer>> entriesToCheck = new ArrayList<Map.Entry<ObjectProvider, PropertyContainer>>();
+        for (Map.Entry<ObjectProvider, PropertyContainer> entry : propObjs.entrySet())
+        {
+            ObjectProvider op = entry.getKey();
+            if (op.getClassMetaData().isVersioned() && op.getTransactionalVersion() != null &&
+                op.getExecutionContext().getTransaction().getOptimistic())
+            {
+                entriesToCheck.add(entry);
+            }
+        }
+        if (entriesToCheck.isEmpty())
+        {
+            return;
+        }
+
+        Collections.sort(entriesToCheck, PROPCONTAINER_LOCK_ORDER);
+        for (Map.Entry<ObjectProvider, PropertyContainer> entry : entriesToCheck)
+        {
+            ObjectProvider op = entry.getKey();
+            PropertyContainer propObj = entry.getValue();
+            if (!((Neo4jStoreManager)storeMgr).isRemote())
+            {
+                // Lock it so it can't be updated by another transaction between the check and our write
+                Neo4jUtils.acquireWriteLock(mconn, propObj);
+            }
+
+            AbstractClassMetaData cmd = op.getClassMetaData();
+            VersionMetaData vermd = cmd.getVersionMetaDataForClass();
+            Object datastoreVersion = null;
+            if (vermd.getFieldName() != null)
+            {
+                // Version stored in a field
+                AbstractMemberMetaData verMmd = cmd.getMetaDataForMember(vermd.getFieldName());
+                Object storedValue = propObj.getProperty(getPersistencePlan(cmd, op.getExecutionContext()).getPropertyName(verMmd.getAbsoluteFieldNumber()), null);
+                if (storedValue != null)
+                {
+                    datastoreVersion = Neo4jUtils.getFieldValueFromStored(op.getExecutionContext(), verMmd, storedValue, FieldRole.ROLE_FIELD);
+                }
+            }
+            else
+            {
+                // Surrogate version
+                datastoreVersion = propObj.getProperty(getPersistencePlan(cmd, op.getExecutionContext()).getVersionPropertyName(), null);
+            }
+
+            if (!versionsEqual(op.getTransactionalVersion(), datastoreVersion))
+            {
+                throw new NucleusOptimisticException(LOCALISER_NEO4J.msg("Neo4j.Version.Mismatch", op.getObjectAsPrintable(),
+                    op.getInternalObjectId(), op.getTransactionalVersion(), datastoreVersion), op.getObject());
+            }
+        }
+    }
+
+    private static boolean versionsEqual(Object version, Object datastoreVersion)
+    {
+        if (version instanceof Number && datastoreVersion instanceof Number)
+        {
+            return ((Number)version).longValue() == ((Number)datastoreVersion).longValue();
+        }
+        else if (version instanceof Date && datastoreVersion instanceof Date)
+        {
+            return ((Date)version).getTime() == ((Date)datastoreVersion).getTime();
+        }
+        return version.equals(datastoreVersion);
+    }
+
+    /* (non-Javadoc)
+     * @see org.datanucleus.store.StorePersistenceHandler#deleteObject(org.datanucleus.store.ObjectProvider)
+     */
+    public void deleteObject(ObjectProvider op)
+    {
+        assertNotBulkLoad(op, "delete");
+
+        // Check if read-only so update not permitted
+        assertReadOnlyForUpdateOfObject(op);
+
+        AbstractClassMetaData cmd = op.getClassMetaData();
+        ExecutionContext ec = op.getExecutionContext();
+        ManagedConnection mconn = storeMgr.getConnection(ec);
+        try
+        {
+            GraphDatabaseService db = Neo4jUtils.getGraphDatabaseForWrite(mconn);
+
+            PropertyContainer propObj = Neo4jUtils.getPropertyContainerForObjectProvider(db, op);
+            if (propObj == null)
+            {
+                throw new NucleusException("Attempt to delete " + op + " yet no Node/Relationship found! See the log for details");
+            }
+            checkVersions(mconn, Collections.singletonMap(op, propObj));
+
+            // Invoke any cascade deletion
+            op.loadUnloadedFields();
+            int[] relMemberPosns = getPersistencePlan(cmd, ec).getRelationMemberPositions();
             op.provideFields(relMemberPosns, new DeleteFieldManager(op, true));
 
             long startTime = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
             if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled())
             {
                 NucleusLogger.DATASTORE_PERSIST.debug(LOCALISER_NEO4J.msg("Neo4j.Delete.Start", 
@@ -553,8 +1045,16 @@ public class Neo4jPersistenceHandler extends AbstractPersistenceHandler
                     rel.delete();
                 }
 
-                // Remove it from the DN_TYPES index
-                db.index().forNodes(Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX).remove(node);
+                if (!((Neo4jStoreManager)storeMgr).usesTypeNodes())
+                {
+                    // Remove it from the DN_TYPES index (when using type nodes its INSTANCE_OF Relationship was deleted above)
+                    db.index().forNodes(Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX).remove(node);
+                }
+                if (Neo4jUtils.classUsesIdentityIndex(storeMgr, cmd))
+                {
+                    // Remove it from the identity index
+                    Neo4jUtils.removeNodeFromIdentityIndex(db, node, cmd);
+                }
 
                 // Delete this object
                 if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled())
@@ -567,6 +1067,8 @@ public class Neo4jPersistenceHandler extends AbstractPersistenceHandler
             {
                 // TODO Cater for persistence as Relationship
             }
+            op.removeAssociatedValue(Neo4jStoreManager.OBJECT_PROVIDER_PROPCONTAINER);
+            ((Neo4jStoreManager)storeMgr).evictClassNameForObjectID(op.getInternalObjectId());
 
             if (ec.getStatistics() != null)
             {
@@ -574,15 +1076,22 @@ public class Neo4jPersistenceHandler extends AbstractPersistenceHandler
                 ec.getStatistics().incrementDeleteCount();
             }
 
+            recordLatency(cmd, Operation.DELETE, startNanos);
             if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled())
             {
                 NucleusLogger.DATASTORE_PERSIST.debug(LOCALISER_NEO4J.msg("Neo4j.ExecutionTime", 
                     (System.currentTimeMillis() - startTime)));
             }
         }
+        catch (NucleusOptimisticException noe)
+        {
+            Neo4jUtils.setRollbackOnly(mconn);
+            throw noe;
+        }
         catch (Exception e)
         {
             NucleusLogger.PERSISTENCE.error("Exception deleting object " + op, e);
+            Neo4jUtils.setRollbackOnly(mconn);
             throw new NucleusDataStoreException("Exception deleting object for " + op, e);
         }
         finally
@@ -591,18 +1100,199 @@ public class Neo4jPersistenceHandler extends AbstractPersistenceHandler
         }
     }
 
+    /**
+     * Method to delete a batch of objects. The Nodes of the objects not yet resolved are found together (per
+     * inheritance tree), the cascade deletes are run for all objects, and then the Relationships of all Nodes are
+     * collected and deleted once each (a Relationship between two objects of the batch is only deleted once),
+     * the Nodes removed from the indexes (obtaining each index once), and the Nodes deleted.
+     * @param ops ObjectProviders of the objects to delete
+     */
+    public void deleteObjects(ObjectProvider... ops)
+    {
+        if (ops.length == 1)
+        {
+            deleteObject(ops[0]);
+            return;
+        }
+
+        for (ObjectProvider op : ops)
+        {
+            assertNotBulkLoad(op, "delete");
+
+            // Check if read-only so update not permitted
+            assertReadOnlyForUpdateOfObject(op);
+        }
+
+        ExecutionContext ec = ops[0].getExecutionContext();
+        ManagedConnection mconn = storeMgr.getConnection(ec);
+        try
+        {
+            GraphDatabaseService db = Neo4jUtils.getGraphDatabaseForWrite(mconn);
+
+            // Find the Nodes/Relationships not cached with their ObjectProvider in one pass
+            List<ObjectProvider> unresolvedOPs = new ArrayList<ObjectProvider>();
+            for (ObjectProvider op : ops)
+            {
+                if (op.getAssociatedValue(Neo4jStoreManager.OBJECT_PROVIDER_PROPCONTAINER) == null)
+                {
+                    unresolvedOPs.add(op);
+                }
+            }
+            Map<ObjectProvider, PropertyContainer> resolved = Neo4jUtils.findPropertyContainersForObjectProviders(db, unresolvedOPs);
+            for (ObjectProvider op : unresolvedOPs)
+            {
+                PropertyContainer propObj = resolved.get(op);
+                if (propObj == null)
+                {
+                    throw new NucleusException("Attempt to delete " + op + " yet no Node/Relationship found! See the log for details");
+                }
+                op.setAssociatedValue(Neo4jStoreManager.OBJECT_PROVIDER_PROPCONTAINER, propObj);
+            }
+
+            // Check the versions of the whole batch before deleting any
+            Map<ObjectProvider, PropertyContainer> propObjs = new HashMap<ObjectProvider, PropertyContainer>();
+            for (ObjectProvider op : ops)
+            {
+                propObjs.put(op, (PropertyContainer)op.getAssociatedValue(Neo4jStoreManager.OBJECT_PROVIDER_PROPCONTAINER));
+            }
+            checkVersions(mconn, propObjs);
+
+            // Invoke any cascade deletion
+            for (ObjectProvider op : ops)
+            {
+                op.loadUnloadedFields();
+                int[] relMemberPosns = getPersistencePlan(op.getClassMetaData(), ec).getRelationMemberPositions();
+                op.provideFields(relMemberPosns, new DeleteFieldManager(op, true));
+            }
+
+            long startTime = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
+            if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled())
+            {
+                NucleusLogger.DATASTORE_PERSIST.debug(LOCALISER_NEO4J.msg("Neo4j.DeleteObjects.Start", 
+                    StringUtils.objectArrayToString(ops)));
+            }
+
+            // Collect the Nodes still to delete (a cascade could have deleted one of the batch already), and all of their Relationships
+            Map<ObjectProvider, Node> nodes = new LinkedHashMap<ObjectProvider, Node>();
+            Set<Relationship> rels = new HashSet<Relationship>();
+            for (ObjectProvider op : ops)
+            {
+                PropertyContainer propObj = (PropertyContainer)op.getAssociatedValue(Neo4jStoreManager.OBJECT_PROVIDER_PROPCONTAINER);
+                if (propObj instanceof Node)
+                {
+                    Node node = (Node)propObj;
+                    nodes.put(op, node);
+                    for (Relationship rel : node.getRelationships())
+                    {
+                        rels.add(rel);
+                    }
+                }
+                else if (propObj != null)
+                {
+                    // TODO Cater for persistence as Relationship
+                }
+            }
+
+            // Remove all Relationships for these Nodes
+            for (Relationship rel : rels)
+            {
+                if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled())
+                {
+                    NucleusLogger.DATASTORE_NATIVE.debug("Deleting relationship " + rel);
+                }
+                rel.delete();
+            }
+
+            // Remove them from the DN_TYPES index (when using type nodes their INSTANCE_OF Relationships were deleted above)
+            // and from the identity indexes, obtaining each index once
+            Index<Node> typeIdx = null;
+            if (!((Neo4jStoreManager)storeMgr).usesTypeNodes())
+            {
+                typeIdx = db.index().forNodes(Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX);
+            }
+            Map<String, Index<Node>> idIdxs = new HashMap<String, Index<Node>>();
+            for (Map.Entry<ObjectProvider, Node> entry : nodes.entrySet())
+            {
+                AbstractClassMetaData cmd = entry.getKey().getClassMetaData();
+                Node node = entry.getValue();
+                if (typeIdx != null)
+                {
+                    typeIdx.remove(node);
+                }
+                if (Neo4jUtils.classUsesIdentityIndex(storeMgr, cmd))
+                {
+                    String idxName = Neo4jUtils.getIdentityIndexName(cmd);
+                    Index<Node> idIdx = idIdxs.get(idxName);
+                    if (idIdx == null && !idIdxs.containsKey(idxName))
+                    {
+                        idIdx = (db.index().existsForNodes(idxName) ? db.index().forNodes(idxName) : null);
+                        idIdxs.put(idxName, idIdx);
+                    }
+                    if (idIdx != null)
+                    {
+                        idIdx.remove(node);
+                    }
+                }
+            }
+
+            // Delete the objects
+            for (Map.Entry<ObjectProvider, Node> entry : nodes.entrySet())
+            {
+                ObjectProvider op = entry.getKey();
+                if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled())
+                {
+                    NucleusLogger.DATASTORE_NATIVE.debug("Deleting " + op + " as " + entry.getValue());
+                }
+                entry.getValue().delete();
+                op.removeAssociatedValue(Neo4jStoreManager.OBJECT_PROVIDER_PROPCONTAINER);
+                ((Neo4jStoreManager)storeMgr).evictClassNameForObjectID(op.getInternalObjectId());
+
+                if (ec.getStatistics() != null)
+                {
+                    ec.getStatistics().incrementNumWrites();
+                    ec.getStatistics().incrementDeleteCount();
+                }
+            }
+
+            recordLatencies(ops, Operation.DELETE, startNanos);
+            if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled())
+            {
+                NucleusLogger.DATASTORE_PERSIST.debug(LOCALISER_NEO4J.msg("Neo4j.ExecutionTime", 
+                    (System.currentTimeMillis() - startTime)));
+            }
+        }
+        catch (NucleusOptimisticException noe)
+        {
+            Neo4jUtils.setRollbackOnly(mconn);
+            throw noe;
+        }
+        catch (Exception e)
+        {
+            NucleusLogger.PERSISTENCE.error("Exception deleting objects " + StringUtils.objectArrayToString(ops), e);
+            Neo4jUtils.setRollbackOnly(mconn);
+            throw new NucleusDataStoreException("Exception deleting objects", e);
+        }
+        finally
+        {
+            mconn.release();
+        }
+    }
+
     /* (non-Javadoc)
      * @see org.datanucleus.store.StorePersistenceHandler#fetchObject(org.datanucleus.store.ObjectProvider, int[])
      */
     public void fetchObject(ObjectProvider op, int[] fieldNumbers)
     {
+        assertNotBulkLoad(op, "fetch");
+
         AbstractClassMetaData cmd = op.getClassMetaData();
 
         ExecutionContext ec = op.getExecutionContext();
         ManagedConnection mconn = storeMgr.getConnection(ec);
         try
         {
-            GraphDatabaseService db = (GraphDatabaseService)mconn.getConnection();
+            GraphDatabaseService db = Neo4jUtils.getGraphDatabase(mconn);
 
             if (NucleusLogger.DATASTORE_RETRIEVE.isDebugEnabled())
             {
@@ -623,6 +1313,7 @@ public class Neo4jPersistenceHandler extends AbstractPersistenceHandler
             }
 
             long startTime = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
             if (NucleusLogger.DATASTORE_RETRIEVE.isDebugEnabled())
             {
                 NucleusLogger.DATASTORE_RETRIEVE.debug(LOCALISER_NEO4J.msg("Neo4j.Fetch.Start", 
@@ -635,6 +1326,11 @@ public class Neo4jPersistenceHandler extends AbstractPersistenceHandler
             {
                 throw new NucleusObjectNotFoundException("Datastore object for " + op + " is not found");
             }
+            if (Neo4jUtils.useWriteLockForClass(ec, cmd))
+            {
+                // Serialise reads of this object
+                Neo4jUtils.acquireWriteLock(mconn, propObj);
+            }
 
             // Retrieve the fields required
             FieldManager fm = new FetchFieldManager(op, propObj);
@@ -653,12 +1349,13 @@ public class Neo4jPersistenceHandler extends AbstractPersistenceHandler
                 else
                 {
                     // Surrogate version
-                    String propName = storeMgr.getNamingFactory().getColumnName(cmd, ColumnType.VERSION_COLUMN);
+                    String propName = getPersistencePlan(cmd, ec).getVersionPropertyName();
                     Object datastoreVersion = propObj.getProperty(propName);
                     op.setVersion(datastoreVersion);
                 }
             }
 
+            recordLatency(cmd, Operation.FETCH, startNanos);
             if (NucleusLogger.DATASTORE_RETRIEVE.isDebugEnabled())
             {
                 NucleusLogger.DATASTORE_RETRIEVE.debug(LOCALISER_NEO4J.msg("Neo4j.ExecutionTime",
@@ -680,11 +1377,157 @@ public class Neo4jPersistenceHandler extends AbstractPersistenceHandler
         }
     }
 
+    /**
+     * Method to fetch the specified fields of a batch of objects (of the same ExecutionContext) in one pass, using a
+     * single connection. The Nodes/Relationships of objects not already cached with their ObjectProvider are found
+     * together (per inheritance tree), and the objects are then processed grouped by class.
+     * @param fieldNumbers Absolute numbers of the fields to fetch (for objects of a subclass, fields of the subclass
+     *     are numbered as for the subclass, so those of a common superclass are valid for all)
+     * @param ops ObjectProviders of the objects
+     * @throws NucleusObjectNotFoundException if the datastore object of any of the objects is not found
+     */
+    public void fetchObjects(int[] fieldNumbers, ObjectProvider... ops)
+    {
+        if (ops == null || ops.length == 0)
+        {
+            return;
+        }
+        else if (ops.length == 1)
+        {
+            fetchObject(ops[0], fieldNumbers);
+            return;
+        }
+
+        Map<AbstractClassMetaData, List<ObjectProvider>> opsByClass = new LinkedHashMap<AbstractClassMetaData, List<ObjectProvider>>();
+        for (ObjectProvider op : ops)
+        {
+            assertNotBulkLoad(op, "fetch");
+            List<ObjectProvider> opsForClass = opsByClass.get(op.getClassMetaData());
+            if (opsForClass == null)
+            {
+                opsForClass = new ArrayList<ObjectProvider>();
+                opsByClass.put(op.getClassMetaData(), opsForClass);
+            }
+            opsForClass.add(op);
+        }
+
+        ExecutionContext ec = ops[0].getExecutionContext();
+        ManagedConnection mconn = storeMgr.getConnection(ec);
+        try
+        {
+            GraphDatabaseService db = Neo4jUtils.getGraphDatabase(mconn);
+
+            long startTime = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
+            if (NucleusLogger.DATASTORE_RETRIEVE.isDebugEnabled())
+            {
+                NucleusLogger.DATASTORE_RETRIEVE.debug(LOCALISER_NEO4J.msg("Neo4j.FetchObjects.Start",
+                    StringUtils.intArrayToString(fieldNumbers), StringUtils.objectArrayToString(ops)));
+            }
+
+            // Find the Nodes/Relationships not cached with their ObjectProvider in one pass
+            List<ObjectProvider> unresolvedOPs = new ArrayList<ObjectProvider>();
+            for (ObjectProvider op : ops)
+            {
+                if (op.getAssociatedValue(Neo4jStoreManager.OBJECT_PROVIDER_PROPCONTAINER) == null)
+                {
+                    unresolvedOPs.add(op);
+                }
+            }
+            Map<ObjectProvider, PropertyContainer> resolved = Neo4jUtils.findPropertyContainersForObjectProviders(db, unresolvedOPs);
+            for (ObjectProvider op : unresolvedOPs)
+            {
+                PropertyContainer propObj = resolved.get(op);
+                if (propObj == null)
+                {
+                    throw new NucleusObjectNotFoundException("Datastore object for " + op + " is not found");
+                }
+                op.setAssociatedValue(Neo4jStoreManager.OBJECT_PROVIDER_PROPCONTAINER, propObj);
+            }
+
+            // Serialise reads of the objects of any classes requiring it, locking all before reading any
+            List<PropertyContainer> propObjsToLock = new ArrayList<PropertyContainer>();
+            for (Map.Entry<AbstractClassMetaData, List<ObjectProvider>> entry : opsByClass.entrySet())
+            {
+                if (Neo4jUtils.useWriteLockForClass(ec, entry.getKey()))
+                {
+                    for (ObjectProvider op : entry.getValue())
+                    {
+                        propObjsToLock.add((PropertyContainer)op.getAssociatedValue(Neo4jStoreManager.OBJECT_PROVIDER_PROPCONTAINER));
+                    }
+                }
+            }
+            Neo4jUtils.acquireWriteLocks(mconn, propObjsToLock);
+
+            for (Map.Entry<AbstractClassMetaData, List<ObjectProvider>> entry : opsByClass.entrySet())
+            {
+                AbstractClassMetaData cmd = entry.getKey();
+
+                // Work out how the version is retrieved for objects of this class
+                VersionMetaData vermd = (cmd.isVersioned() ? cmd.getVersionMetaDataForClass() : null);
+                int verFieldNumber = -1;
+                String verPropName = null;
+                if (vermd != null)
+                {
+                    if (vermd.getFieldName() != null)
+                    {
+                        verFieldNumber = cmd.getAbsolutePositionOfMember(vermd.getFieldName());
+                    }
+                    else
+                    {
+                        verPropName = getPersistencePlan(cmd, ec).getVersionPropertyName();
+                    }
+                }
+
+                for (ObjectProvider op : entry.getValue())
+                {
+                    PropertyContainer propObj = (PropertyContainer)op.getAssociatedValue(Neo4jStoreManager.OBJECT_PROVIDER_PROPCONTAINER);
+                    op.replaceFields(fieldNumbers, new FetchFieldManager(op, propObj));
+
+                    if (vermd != null && op.getTransactionalVersion() == null)
+                    {
+                        // No version set, so retrieve it
+                        op.setVersion(verFieldNumber >= 0 ? op.provideField(verFieldNumber) : propObj.getProperty(verPropName));
+                    }
+                }
+            }
+
+            recordLatencies(ops, Operation.FETCH, startNanos);
+            if (NucleusLogger.DATASTORE_RETRIEVE.isDebugEnabled())
+            {
+                NucleusLogger.DATASTORE_RETRIEVE.debug(LOCALISER_NEO4J.msg("Neo4j.ExecutionTime",
+                    (System.currentTimeMillis() - startTime)));
+            }
+            if (ec.getStatistics() != null)
+            {
+                for (int i=0;i<ops.length;i++)
+                {
+                    ec.getStatistics().incrementFetchCount();
+                }
+            }
+        }
+        catch (NucleusObjectNotFoundException onfe)
+        {
+            throw onfe;
+        }
+        catch (Exception e)
+        {
+            NucleusLogger.DATASTORE_RETRIEVE.error("Exception on fetch of fields", e);
+            throw new NucleusDataStoreException("Exception on fetch of fields", e);
+        }
+        finally
+        {
+            mconn.release();
+        }
+    }
+
     /* (non-Javadoc)
      * @see org.datanucleus.store.StorePersistenceHandler#locateObject(org.datanucleus.store.ObjectProvider)
      */
     public void locateObject(ObjectProvider op)
     {
+        assertNotBulkLoad(op, "locate");
+
         final AbstractClassMetaData cmd = op.getClassMetaData();
         if (cmd.getIdentityType() == IdentityType.APPLICATION || 
             cmd.getIdentityType() == IdentityType.DATASTORE)
@@ -693,12 +1536,19 @@ public class Neo4jPersistenceHandler extends AbstractPersistenceHandler
             ManagedConnection mconn = storeMgr.getConnection(ec);
             try
             {
-                GraphDatabaseService db = (GraphDatabaseService)mconn.getConnection();
+                GraphDatabaseService db = Neo4jUtils.getGraphDatabase(mconn);
+                long startNanos = System.nanoTime();
                 PropertyContainer propObj = Neo4jUtils.getPropertyContainerForObjectProvider(db, op);
                 if (propObj == null)
                 {
                     throw new NucleusObjectNotFoundException("Object not found for id=" + op.getInternalObjectId());
                 }
+                if (Neo4jUtils.useWriteLockForClass(ec, cmd))
+                {
+                    // Serialise reads of this object
+                    Neo4jUtils.acquireWriteLock(mconn, propObj);
+                }
+                recordLatency(cmd, Operation.LOCATE, startNanos);
             }
             finally
             {
@@ -707,11 +1557,128 @@ public class Neo4jPersistenceHandler extends AbstractPersistenceHandler
         }
     }
 
-    /* (non-Javadoc)
-     * @see org.datanucleus.store.StorePersistenceHandler#findObject(org.datanucleus.store.ExecutionContext, java.lang.Object)
+    /**
+     * Method to find the object with the specified identity directly from its Node/Relationship, so that the Node
+     * is found once, the object is created as an instance of the class it is stored as, its fetch plan fields are
+     * loaded, and the Node is cached with its ObjectProvider for later operations.
+     * Returns null when the object isn't found (or the identity isn't supported here), leaving DataNucleus to
+     * create a hollow object and validate it as usual.
+     * @param ec ExecutionContext
+     * @param id Identity of the object
+     * @return The object (or null)
      */
     public Object findObject(ExecutionContext ec, Object id)
     {
-        return null;
+        if (id == null || id instanceof SCOID || ((Neo4jStoreManager)storeMgr).isBulkLoad())
+        {
+            return null;
+        }
+
+        ClassLoaderResolver clr = ec.getClassLoaderResolver();
+        String className = ((Neo4jStoreManager)storeMgr).getDeclaredClassNameForObjectID(id, clr, ec);
+        AbstractClassMetaData cmd = (className != null ? ec.getMetaDataManager().getMetaDataForClass(className, clr) : null);
+        if (cmd == null ||
+            (cmd.getIdentityType() != IdentityType.APPLICATION && cmd.getIdentityType() != IdentityType.DATASTORE))
+        {
+            return null;
+        }
+
+        ManagedConnection mconn = storeMgr.getConnection(ec);
+        try
+        {
+            GraphDatabaseService db = Neo4jUtils.getGraphDatabase(mconn);
+
+            long startTime = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
+            if (NucleusLogger.DATASTORE_RETRIEVE.isDebugEnabled())
+            {
+                NucleusLogger.DATASTORE_RETRIEVE.debug(LOCALISER_NEO4J.msg("Neo4j.Find.Start", id));
+            }
+
+            PropertyContainer propObj = Neo4jUtils.getPropertyContainerForObjectId(db, ec, cmd, id);
+            if (propObj == null)
+            {
+                return null;
+            }
+
+            // Create the object as the type it is stored as, with the identity it would have if found by a query
+            AbstractClassMetaData propObjCmd = Neo4jUtils.getClassMetaDataForPropertyContainer(propObj, ec, cmd);
+            if (Neo4jUtils.useWriteLockForClass(ec, propObjCmd))
+            {
+                // Serialise reads of this object
+                Neo4jUtils.acquireWriteLock(mconn, propObj);
+            }
+            Object objId = Neo4jUtils.getIdentityForPropertyContainer(propObj, propObjCmd, ec);
+            if (!objId.equals(id))
+            {
+                Object pc = ec.getObjectFromCache(objId);
+                if (pc != null)
+                {
+                    return pc;
+                }
+            }
+
+            final int[] fpMembers = ec.getFetchPlan().getFetchPlanForClass(propObjCmd).getMemberNumbers();
+            final FieldManager fm = new FetchFieldManager(ec, propObj, propObjCmd);
+            ObjectProvider op = ec.getNucleusContext().getObjectProviderFactory().newForHollow(ec,
+                clr.classForName(propObjCmd.getFullClassName()), objId, new FieldValues()
+            {
+                public void fetchFields(ObjectProvider op)
+                {
+                    op.replaceFields(fpMembers, fm);
+                }
+                public void fetchNonLoadedFields(ObjectProvider op)
+                {
+                    op.replaceNonLoadedFields(fpMembers, fm);
+                }
+                public FetchPlan getFetchPlanForLoading()
+                {
+                    return null;
+                }
+            });
+            op.setAssociatedValue(Neo4jStoreManager.OBJECT_PROVIDER_PROPCONTAINER, propObj);
+
+            if (propObjCmd.isVersioned())
+            {
+                // Set the version on the retrieved object
+                VersionMetaData vermd = propObjCmd.getVersionMetaDataForClass();
+                if (vermd.getFieldName() != null)
+                {
+                    // Version stored in a field
+                    op.setVersion(op.provideField(propObjCmd.getAbsolutePositionOfMember(vermd.getFieldName())));
+                }
+                else
+                {
+                    // Surrogate version
+                    String propName = getPersistencePlan(propObjCmd, ec).getVersionPropertyName();
+                    op.setVersion(propObj.getProperty(propName));
+                }
+            }
+
+            recordLatency(propObjCmd, Operation.FETCH, startNanos);
+            if (NucleusLogger.DATASTORE_RETRIEVE.isDebugEnabled())
+            {
+                NucleusLogger.DATASTORE_RETRIEVE.debug(LOCALISER_NEO4J.msg("Neo4j.ExecutionTime",
+                    (System.currentTimeMillis() - startTime)));
+            }
+            if (ec.getStatistics() != null)
+            {
+                ec.getStatistics().incrementFetchCount();
+            }
+            return op.getObject();
+        }
+        catch (NucleusException ne)
+        {
+            throw ne;
+        }
+        catch (Exception e)
+        {
+            NucleusLogger.DATASTORE_RETRIEVE.error("Exception finding object with id=" + id, e);
+            throw new NucleusDataStoreException("Exception finding object with id=" + id, e);
+        }
+        finally
+        {
+            mconn.release();
+        }
     }
 }
\ No newline at end of file
@@ -17,18 +17,39 @@ Contributors:
 **********************************************************************/
 package org.datanucleus.store.neo4j;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.datanucleus.ClassLoaderResolver;
 import org.datanucleus.ExecutionContext;
 import org.datanucleus.PersistenceNucleusContext;
+import org.datanucleus.exceptions.NucleusUserException;
 import org.datanucleus.identity.SCOID;
+import org.datanucleus.management.ManagementManager;
 import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.metadata.FieldRole;
 import org.datanucleus.store.AbstractStoreManager;
 import org.datanucleus.store.StoreManager;
+import org.datanucleus.store.connection.ManagedConnection;
+import org.datanucleus.store.neo4j.management.Neo4jStatistics;
+import org.datanucleus.util.ClassUtils;
+import org.datanucleus.util.NucleusLogger;
+import org.datanucleus.util.StringUtils;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.IndexHits;
 
 /**
  * StoreManager for persisting to Neo4j.
@@ -41,6 +62,21 @@ public class Neo4jStoreManager extends AbstractStoreManager
     public static String PROPCONTAINER_TYPE_INDEX = "DN_TYPES";
     public static String PROPCONTAINER_TYPE_INDEX_KEY = "class";
 
+    /** Name of the index of type nodes (when using type nodes), keyed by class name like "DN_TYPES". */
+    public static String PROPCONTAINER_TYPE_NODE_INDEX = "DN_TYPE_NODES";
+
+    /** Name of the index of class nodes, keyed by class name ("class") and by class id ("id"). */
+    public static String PROPCONTAINER_CLASS_ID_INDEX = "DN_CLASS_IDS";
+
+    /** Prefix for the name of the index (per inheritance tree) of Nodes keyed by class name and identity. */
+    public static String PROPCONTAINER_IDENTITY_INDEX_PREFIX = "DN_IDENTITY_";
+
+    /** Configuration key of an identity index set to "true" once every Node of its inheritance tree is registered in it. */
+    public static String IDENTITY_INDEX_COMPLETE_CONFIG = "datanucleus.complete";
+
+    /** Number of Nodes updated in each Neo4j transaction by the maintenance operations (rebuilding indexes etc). */
+    protected static final int MAINTENANCE_BATCH_SIZE = 1000;
+
     public static String RELATIONSHIP_FIELD_NAME = "DN_FIELD_NAME";
     public static String RELATIONSHIP_FIELD_NAME_NONOWNER = "DN_FIELD_NAME_NONOWNER";
     public static String RELATIONSHIP_INDEX_NAME = "DN_CONTAINER_INDEX";
@@ -53,6 +89,103 @@ public class Neo4jStoreManager extends AbstractStoreManager
     /** key used in metadata for whether a class is persisted as an attributed relation (Relationship) */
     public static String METADATA_ATTRIBUTED_RELATION = "attributed-relation";
 
+    /** Persistence property to open the store in bulk-load mode, writing via a BatchInserter (inserts only). */
+    public static final String PROPERTY_BULK_LOAD = "datanucleus.neo4j.bulkLoad";
+
+    /** Persistence property to start the Neo4j transaction of transactional connections only when first writing. */
+    public static final String PROPERTY_DEFER_TRANSACTION_START = "datanucleus.neo4j.deferTransactionStart";
+
+    /**
+     * Persistence property for the max number of non-transactional writes (of an ExecutionContext) to commit together
+     * in one Neo4j transaction. Embedded databases only. If any write of a group fails then all writes of the group
+     * are rolled back, including those of earlier operations that returned successfully. A read by the
+     * ExecutionContext commits its pending group first, so that it sees its own writes.
+     */
+    public static final String PROPERTY_GROUP_COMMIT_MAX_OPERATIONS = "datanucleus.neo4j.groupCommit.maxOperations";
+
+    /**
+     * Persistence property for the max time (ms) that non-transactional writes are held for committing as a group.
+     * Must be positive when using group commit, since the pending writes hold their locks until committed.
+     */
+    public static final String PROPERTY_GROUP_COMMIT_MAX_MILLIS = "datanucleus.neo4j.groupCommit.maxMillis";
+
+    /**
+     * Persistence property for whether to send the writes of each transaction to a remote server as one batch request.
+     * The writes are only on the server once the transaction commits, so queries in the transaction don't see them.
+     */
+    public static final String PROPERTY_REMOTE_BATCH_TRANSACTIONS = "datanucleus.neo4j.remote.batchTransactions";
+
+    /** Persistence property for the classes (comma-separated, or "*" for all known) whose Nodes are read to warm the caches at startup. */
+    public static final String PROPERTY_WARM_UP = "datanucleus.neo4j.warmUp";
+
+    /** Persistence property for the number of threads to use for the startup cache warm-up. */
+    public static final String PROPERTY_WARM_UP_THREADS = "datanucleus.neo4j.warmUp.threads";
+
+    /** Persistence property for the max time (ms) to spend on the startup cache warm-up. */
+    public static final String PROPERTY_WARM_UP_MAX_MILLIS = "datanucleus.neo4j.warmUp.maxMillis";
+
+    /**
+     * Persistence property for how inserts check that no object exists with the same identity. "read" (default) looks
+     * up the identities before inserting, whereas "index" relies on registering the identity in the identity index
+     * only if absent, so needs no read (only applies to classes using the identity index, once the index is complete).
+     */
+    public static final String PROPERTY_IDENTITY_UNIQUENESS_CHECK = "datanucleus.neo4j.identityUniquenessCheck";
+
+    /**
+     * Persistence property for how the type of each Node is recorded. "index" (default) registers each Node in the
+     * "DN_TYPES" index under its class and superclasses, whereas "typeNodes" relates each Node to a type node for its
+     * class, so inserts, deletes and extent scans don't use Lucene. Either way each Node has a class id property.
+     * Relating a Node to its type node locks the type node until the transaction ends, so with "typeNodes"
+     * concurrent transactions inserting or deleting objects of the same class are serialised; "index" takes no lock
+     * on any Node shared by the objects of a class.
+     */
+    public static final String PROPERTY_TYPE_MEMBERSHIP = "datanucleus.neo4j.typeMembership";
+
+    /**
+     * Persistence property for the max number of identities (of classes with subclasses) whose concrete class name
+     * is cached, avoiding a datastore lookup when finding an object by identity. 0 disables the cache.
+     */
+    public static final String PROPERTY_IDENTITY_CLASS_CACHE_SIZE = "datanucleus.neo4j.identityClassCacheSize";
+
+    /**
+     * Cypher ExecutionEngines shared by all users of this store.
+     * Created on first use, since the connection factories use it during the superclass constructor.
+     */
+    private volatile CypherEngineRegistry cypherEngines;
+
+    /** Statistics for this store. Created on first use, like the Cypher engines. */
+    private volatile Neo4jStatistics statistics;
+
+    /** Class ids of this store, and its type nodes when using type nodes. */
+    protected TypeNodeRegistry typeNodes;
+
+    /** Cache of the concrete class name for identities of classes with subclasses (null if disabled). */
+    protected IdentityClassNameCache identityClassNames = null;
+
+    /**
+     * Codecs for the members of each class, keyed by class name. Indexed by the absolute member number and the role
+     * of the values (field, element, map key, map value), and created on first use.
+     */
+    private final ConcurrentMap<String, AtomicReferenceArray<ValueCodec>> memberCodecs = new ConcurrentHashMap<String, AtomicReferenceArray<ValueCodec>>();
+
+    /** Codecs for values not held by a known member, keyed by the type of the value. */
+    private final ConcurrentMap<Class, ValueCodec> typeCodecs = new ConcurrentHashMap<Class, ValueCodec>();
+
+    /** Persistence plan of each class, keyed by class name, and created on first use. */
+    private final ConcurrentMap<String, PersistencePlan> persistencePlans = new ConcurrentHashMap<String, PersistencePlan>();
+
+    /** Names of the identity indexes known to be complete (an index, once complete, stays complete). */
+    private final Set<String> completeIdentityIndexes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** Number of Nodes found by Cypher that were missing from an (incomplete) identity index, keyed by index name. */
+    private final ConcurrentMap<String, AtomicLong> identityIndexMisses = new ConcurrentHashMap<String, AtomicLong>();
+
+    /** Name of the statistics MBean, when registered with JMX. */
+    protected String statisticsMBeanName = null;
+
+    /** Loader when the store is in bulk-load mode. */
+    protected Neo4jBulkLoader bulkLoader = null;
+
     /**
      * Constructor for a Neo4j StoreManager.
      * @param clr ClassLoader resolver
@@ -63,10 +196,230 @@ public class Neo4jStoreManager extends AbstractStoreManager
     {
         super("neo4j", clr, nucleusContext, props);
 
+        if (isBulkLoad() && usesTypeNodes())
+        {
+            throw new NucleusUserException("Neo4j bulk-load mode is not supported when using type nodes (" + PROPERTY_TYPE_MEMBERSHIP + ")");
+        }
+        typeNodes = new TypeNodeRegistry(usesTypeNodes());
+
         // Handler for persistence process
         persistenceHandler = new Neo4jPersistenceHandler(this);
 
+        int identityClassCacheSize = getIntProperty(PROPERTY_IDENTITY_CLASS_CACHE_SIZE);
+        if (identityClassCacheSize > 0 && !isBulkLoad())
+        {
+            identityClassNames = new IdentityClassNameCache(identityClassCacheSize);
+        }
+
         logConfiguration();
+
+        ManagementManager mgmtMgr = nucleusContext.getJMXManager();
+        if (mgmtMgr != null)
+        {
+            // Register MBean for the statistics of this store
+            statisticsMBeanName = mgmtMgr.getDomainName() + ":InstanceName=" + mgmtMgr.getInstanceName() +
+                ",Type=" + ClassUtils.getClassNameForClass(Neo4jStatistics.class) + ",Name=Neo4jStatistics";
+            mgmtMgr.registerMBean(getStatistics(), statisticsMBeanName);
+        }
+
+        String warmUpClasses = getStringProperty(PROPERTY_WARM_UP);
+        if (!StringUtils.isWhitespace(warmUpClasses))
+        {
+            warmCaches(warmUpClasses, clr);
+        }
+    }
+
+    /**
+     * Method to warm the Neo4j caches by reading the Nodes (and their Relationships) of the specified classes
+     * and their subclasses, or of all classes with metadata when "*" is specified.
+     * @param classNamesStr Comma-separated names of the classes, or "*"
+     * @param clr ClassLoader resolver
+     */
+    protected void warmCaches(String classNamesStr, ClassLoaderResolver clr)
+    {
+        if (isBulkLoad() || isRemote())
+        {
+            NucleusLogger.DATASTORE.info("Neo4j cache warm-up is only supported for embedded databases so is ignored");
+            return;
+        }
+
+        Set<String> classNames = new HashSet<String>();
+        if (classNamesStr.trim().equals("*"))
+        {
+            classNames.addAll(getMetaDataManager().getClassesWithMetaData());
+        }
+        else
+        {
+            String[] names = classNamesStr.split(",");
+            for (int i=0;i<names.length;i++)
+            {
+                String className = names[i].trim();
+                if (getMetaDataManager().getMetaDataForClass(className, clr) == null)
+                {
+                    NucleusLogger.DATASTORE.warn("Class " + className + " specified for Neo4j cache warm-up is not persistable so is ignored");
+                    continue;
+                }
+                classNames.add(className);
+                String[] subclassNames = getMetaDataManager().getSubclassesForClass(className, true);
+                if (subclassNames != null)
+                {
+                    classNames.addAll(Arrays.asList(subclassNames));
+                }
+            }
+        }
+        if (classNames.isEmpty())
+        {
+            NucleusLogger.DATASTORE.info("Neo4j cache warm-up has no known classes to warm");
+            return;
+        }
+
+        ManagedConnection mconn = getConnection(-1);
+        try
+        {
+            GraphDatabaseService db = (GraphDatabaseService)mconn.getConnection();
+            new CacheWarmer(db, usesTypeNodes() ? typeNodes : null).warm(classNames, getIntProperty(PROPERTY_WARM_UP_THREADS), getIntProperty(PROPERTY_WARM_UP_MAX_MILLIS));
+        }
+        finally
+        {
+            mconn.release();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.datanucleus.store.AbstractStoreManager#close()
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (statisticsMBeanName != null)
+        {
+            nucleusContext.getJMXManager().deregisterMBean(statisticsMBeanName);
+            statisticsMBeanName = null;
+        }
+
+        getCypherEngineRegistry().close();
+        typeNodes.clear();
+        if (identityClassNames != null)
+        {
+            identityClassNames.clear();
+        }
+        memberCodecs.clear();
+        typeCodecs.clear();
+        persistencePlans.clear();
+        completeIdentityIndexes.clear();
+        identityIndexMisses.clear();
+        super.close();
+
+        if (bulkLoader != null)
+        {
+            // Write all bulk loaded data to the store
+            bulkLoader.shutdown();
+            bulkLoader = null;
+        }
+    }
+
+    /**
+     * Accessor for whether this store is in bulk-load mode, where objects are written via a BatchInserter
+     * and only inserts are supported.
+     * @return Whether in bulk-load mode
+     */
+    public boolean isBulkLoad()
+    {
+        return getBooleanProperty(PROPERTY_BULK_LOAD);
+    }
+
+    /**
+     * Accessor for whether the uniqueness of identity of inserted objects is enforced by the identity index
+     * (rather than by looking up the identities before inserting).
+     * @return Whether identity uniqueness is enforced by the index
+     */
+    public boolean isIdentityUniquenessFromIndex()
+    {
+        return "index".equalsIgnoreCase(getStringProperty(PROPERTY_IDENTITY_UNIQUENESS_CHECK));
+    }
+
+    /**
+     * Accessor for whether the type of each Node is recorded using type nodes (rather than the "DN_TYPES" index).
+     * @return Whether using type nodes
+     */
+    public boolean usesTypeNodes()
+    {
+        return "typeNodes".equalsIgnoreCase(getStringProperty(PROPERTY_TYPE_MEMBERSHIP));
+    }
+
+    /**
+     * Accessor for the registry of the class ids of the Nodes of objects, and of the type nodes when using type nodes.
+     * @return The type node registry
+     */
+    public TypeNodeRegistry getTypeNodeRegistry()
+    {
+        return typeNodes;
+    }
+
+    /**
+     * Accessor for whether this store is a remote Neo4j server, accessed via its REST API.
+     * @return Whether remote
+     */
+    public boolean isRemote()
+    {
+        String url = getConnectionURL();
+        return url != null && (url.startsWith("neo4j:http:") || url.startsWith("neo4j:https:"));
+    }
+
+    /**
+     * Accessor for the loader for this store when in bulk-load mode, opening the store if not yet open.
+     * The loader is shared by all connections since only one BatchInserter can be open on a store.
+     * @param storeDir Directory of the Neo4j store
+     * @param config Any config for the store (or null)
+     * @return The bulk loader
+     */
+    public synchronized Neo4jBulkLoader getBulkLoader(String storeDir, Map<String, String> config)
+    {
+        if (bulkLoader == null)
+        {
+            bulkLoader = new Neo4jBulkLoader(storeDir, config);
+        }
+        return bulkLoader;
+    }
+
+    /**
+     * Accessor for the registry of Cypher ExecutionEngines to use when executing Cypher against this store.
+     * @return The Cypher engine registry
+     */
+    public CypherEngineRegistry getCypherEngineRegistry()
+    {
+        if (cypherEngines == null)
+        {
+            synchronized (this)
+            {
+                if (cypherEngines == null)
+                {
+                    cypherEngines = new CypherEngineRegistry();
+                }
+            }
+        }
+        return cypherEngines;
+    }
+
+    /**
+     * Accessor for the statistics of this store (connections, transactions, Cypher execution, per-class operation
+     * latencies, and Neo4j kernel).
+     * These are also available via JMX when enabled.
+     * @return The statistics
+     */
+    public Neo4jStatistics getStatistics()
+    {
+        if (statistics == null)
+        {
+            synchronized (this)
+            {
+                if (statistics == null)
+                {
+                    statistics = new Neo4jStatistics(getCypherEngineRegistry());
+                }
+            }
+        }
+        return statistics;
     }
 
     public Collection getSupportedOptions()
@@ -108,8 +461,449 @@ public class Neo4jStoreManager extends AbstractStoreManager
             return rootClassName;
         }
 
+        if (identityClassNames != null)
+        {
+            String className = identityClassNames.get(id);
+            if (className != null)
+            {
+                return className;
+            }
+        }
+
         AbstractClassMetaData rootCmd = getMetaDataManager().getMetaDataForClass(rootClassName, clr);
-        return Neo4jUtils.getClassNameForIdentity(id, rootCmd, ec, clr);
+        String className = Neo4jUtils.getClassNameForIdentity(id, rootCmd, ec, clr);
+        if (className != null && identityClassNames != null)
+        {
+            identityClassNames.put(id, className);
+        }
+        return className;
+    }
+
+    /**
+     * Accessor for the persistence plan of the specified class, creating it on first use.
+     * @param cmd Metadata for the class
+     * @param clr ClassLoader resolver
+     * @return The persistence plan
+     */
+    public PersistencePlan getPersistencePlan(AbstractClassMetaData cmd, ClassLoaderResolver clr)
+    {
+        PersistencePlan plan = persistencePlans.get(cmd.getFullClassName());
+        if (plan == null || plan.getClassMetaData() != cmd)
+        {
+            // Not yet created, or for metadata since replaced
+            plan = new PersistencePlan(cmd, this, clr);
+            persistencePlans.put(cmd.getFullClassName(), plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Accessor for the codec converting values of the specified member (in the specified role) to/from the values
+     * stored in Neo4j, creating it on first use.
+     * @param mmd Metadata for the member (or null if the values are not of a known member)
+     * @param fieldRole Role of the values (see FieldRole)
+     * @param valueType Type of the value, used when the member is not known
+     * @param ec ExecutionContext
+     * @return The codec
+     */
+    public ValueCodec getValueCodec(AbstractMemberMetaData mmd, int fieldRole, Class valueType, ExecutionContext ec)
+    {
+        if (mmd == null)
+        {
+            ValueCodec codec = typeCodecs.get(valueType);
+            if (codec == null)
+            {
+                codec = ValueCodec.forType(valueType, null, ec.getTypeManager());
+                typeCodecs.put(valueType, codec);
+            }
+            return codec;
+        }
+
+        AbstractClassMetaData cmd = mmd.getAbstractClassMetaData();
+        int roleSlot = getValueCodecRoleSlot(fieldRole);
+        if (cmd == null || roleSlot < 0 || mmd.getAbsoluteFieldNumber() < 0)
+        {
+            // Member not of a class (e.g embedded), so not cached
+            return ValueCodec.forMember(mmd, fieldRole, ec.getClassLoaderResolver(), ec.getTypeManager());
+        }
+
+        AtomicReferenceArray<ValueCodec> codecs = memberCodecs.get(cmd.getFullClassName());
+        if (codecs == null)
+        {
+            codecs = new AtomicReferenceArray<ValueCodec>((cmd.getNoOfInheritedManagedMembers() + cmd.getNoOfManagedMembers()) * 4);
+            AtomicReferenceArray<ValueCodec> existing = memberCodecs.putIfAbsent(cmd.getFullClassName(), codecs);
+            if (existing != null)
+            {
+                codecs = existing;
+            }
+        }
+
+        int index = mmd.getAbsoluteFieldNumber() * 4 + roleSlot;
+        if (index >= codecs.length())
+        {
+            return ValueCodec.forMember(mmd, fieldRole, ec.getClassLoaderResolver(), ec.getTypeManager());
+        }
+        ValueCodec codec = codecs.get(index);
+        if (codec == null)
+        {
+            codec = ValueCodec.forMember(mmd, fieldRole, ec.getClassLoaderResolver(), ec.getTypeManager());
+            codecs.set(index, codec);
+        }
+        return codec;
+    }
+
+    private static int getValueCodecRoleSlot(int fieldRole)
+    {
+        if (fieldRole == FieldRole.ROLE_FIELD)
+        {
+            return 0;
+        }
+        else if (fieldRole == FieldRole.ROLE_COLLECTION_ELEMENT || fieldRole == FieldRole.ROLE_ARRAY_ELEMENT)
+        {
+            return 1;
+        }
+        else if (fieldRole == FieldRole.ROLE_MAP_KEY)
+        {
+            return 2;
+        }
+        else if (fieldRole == FieldRole.ROLE_MAP_VALUE)
+        {
+            return 3;
+        }
+        return -1;
+    }
+
+    /**
+     * Method to remove any cached class name for the specified identity, for use when the object with this identity
+     * is deleted, or an object with this identity is inserted.
+     * @param id The identity
+     */
+    public void evictClassNameForObjectID(Object id)
+    {
+        if (identityClassNames != null && id != null)
+        {
+            identityClassNames.remove(id);
+        }
+    }
+
+    /**
+     * Accessor for the name of the class that an identity declares itself to be for, without consulting the datastore,
+     * so the object with this identity is an instance of this class or one of its subclasses.
+     * @param id The identity
+     * @param clr ClassLoader resolver
+     * @param ec ExecutionContext
+     * @return Name of the class (or null if not determinable)
+     */
+    public String getDeclaredClassNameForObjectID(Object id, ClassLoaderResolver clr, ExecutionContext ec)
+    {
+        return super.getClassNameForObjectID(id, clr, ec);
+    }
+
+    /**
+     * Method to (re)build the identity index for the inheritance tree of the specified class, registering all
+     * existing Nodes of the class and its subclasses against their stored identity. An identity index created when
+     * its inheritance tree already had Nodes doesn't cover those Nodes, so lookups that miss it fall back to a Cypher
+     * query until this has been run, after which the index is marked as complete. The Nodes are registered in
+     * batches, each committed in its own Neo4j transaction, so this can't be called within a transaction.
+     * @param ec ExecutionContext
+     * @param className Name of a class in the inheritance tree
+     * @return The number of Nodes registered
+     */
+    public long rebuildIdentityIndex(ExecutionContext ec, String className)
+    {
+        ClassLoaderResolver clr = ec.getClassLoaderResolver();
+        AbstractClassMetaData cmd = getMetaDataManager().getMetaDataForClass(className, clr);
+        if (cmd == null)
+        {
+            throw new NucleusUserException("Class " + className + " is not persistable so cannot rebuild its identity index");
+        }
+        cmd = cmd.getBaseAbstractClassMetaData();
+        if (!Neo4jUtils.classUsesIdentityIndex(this, cmd))
+        {
+            NucleusLogger.DATASTORE_SCHEMA.info("Class " + cmd.getFullClassName() + " doesn't use an identity index");
+            return 0;
+        }
+        if (ec.getTransaction().isActive())
+        {
+            throw new NucleusUserException("Cannot rebuild the identity index of " + cmd.getFullClassName() +
+                " within a transaction since it is committed in batches");
+        }
+
+        List<String> classNames = new ArrayList<String>();
+        classNames.add(cmd.getFullClassName());
+        String[] subclassNames = getMetaDataManager().getSubclassesForClass(cmd.getFullClassName(), true);
+        if (subclassNames != null)
+        {
+            classNames.addAll(Arrays.asList(subclassNames));
+        }
+
+        long startTime = System.currentTimeMillis();
+        long count = 0;
+        ManagedConnection mconn = getConnection(ec);
+        try
+        {
+            GraphDatabaseService db = Neo4jUtils.getGraphDatabase(mconn);
+            if (!Neo4jUtils.hasTypeInformation(this, db))
+            {
+                // No data
+                return 0;
+            }
+
+            MaintenanceTransaction tx = new MaintenanceTransaction(db);
+            try
+            {
+                for (String name : classNames)
+                {
+                    AbstractClassMetaData theCmd = getMetaDataManager().getMetaDataForClass(name, clr);
+                    if (usesTypeNodes())
+                    {
+                        Node typeNode = typeNodes.getTypeNode(db, name);
+                        if (typeNode != null)
+                        {
+                            for (Node node : TypeNodeRegistry.getInstanceNodes(typeNode))
+                            {
+                                if (registerNodeInIdentityIndex(db, node, theCmd))
+                                {
+                                    count++;
+                                }
+                                tx.nodeUpdated();
+                            }
+                        }
+                        continue;
+                    }
+
+                    IndexHits<Node> nodes = db.index().forNodes(PROPCONTAINER_TYPE_INDEX).get(PROPCONTAINER_TYPE_INDEX_KEY, name + "-EXCLUSIVE");
+                    try
+                    {
+                        for (Node node : nodes)
+                        {
+                            if (registerNodeInIdentityIndex(db, node, theCmd))
+                            {
+                                count++;
+                            }
+                            tx.nodeUpdated();
+                        }
+                    }
+                    finally
+                    {
+                        nodes.close();
+                    }
+                }
+                tx.success();
+            }
+            finally
+            {
+                tx.finish();
+            }
+
+            setIdentityIndexComplete(db, cmd);
+        }
+        finally
+        {
+            mconn.release();
+        }
+
+        NucleusLogger.DATASTORE_SCHEMA.info("Identity index " + Neo4jUtils.getIdentityIndexName(cmd) + " rebuilt with " + count +
+            " Nodes in " + (System.currentTimeMillis() - startTime) + " ms");
+        return count;
+    }
+
+    /**
+     * Method to record that Nodes of the inheritance tree of the specified class were found by Cypher since missing
+     * from its (incomplete) identity index. Reads don't write, so the index is only repaired by
+     * <i>rebuildIdentityIndex</i>; a warning saying so is logged on the first miss of each index.
+     * @param cmd Metadata for a class in the inheritance tree
+     * @param numNodes Number of Nodes missing from the index
+     */
+    public void identityIndexMissed(AbstractClassMetaData cmd, int numNodes)
+    {
+        String idxName = Neo4jUtils.getIdentityIndexName(cmd);
+        AtomicLong misses = identityIndexMisses.get(idxName);
+        if (misses == null)
+        {
+            AtomicLong existing = identityIndexMisses.putIfAbsent(idxName, misses = new AtomicLong());
+            if (existing != null)
+            {
+                misses = existing;
+            }
+        }
+        if (misses.getAndAdd(numNodes) == 0)
+        {
+            NucleusLogger.DATASTORE_SCHEMA.warn("Identity index " + idxName + " doesn't include Nodes persisted before it was created," +
+                " so they are found with Cypher : run rebuildIdentityIndex for " + cmd.getFullClassName() + " to repair it");
+        }
+    }
+
+    /**
+     * Accessor for the number of Nodes of the inheritance tree of the specified class that were found by Cypher
+     * since missing from its identity index (see <i>identityIndexMissed</i>).
+     * @param cmd Metadata for a class in the inheritance tree
+     * @return The number of misses
+     */
+    public long getIdentityIndexMisses(AbstractClassMetaData cmd)
+    {
+        AtomicLong misses = identityIndexMisses.get(Neo4jUtils.getIdentityIndexName(cmd));
+        return (misses != null ? misses.get() : 0);
+    }
+
+    /**
+     * Accessor for whether every Node of the inheritance tree of the specified class is registered in its identity
+     * index, so that an object missing from the index doesn't exist. This is the case when the index was created
+     * along with the first Node of the tree, or once it has been rebuilt (see <i>rebuildIdentityIndex</i>).
+     * @param db The GraphDatabaseService
+     * @param cmd Metadata for a class in the inheritance tree
+     * @return Whether the identity index is complete
+     */
+    public boolean isIdentityIndexComplete(GraphDatabaseService db, AbstractClassMetaData cmd)
+    {
+        String idxName = Neo4jUtils.getIdentityIndexName(cmd);
+        if (completeIdentityIndexes.contains(idxName))
+        {
+            return true;
+        }
+        if (!db.index().existsForNodes(idxName))
+        {
+            return false;
+        }
+
+        try
+        {
+            Map<String, String> config = db.index().getConfiguration(db.index().forNodes(idxName));
+            if ("true".equals(config.get(IDENTITY_INDEX_COMPLETE_CONFIG)))
+            {
+                completeIdentityIndexes.add(idxName);
+                return true;
+            }
+        }
+        catch (UnsupportedOperationException uoe)
+        {
+            // Index configuration not available (remote server), so the index may not be complete
+        }
+        return false;
+    }
+
+    /**
+     * Method to mark the identity index of the inheritance tree of the specified class as complete.
+     * @param db The GraphDatabaseService
+     * @param cmd Metadata for a class in the inheritance tree
+     */
+    public void setIdentityIndexComplete(GraphDatabaseService db, AbstractClassMetaData cmd)
+    {
+        String idxName = Neo4jUtils.getIdentityIndexName(cmd);
+        try
+        {
+            db.index().setConfiguration(db.index().forNodes(idxName), IDENTITY_INDEX_COMPLETE_CONFIG, "true");
+            completeIdentityIndexes.add(idxName);
+            identityIndexMisses.remove(idxName);
+        }
+        catch (UnsupportedOperationException uoe)
+        {
+            NucleusLogger.DATASTORE_SCHEMA.info("Identity index " + idxName + " can't be marked as complete since not supported by this database," +
+                " so lookups that miss it will fall back to Cypher");
+        }
+    }
+
+    private boolean registerNodeInIdentityIndex(GraphDatabaseService db, Node node, AbstractClassMetaData cmd)
+    {
+        String idxValue = Neo4jUtils.getIdentityIndexValueForPropertyContainer(this, cmd, node);
+        Neo4jUtils.removeNodeFromIdentityIndex(db, node, cmd);
+        if (idxValue == null)
+        {
+            NucleusLogger.DATASTORE_SCHEMA.warn("Node " + node + " of type " + cmd.getFullClassName() + " has no identity property(s) so not added to the identity index");
+            return false;
+        }
+        Neo4jUtils.addNodeToIdentityIndex(db, node, cmd, idxValue);
+        return true;
+    }
+
+    /**
+     * Method to set the class id property on all existing Nodes of the inheritance tree of the specified class that
+     * don't have it. Nodes persisted before the class id was recorded are still resolved to their class by searching
+     * the "DN_TYPES" index, so this needs running once for such data to avoid that search. The Nodes are updated in
+     * batches, each committed in its own Neo4j transaction, so this can't be called within a transaction.
+     * @param ec ExecutionContext
+     * @param className Name of a class in the inheritance tree
+     * @return The number of Nodes updated
+     */
+    public long backfillClassIds(ExecutionContext ec, String className)
+    {
+        ClassLoaderResolver clr = ec.getClassLoaderResolver();
+        AbstractClassMetaData cmd = getMetaDataManager().getMetaDataForClass(className, clr);
+        if (cmd == null)
+        {
+            throw new NucleusUserException("Class " + className + " is not persistable so cannot set the class id of its Nodes");
+        }
+        cmd = cmd.getBaseAbstractClassMetaData();
+        if (usesTypeNodes() || Neo4jUtils.classIsAttributedRelation(cmd))
+        {
+            // Type nodes always set the class id, and Relationships don't have one
+            return 0;
+        }
+        if (ec.getTransaction().isActive())
+        {
+            throw new NucleusUserException("Cannot set the class id of the Nodes of " + cmd.getFullClassName() +
+                " within a transaction since they are committed in batches");
+        }
+
+        List<String> classNames = new ArrayList<String>();
+        classNames.add(cmd.getFullClassName());
+        String[] subclassNames = getMetaDataManager().getSubclassesForClass(cmd.getFullClassName(), true);
+        if (subclassNames != null)
+        {
+            classNames.addAll(Arrays.asList(subclassNames));
+        }
+
+        long startTime = System.currentTimeMillis();
+        long count = 0;
+        ManagedConnection mconn = getConnection(ec);
+        try
+        {
+            GraphDatabaseService db = Neo4jUtils.getGraphDatabase(mconn);
+            if (!Neo4jUtils.hasTypeInformation(this, db))
+            {
+                // No data
+                return 0;
+            }
+
+            MaintenanceTransaction tx = new MaintenanceTransaction(db);
+            try
+            {
+                for (String name : classNames)
+                {
+                    int classId = typeNodes.getClassId(db, getMetaDataManager().getMetaDataForClass(name, clr));
+                    IndexHits<Node> nodes = db.index().forNodes(PROPCONTAINER_TYPE_INDEX).get(PROPCONTAINER_TYPE_INDEX_KEY, name + "-EXCLUSIVE");
+                    try
+                    {
+                        for (Node node : nodes)
+                        {
+                            if (!node.hasProperty(TypeNodeRegistry.CLASS_ID_PROPERTY))
+                            {
+                                node.setProperty(TypeNodeRegistry.CLASS_ID_PROPERTY, classId);
+                                count++;
+                                tx.nodeUpdated();
+                            }
+                        }
+                    }
+                    finally
+                    {
+                        nodes.close();
+                    }
+                }
+                tx.success();
+            }
+            finally
+            {
+                tx.finish();
+            }
+        }
+        finally
+        {
+            mconn.release();
+        }
+
+        NucleusLogger.DATASTORE_SCHEMA.info("Class id set on " + count + " Nodes of " + cmd.getFullClassName() +
+            " and subclasses in " + (System.currentTimeMillis() - startTime) + " ms");
+        return count;
     }
 
     /**
@@ -132,4 +926,42 @@ public class Neo4jStoreManager extends AbstractStoreManager
         }
         return false;
     }
-}
\ No newline at end of file
+
+    /**
+     * Neo4j transaction of a maintenance operation that updates many Nodes, committed after every
+     * MAINTENANCE_BATCH_SIZE Nodes (and a new transaction started) so that the transaction state stays bounded.
+     */
+    static class MaintenanceTransaction
+    {
+        GraphDatabaseService db;
+        Transaction tx;
+        int numNodes = 0;
+
+        MaintenanceTransaction(GraphDatabaseService db)
+        {
+            this.db = db;
+            this.tx = db.beginTx();
+        }
+
+        void nodeUpdated()
+        {
+            numNodes++;
+            if (numNodes % MAINTENANCE_BATCH_SIZE == 0)
+            {
+                tx.success();
+                tx.finish();
+                tx = db.beginTx();
+            }
+        }
+
+        void success()
+        {
+            tx.success();
+        }
+
+        void finish()
+        {
+            tx.finish();
+        }
+    }
+}
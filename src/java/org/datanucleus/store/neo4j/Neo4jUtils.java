@@ -17,18 +17,24 @@ Contributors:
 **********************************************************************/
 package org.datanucleus.store.neo4j;
 
-import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.datanucleus.ClassLoaderResolver;
 import org.datanucleus.ExecutionContext;
 import org.datanucleus.FetchPlan;
 import org.datanucleus.PropertyNames;
-import org.datanucleus.exceptions.NucleusDataStoreException;
 import org.datanucleus.exceptions.NucleusException;
+import org.datanucleus.exceptions.NucleusUserException;
 import org.datanucleus.identity.IdentityUtils;
 import org.datanucleus.identity.OID;
 import org.datanucleus.identity.OIDFactory;
@@ -41,26 +47,22 @@ import org.datanucleus.metadata.DiscriminatorStrategy;
 import org.datanucleus.metadata.EmbeddedMetaData;
 import org.datanucleus.metadata.FieldRole;
 import org.datanucleus.metadata.IdentityType;
-import org.datanucleus.metadata.MetaDataUtils;
 import org.datanucleus.metadata.VersionMetaData;
 import org.datanucleus.state.ObjectProvider;
 import org.datanucleus.store.FieldValues;
 import org.datanucleus.store.StoreManager;
 import org.datanucleus.store.connection.ManagedConnection;
 import org.datanucleus.store.fieldmanager.FieldManager;
+import org.datanucleus.store.neo4j.fieldmanager.DNRelationshipType;
 import org.datanucleus.store.neo4j.fieldmanager.FetchFieldManager;
 import org.datanucleus.store.neo4j.query.LazyLoadQueryResult;
 import org.datanucleus.store.query.Query;
 import org.datanucleus.store.schema.naming.ColumnType;
-import org.datanucleus.store.types.SCOUtils;
-import org.datanucleus.store.types.converters.TypeConverter;
-import org.datanucleus.util.ClassUtils;
 import org.datanucleus.util.NucleusLogger;
 
-import org.neo4j.cypher.javacompat.ExecutionEngine;
-import org.neo4j.cypher.javacompat.ExecutionResult;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.PropertyContainer;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.index.Index;
@@ -71,6 +73,190 @@ import org.neo4j.graphdb.index.IndexHits;
  */
 public class Neo4jUtils
 {
+    /** Separator between the PK field values in the identity index value, for composite identity. */
+    private static final char IDENTITY_INDEX_VALUE_SEPARATOR = '\u001F';
+
+    /** Max number of identities looked up in one identity index query (Lucene limits a query to 1024 clauses). */
+    private static final int IDENTITY_INDEX_QUERY_MAX_VALUES = 500;
+
+    /**
+     * Order in which to lock Nodes/Relationships, so that transactions locking overlapping sets can't deadlock :
+     * Nodes before Relationships, each in order of id.
+     */
+    public static final Comparator<PropertyContainer> PROPCONTAINER_LOCK_ORDER = new Comparator<PropertyContainer>()
+    {
+        public int compare(PropertyContainer propObj1, PropertyContainer propObj2)
+        {
+            if ((propObj1 instanceof Node) != (propObj2 instanceof Node))
+            {
+                return (propObj1 instanceof Node ? -1 : 1);
+            }
+            long id1 = (propObj1 instanceof Node ? ((Node)propObj1).getId() : ((Relationship)propObj1).getId());
+            long id2 = (propObj2 instanceof Node ? ((Node)propObj2).getId() : ((Relationship)propObj2).getId());
+            return (id1 < id2 ? -1 : (id1 == id2 ? 0 : 1));
+        }
+    };
+
+    /**
+     * Accessor for the GraphDatabaseService of a connection when about to write to it, making sure that
+     * the Neo4j transaction is started (since connections only used for reading may not start one).
+     * @param mconn The ManagedConnection
+     * @return The GraphDatabaseService
+     */
+    public static GraphDatabaseService getGraphDatabaseForWrite(ManagedConnection mconn)
+    {
+        if (mconn instanceof ConnectionFactoryImpl.ManagedConnectionImpl)
+        {
+            ((ConnectionFactoryImpl.ManagedConnectionImpl)mconn).startTransactionForWrite();
+        }
+        return getGraphDatabase(mconn);
+    }
+
+    /**
+     * Accessor for the GraphDatabaseService of a connection, to read from (or, after
+     * {@link #getGraphDatabaseForWrite(ManagedConnection)}, write to). When about to read, any non-transactional
+     * writes of the ExecutionContext pending in a group commit are committed first, so that the read sees them.
+     * @param mconn The ManagedConnection
+     * @return The GraphDatabaseService
+     * @throws NucleusUserException if the store is in bulk-load mode, so the connection has no GraphDatabaseService
+     */
+    public static GraphDatabaseService getGraphDatabase(ManagedConnection mconn)
+    {
+        Object conn = mconn.getConnection();
+        if (conn instanceof Neo4jBulkLoader)
+        {
+            throw new NucleusUserException("Store is in bulk-load mode so only supports inserts, and can't be queried," +
+                " read, or generate values from the datastore");
+        }
+        if (mconn instanceof ConnectionFactoryImpl.ManagedConnectionImpl)
+        {
+            ((ConnectionFactoryImpl.ManagedConnectionImpl)mconn).prepareForRead();
+        }
+        return (GraphDatabaseService)conn;
+    }
+
+    /**
+     * Method to mark the Neo4j transaction of a (non-transactional) connection as failed after an error writing,
+     * so that it is rolled back instead of committed when the connection is released.
+     * @param mconn The ManagedConnection
+     */
+    public static void setRollbackOnly(ManagedConnection mconn)
+    {
+        if (mconn instanceof ConnectionFactoryImpl.ManagedConnectionImpl)
+        {
+            ((ConnectionFactoryImpl.ManagedConnectionImpl)mconn).setRollbackOnly();
+        }
+    }
+
+    /**
+     * Method to take the write lock on a Node/Relationship in the Neo4j transaction of a connection, held until the
+     * transaction ends, so that what is read from it can't be changed by another transaction before it is written.
+     * @param mconn The ManagedConnection
+     * @param propObj The Node/Relationship
+     * @return Whether the lock was taken
+     */
+    public static boolean acquireWriteLock(ManagedConnection mconn, PropertyContainer propObj)
+    {
+        if (mconn instanceof ConnectionFactoryImpl.ManagedConnectionImpl)
+        {
+            return ((ConnectionFactoryImpl.ManagedConnectionImpl)mconn).acquireWriteLock(propObj);
+        }
+        return false;
+    }
+
+    /**
+     * Method to take the write locks on the specified Nodes/Relationships in the Neo4j transaction of a connection,
+     * in a deterministic order (see {@link #PROPCONTAINER_LOCK_ORDER}).
+     * @param mconn The ManagedConnection
+     * @param propObjs The Nodes/Relationships
+     */
+    public static void acquireWriteLocks(ManagedConnection mconn, Collection<? extends PropertyContainer> propObjs)
+    {
+        List<PropertyContainer> orderedPropObjs = new ArrayList<PropertyContainer>(propObjs);
+        Collections.sort(orderedPropObjs, PROPCONTAINER_LOCK_ORDER);
+        for (PropertyContainer propObj : orderedPropObjs)
+        {
+            acquireWriteLock(mconn, propObj);
+        }
+    }
+
+    /**
+     * Method to take the write locks on the Nodes/Relationships of the specified (persistent) objects, for the results
+     * of a query evaluated in-memory, and then refresh the objects so that their state is re-read under the locks.
+     * @param ec ExecutionContext
+     * @param mconn The ManagedConnection
+     * @param pcs The objects (anything not persistent is ignored)
+     */
+    public static void acquireWriteLocksForObjects(ExecutionContext ec, ManagedConnection mconn, Collection pcs)
+    {
+        GraphDatabaseService db = getGraphDatabaseForWrite(mconn);
+        List<Object> lockedPcs = new ArrayList<Object>();
+        Set<PropertyContainer> propObjs = new HashSet<PropertyContainer>();
+        for (Object pc : pcs)
+        {
+            ObjectProvider op = (pc != null ? ec.findObjectProvider(pc) : null);
+            if (op != null)
+            {
+                PropertyContainer propObj = getPropertyContainerForObjectProvider(db, op);
+                if (propObj != null)
+                {
+                    propObjs.add(propObj);
+                    lockedPcs.add(pc);
+                }
+            }
+        }
+
+        acquireWriteLocks(mconn, propObjs);
+        for (Object pc : lockedPcs)
+        {
+            ec.refreshObject(pc);
+        }
+    }
+
+    /**
+     * Accessor for whether reads of objects of the specified class are to be serialised, by write-locking their
+     * Nodes/Relationships (in an active transaction with "serializeRead" set for the class).
+     * @param ec ExecutionContext
+     * @param cmd Metadata for the class
+     * @return Whether to lock
+     */
+    public static boolean useWriteLockForClass(ExecutionContext ec, AbstractClassMetaData cmd)
+    {
+        return ec.getTransaction().isActive() && ec.getSerializeReadForClass(cmd.getFullClassName());
+    }
+
+    /**
+     * Accessor for whether the results of a query are to be serialised, by write-locking their Nodes/Relationships
+     * (in an active transaction with "serializeRead" set on the query, or else on the transaction).
+     * @param query The query
+     * @return Whether to lock
+     * @throws NucleusUserException if the results are to be serialised but the store is a remote server, which doesn't
+     *     support locking
+     */
+    public static boolean useWriteLockForQuery(Query query)
+    {
+        ExecutionContext ec = query.getExecutionContext();
+        if (!ec.getTransaction().isActive())
+        {
+            return false;
+        }
+        Boolean serializeRead = query.getSerializeRead();
+        if (serializeRead == null)
+        {
+            serializeRead = ec.getTransaction().getSerializeRead();
+        }
+        if (serializeRead != null && serializeRead.booleanValue())
+        {
+            if (((Neo4jStoreManager)ec.getStoreManager()).isRemote())
+            {
+                throw new NucleusUserException("Cannot serialise the results of query " + query +
+                    " since locking is not supported by a remote Neo4j server");
+            }
+            return true;
+        }
+        return false;
+    }
+
     /**
      * Method to return the Node/Relationship representing the specified ObjectProvider.
      * @param graphDB Database service
@@ -98,6 +284,25 @@ public class Neo4jUtils
         return propObj;
     }
 
+    /**
+     * Method to return the Node/Relationship with the specified Neo4j id.
+     * @param graphDB Database service
+     * @param key The Neo4j node/relationship id
+     * @param attributedRelation Whether to get a Relationship rather than a Node
+     * @return The Node/Relationship (or null if not existing)
+     */
+    private static PropertyContainer getPropertyContainerById(GraphDatabaseService graphDB, long key, boolean attributedRelation)
+    {
+        try
+        {
+            return (attributedRelation ? graphDB.getRelationshipById(key) : graphDB.getNodeById(key));
+        }
+        catch (NotFoundException nfe)
+        {
+            return null;
+        }
+    }
+
     /**
      * Method to return the Node/Relationship representing the object with the specified identity.
      * @param graphDB Database service
@@ -112,7 +317,8 @@ public class Neo4jUtils
     {
         StoreManager storeMgr = ec.getStoreManager();
 
-        boolean attributedRelation = Neo4jUtils.classIsAttributedRelation(cmd);
+        boolean attributedRelation = getPersistencePlan(ec, cmd).isAttributedRelation();
+        boolean nodeMayBeMissingFromIndex = false;
         if (cmd.pkIsDatastoreAttributed(storeMgr))
         {
             // Using Neo4j "node id"/"relationship id" as the identity, so use getNodeById/getRelationshipById
@@ -124,7 +330,7 @@ public class Neo4jUtils
                 {
                     NucleusLogger.DATASTORE_NATIVE.debug("Retrieving PropertyContainer for id=" + key);
                 }
-                return (attributedRelation ? graphDB.getRelationshipById(key) : graphDB.getNodeById(key));
+                return getPropertyContainerById(graphDB, key, attributedRelation);
             }
             else if (cmd.getIdentityType() == IdentityType.APPLICATION)
             {
@@ -136,7 +342,7 @@ public class Neo4jUtils
                     {
                         NucleusLogger.DATASTORE_NATIVE.debug("Retrieving PropertyContainer for id=" + key);
                     }
-                    return (attributedRelation ? graphDB.getRelationshipById(key) : graphDB.getNodeById(key));
+                    return getPropertyContainerById(graphDB, key, attributedRelation);
                 }
                 else
                 {
@@ -155,19 +361,39 @@ public class Neo4jUtils
         }
         else
         {
-            if (!graphDB.index().existsForNodes(Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX))
+            if (!hasTypeInformation(storeMgr, graphDB))
             {
                 // No index yet so the Node can't exist
                 return null;
             }
+
+            if (classUsesIdentityIndex(storeMgr, cmd) &&
+                graphDB.index().existsForNodes(getIdentityIndexName(cmd)))
+            {
+                // Exact lookup in the identity index for this inheritance tree
+                if (cmd.getIdentityType() == IdentityType.DATASTORE && (id == null || storeMgr.isStrategyDatastoreAttributed(cmd, -1)))
+                {
+                    // Not yet set, so return null (needs to be attributed in the datastore)
+                    return null;
+                }
+                String idxValue = getIdentityIndexValueForId(ec, cmd, id);
+                Node node = getNodeFromIdentityIndex(graphDB, ec, cmd, idxValue, id);
+                if (node != null || ((Neo4jStoreManager)storeMgr).isIdentityIndexComplete(graphDB, cmd))
+                {
+                    return node;
+                }
+
+                // Index doesn't cover Nodes persisted before it was created, so use Cypher (recording any Node found)
+                nodeMayBeMissingFromIndex = true;
+            }
         }
 
+        // Values are passed as parameters so the plan is reused for all identities of this class
         StringBuffer cypherString = new StringBuffer();
+        Map<String, Object> params = new HashMap<String, Object>();
 
         // Start from the nodes/relationship of the required type
-        cypherString.append("START pc=" + 
-            (attributedRelation ? "relationship:" : "node:") + Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX + 
-            "(" + Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX_KEY + "=\"" + cmd.getFullClassName() + "\")");
+        cypherString.append(getCypherStartForClass(storeMgr, cmd, "pc", true));
 
         if (cmd.getIdentityType() == IdentityType.APPLICATION)
         {
@@ -188,107 +414,703 @@ public class Neo4jUtils
                 }
 
                 cypherString.append("pc." + ec.getStoreManager().getNamingFactory().getColumnName(pkMmd, ColumnType.COLUMN));
-                cypherString.append(" = ");
-                Object storedValue = Neo4jUtils.getStoredValueForField(ec, pkMmd, value, FieldRole.ROLE_FIELD);
-                if (storedValue instanceof String)
+                cypherString.append(" = {pk" + i + "}");
+                params.put("pk" + i, Neo4jUtils.getStoredValueForField(ec, pkMmd, value, FieldRole.ROLE_FIELD));
+                if (i != pkPositions.length-1)
                 {
-                    cypherString.append("\"" + storedValue + "\"");
+                    cypherString.append(" and ");
                 }
-                else
+            }
+            cypherString.append(")");
+        }
+        else if (cmd.getIdentityType() == IdentityType.DATASTORE)
+        {
+            OID oid = (OID)id;
+            if (oid == null || storeMgr.isStrategyDatastoreAttributed(cmd, -1))
+            {
+                // Not yet set, so return null (needs to be attributed in the datastore)
+                return null;
+            }
+            Object value = oid.getKeyValue();
+            String propName = getPersistencePlan(ec, cmd).getDatastoreIdPropertyName();
+            cypherString.append(" WHERE (pc.");
+            cypherString.append(propName);
+            cypherString.append(" = {id})");
+            params.put("id", Neo4jUtils.getStoredValueForField(ec, null, value, FieldRole.ROLE_FIELD));
+        }
+        else
+        {
+            throw new NucleusException("Impossible to retrieve Node/Relationship for nondurable identity");
+        }
+
+        if (cmd.hasDiscriminatorStrategy())
+        {
+            DiscriminatorMetaData discmd = cmd.getDiscriminatorMetaData();
+            String propName = storeMgr.getNamingFactory().getColumnName(cmd, ColumnType.DISCRIMINATOR_COLUMN);
+            Object discVal = null;
+            if (cmd.getDiscriminatorStrategy() == DiscriminatorStrategy.CLASS_NAME)
+            {
+                discVal = cmd.getFullClassName();
+            }
+            else
+            {
+                discVal = discmd.getValue();
+            }
+            cypherString.append(" and (pc.").append(propName).append(" = {disc})");
+            params.put("disc", discVal);
+        }
+
+        cypherString.append(" RETURN pc");
+
+        if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled())
+        {
+            NucleusLogger.DATASTORE_NATIVE.debug("Retrieving object using Cypher query : " + cypherString + " with parameters " + params);
+        }
+
+        Iterable<Map<String, Object>> result = ((Neo4jStoreManager)storeMgr).getCypherEngineRegistry().execute(graphDB, cypherString.toString(), params);
+        if (ec.getStatistics() != null)
+        {
+            // Add to statistics
+            ec.getStatistics().incrementNumReads();
+        }
+
+        Iterator<Map<String, Object>> iter = result.iterator();
+        if (!iter.hasNext())
+        {
+            return null;
+        }
+
+        Map<String, Object> map = iter.next();
+        PropertyContainer propObj = (PropertyContainer)map.get("pc");
+        if (iter.hasNext())
+        {
+            throw new NucleusException("Query of Node/Relationship for object with id=" + id + 
+                " returned more than 1 result! : " + cypherString);
+        }
+        if (nodeMayBeMissingFromIndex && propObj instanceof Node)
+        {
+            ((Neo4jStoreManager)storeMgr).identityIndexMissed(cmd, 1);
+        }
+        return propObj;
+    }
+
+    /**
+     * Convenience method to return whether any Node of the inheritance tree of the specified class exists.
+     * @param storeMgr StoreManager
+     * @param db The GraphDatabaseService
+     * @param rootCmd Metadata for the root class of the inheritance tree
+     * @return Whether the inheritance tree has instances
+     */
+    public static boolean hasInstancesOfClassTree(StoreManager storeMgr, GraphDatabaseService db, AbstractClassMetaData rootCmd)
+    {
+        if (!hasTypeInformation(storeMgr, db))
+        {
+            return false;
+        }
+
+        if (((Neo4jStoreManager)storeMgr).usesTypeNodes())
+        {
+            List<String> classNames = new ArrayList<String>();
+            classNames.add(rootCmd.getFullClassName());
+            String[] subclassNames = storeMgr.getMetaDataManager().getSubclassesForClass(rootCmd.getFullClassName(), true);
+            if (subclassNames != null)
+            {
+                classNames.addAll(Arrays.asList(subclassNames));
+            }
+            for (String className : classNames)
+            {
+                Node typeNode = ((Neo4jStoreManager)storeMgr).getTypeNodeRegistry().getTypeNode(db, className);
+                if (typeNode != null && TypeNodeRegistry.getInstanceNodes(typeNode).iterator().hasNext())
                 {
-                    cypherString.append(storedValue);
+                    return true;
                 }
-                if (i != pkPositions.length-1)
+            }
+            return false;
+        }
+
+        IndexHits<Node> hits = db.index().forNodes(Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX).get(
+            Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX_KEY, rootCmd.getFullClassName());
+        try
+        {
+            return hits.hasNext();
+        }
+        finally
+        {
+            hits.close();
+        }
+    }
+
+    /**
+     * Convenience method to return whether objects of the specified class are registered in the identity index
+     * (for their inheritance tree), allowing lookup of the Node for an identity without scanning the type index.
+     * This applies to application and datastore identity, except where the identity is the Neo4j node id.
+     * @param storeMgr StoreManager
+     * @param cmd Metadata for the class
+     * @return Whether the class uses the identity index
+     */
+    public static boolean classUsesIdentityIndex(StoreManager storeMgr, AbstractClassMetaData cmd)
+    {
+        if (cmd.getIdentityType() != IdentityType.APPLICATION && cmd.getIdentityType() != IdentityType.DATASTORE)
+        {
+            return false;
+        }
+        if (classIsAttributedRelation(cmd))
+        {
+            return false;
+        }
+        return !cmd.pkIsDatastoreAttributed(storeMgr);
+    }
+
+    /**
+     * Accessor for the name of the identity index for the inheritance tree of the specified class.
+     * Each Node is registered in this index with key of its class name (and each persistable superclass name) and
+     * value of its identity (see <i>getIdentityIndexValue</i>).
+     * @param cmd Metadata for the class
+     * @return Name of the index
+     */
+    public static String getIdentityIndexName(AbstractClassMetaData cmd)
+    {
+        return Neo4jStoreManager.PROPCONTAINER_IDENTITY_INDEX_PREFIX + cmd.getBaseAbstractClassMetaData().getFullClassName();
+    }
+
+    /**
+     * Convenience method to convert the stored values of the PK field(s) (or the datastore id) into the
+     * value used in the identity index.
+     * @param storedValues The stored values of the PK field(s)
+     * @return The identity index value
+     */
+    public static String getIdentityIndexValue(Object[] storedValues)
+    {
+        if (storedValues.length == 1)
+        {
+            return "" + storedValues[0];
+        }
+
+        StringBuffer str = new StringBuffer();
+        for (int i=0;i<storedValues.length;i++)
+        {
+            if (i > 0)
+            {
+                str.append(IDENTITY_INDEX_VALUE_SEPARATOR);
+            }
+            str.append(storedValues[i]);
+        }
+        return str.toString();
+    }
+
+    /**
+     * Method to return the identity index value for the specified identity.
+     * @param ec ExecutionContext
+     * @param cmd Metadata for the class
+     * @param id The identity
+     * @return The identity index value
+     */
+    public static String getIdentityIndexValueForId(ExecutionContext ec, AbstractClassMetaData cmd, Object id)
+    {
+        if (cmd.getIdentityType() == IdentityType.DATASTORE)
+        {
+            Object value = ((OID)id).getKeyValue();
+            return getIdentityIndexValue(new Object[] {Neo4jUtils.getStoredValueForField(ec, null, value, FieldRole.ROLE_FIELD)});
+        }
+
+        int[] pkPositions = cmd.getPKMemberPositions();
+        Object[] storedValues = new Object[pkPositions.length];
+        for (int i=0;i<pkPositions.length;i++)
+        {
+            AbstractMemberMetaData pkMmd = cmd.getMetaDataForManagedMemberAtAbsolutePosition(pkPositions[i]);
+            Object value = null;
+            if (cmd.usesSingleFieldIdentityClass())
+            {
+                value = ec.getApiAdapter().getTargetKeyForSingleFieldIdentity(id);
+            }
+            else
+            {
+                value = IdentityUtils.getValueForMemberInId(id, pkMmd);
+            }
+            storedValues[i] = Neo4jUtils.getStoredValueForField(ec, pkMmd, value, FieldRole.ROLE_FIELD);
+        }
+        return getIdentityIndexValue(storedValues);
+    }
+
+    /**
+     * Method to return the identity index value for the object managed by the specified ObjectProvider, using
+     * the current values of its PK field(s).
+     * @param op ObjectProvider
+     * @return The identity index value
+     */
+    public static String getIdentityIndexValueForObjectProvider(ObjectProvider op)
+    {
+        AbstractClassMetaData cmd = op.getClassMetaData();
+        ExecutionContext ec = op.getExecutionContext();
+        if (cmd.getIdentityType() == IdentityType.DATASTORE)
+        {
+            return getIdentityIndexValueForId(ec, cmd, op.getInternalObjectId());
+        }
+
+        int[] pkPositions = cmd.getPKMemberPositions();
+        Object[] storedValues = new Object[pkPositions.length];
+        for (int i=0;i<pkPositions.length;i++)
+        {
+            AbstractMemberMetaData pkMmd = cmd.getMetaDataForManagedMemberAtAbsolutePosition(pkPositions[i]);
+            storedValues[i] = Neo4jUtils.getStoredValueForField(ec, pkMmd, op.provideField(pkPositions[i]), FieldRole.ROLE_FIELD);
+        }
+        return getIdentityIndexValue(storedValues);
+    }
+
+    /**
+     * Method to return the identity index value for an existing Node, using the stored values of its PK properties.
+     * @param storeMgr StoreManager
+     * @param cmd Metadata for the class of the object stored in this Node
+     * @param propObj The Node
+     * @return The identity index value (or null if the Node doesn't have all PK properties)
+     */
+    public static String getIdentityIndexValueForPropertyContainer(StoreManager storeMgr, AbstractClassMetaData cmd,
+            PropertyContainer propObj)
+    {
+        Object[] storedValues = null;
+        if (cmd.getIdentityType() == IdentityType.DATASTORE)
+        {
+            String propName = storeMgr.getNamingFactory().getColumnName(cmd, ColumnType.DATASTOREID_COLUMN);
+            storedValues = new Object[] {propObj.getProperty(propName, null)};
+        }
+        else
+        {
+            int[] pkPositions = cmd.getPKMemberPositions();
+            storedValues = new Object[pkPositions.length];
+            for (int i=0;i<pkPositions.length;i++)
+            {
+                AbstractMemberMetaData pkMmd = cmd.getMetaDataForManagedMemberAtAbsolutePosition(pkPositions[i]);
+                String propName = storeMgr.getNamingFactory().getColumnName(pkMmd, ColumnType.COLUMN);
+                storedValues[i] = propObj.getProperty(propName, null);
+            }
+        }
+
+        for (int i=0;i<storedValues.length;i++)
+        {
+            if (storedValues[i] == null)
+            {
+                return null;
+            }
+        }
+        return getIdentityIndexValue(storedValues);
+    }
+
+    /**
+     * Method to register a Node in the identity index of its inheritance tree, under its class and all persistable
+     * superclasses (so that a lookup for any of those types finds it).
+     * @param db The GraphDatabaseService
+     * @param node The Node
+     * @param cmd Metadata for the class of the object stored in this Node
+     * @param idxValue The identity index value
+     */
+    public static void addNodeToIdentityIndex(GraphDatabaseService db, Node node, AbstractClassMetaData cmd, String idxValue)
+    {
+        Index<Node> idIdx = db.index().forNodes(getIdentityIndexName(cmd));
+        AbstractClassMetaData theCmd = cmd;
+        while (theCmd != null)
+        {
+            idIdx.add(node, theCmd.getFullClassName(), idxValue);
+            theCmd = theCmd.getSuperAbstractClassMetaData();
+        }
+    }
+
+    /**
+     * Method to remove a Node from the identity index of its inheritance tree.
+     * @param db The GraphDatabaseService
+     * @param node The Node
+     * @param cmd Metadata for the class of the object stored in this Node
+     */
+    public static void removeNodeFromIdentityIndex(GraphDatabaseService db, Node node, AbstractClassMetaData cmd)
+    {
+        String idxName = getIdentityIndexName(cmd);
+        if (db.index().existsForNodes(idxName))
+        {
+            db.index().forNodes(idxName).remove(node);
+        }
+    }
+
+    /**
+     * Method to register a Node in the identity index of its inheritance tree unless a Node is already registered
+     * with the same identity, so that the index enforces uniqueness of identity (under the index lock) without a read.
+     * @param db The GraphDatabaseService
+     * @param node The Node
+     * @param cmd Metadata for the class of the object stored in this Node
+     * @param idxValue The identity index value
+     * @return The Node already registered with this identity, or null if the Node was registered
+     */
+    public static Node addNodeToIdentityIndexIfAbsent(GraphDatabaseService db, Node node, AbstractClassMetaData cmd, String idxValue)
+    {
+        Index<Node> idIdx = db.index().forNodes(getIdentityIndexName(cmd));
+        AbstractClassMetaData rootCmd = cmd.getBaseAbstractClassMetaData();
+        Node existingNode = idIdx.putIfAbsent(node, rootCmd.getFullClassName(), idxValue);
+        if (existingNode != null)
+        {
+            return existingNode;
+        }
+
+        AbstractClassMetaData theCmd = cmd;
+        while (theCmd != null && theCmd != rootCmd)
+        {
+            idIdx.add(node, theCmd.getFullClassName(), idxValue);
+            theCmd = theCmd.getSuperAbstractClassMetaData();
+        }
+        return null;
+    }
+
+    /**
+     * Method to find which of the specified identities are registered in the identity index of an inheritance tree,
+     * querying the index for many identities at once rather than one lookup per identity.
+     * @param db The GraphDatabaseService
+     * @param ec ExecutionContext
+     * @param rootCmd Metadata for the root class of the inheritance tree
+     * @param idxValues The identity index values
+     * @return The Nodes found, keyed by their identity index value
+     */
+    public static Map<String, Node> getNodesFromIdentityIndex(GraphDatabaseService db, ExecutionContext ec,
+            AbstractClassMetaData rootCmd, Collection<String> idxValues)
+    {
+        String idxName = getIdentityIndexName(rootCmd);
+        if (idxValues.isEmpty() || !db.index().existsForNodes(idxName))
+        {
+            return Collections.emptyMap();
+        }
+
+        Map<String, Node> nodes = new HashMap<String, Node>();
+        Index<Node> idIdx = db.index().forNodes(idxName);
+        String key = escapeIndexQueryTerm(rootCmd.getFullClassName());
+        Iterator<String> valueIter = idxValues.iterator();
+        while (valueIter.hasNext())
+        {
+            StringBuffer queryStr = new StringBuffer();
+            int numValues = 0;
+            while (valueIter.hasNext() && numValues < IDENTITY_INDEX_QUERY_MAX_VALUES)
+            {
+                if (numValues > 0)
+                {
+                    queryStr.append(" OR ");
+                }
+                String value = valueIter.next().replace("\\", "\\\\").replace("\"", "\\\"");
+                queryStr.append(key).append(":\"").append(value).append('"');
+                numValues++;
+            }
+
+            if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled())
+            {
+                NucleusLogger.DATASTORE_NATIVE.debug("Retrieving Nodes for " + numValues + " identities using index " + idxName);
+            }
+            IndexHits<Node> hits = idIdx.query(queryStr.toString());
+            if (ec.getStatistics() != null)
+            {
+                // Add to statistics
+                ec.getStatistics().incrementNumReads();
+            }
+            try
+            {
+                for (Node node : hits)
+                {
+                    String idxValue = getIdentityIndexValueForPropertyContainer(ec.getStoreManager(), rootCmd, node);
+                    if (idxValue != null)
+                    {
+                        nodes.put(idxValue, node);
+                    }
+                }
+            }
+            finally
+            {
+                hits.close();
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Method to find which of the specified objects of an inheritance tree have a Node/Relationship in the datastore,
+     * using a single Cypher query on the type index. Only for use where the identity is a single value (datastore
+     * identity, or application identity with one PK field) and the identity index isn't available.
+     * @param db The GraphDatabaseService
+     * @param ec ExecutionContext
+     * @param rootCmd Metadata for the root class of the inheritance tree
+     * @param ops ObjectProviders of the objects
+     * @return The Nodes/Relationships found, keyed by their identity index value
+     */
+    public static Map<String, PropertyContainer> getPropertyContainersForObjectProviders(GraphDatabaseService db,
+            ExecutionContext ec, AbstractClassMetaData rootCmd, Collection<ObjectProvider> ops)
+    {
+        StoreManager storeMgr = ec.getStoreManager();
+        boolean attributedRelation = classIsAttributedRelation(rootCmd);
+        if (ops.isEmpty() ||
+            (attributedRelation && !db.index().existsForRelationships(Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX)) ||
+            (!attributedRelation && !hasTypeInformation(storeMgr, db)))
+        {
+            // No type index yet so none can exist
+            return Collections.emptyMap();
+        }
+
+        String propName = null;
+        if (rootCmd.getIdentityType() == IdentityType.DATASTORE)
+        {
+            propName = storeMgr.getNamingFactory().getColumnName(rootCmd, ColumnType.DATASTOREID_COLUMN);
+        }
+        else
+        {
+            int[] pkPositions = rootCmd.getPKMemberPositions();
+            if (pkPositions.length != 1)
+            {
+                throw new NucleusException("Cannot find objects of " + rootCmd.getFullClassName() + " by a list of identities since it has a composite identity");
+            }
+            propName = storeMgr.getNamingFactory().getColumnName(rootCmd.getMetaDataForManagedMemberAtAbsolutePosition(pkPositions[0]), ColumnType.COLUMN);
+        }
+
+        List<Object> storedIds = new ArrayList<Object>(ops.size());
+        for (ObjectProvider op : ops)
+        {
+            AbstractClassMetaData cmd = op.getClassMetaData();
+            if (cmd.getIdentityType() == IdentityType.DATASTORE)
+            {
+                storedIds.add(getStoredValueForField(ec, null, ((OID)op.getInternalObjectId()).getKeyValue(), FieldRole.ROLE_FIELD));
+            }
+            else
+            {
+                int pkPosition = cmd.getPKMemberPositions()[0];
+                storedIds.add(getStoredValueForField(ec, cmd.getMetaDataForManagedMemberAtAbsolutePosition(pkPosition),
+                    op.provideField(pkPosition), FieldRole.ROLE_FIELD));
+            }
+        }
+
+        String cypherText = getCypherStartForClass(storeMgr, rootCmd, "pc", true) + " WHERE pc." + propName + " IN {ids} RETURN pc";
+        if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled())
+        {
+            NucleusLogger.DATASTORE_NATIVE.debug("Retrieving objects for " + storedIds.size() + " identities using Cypher query : " + cypherText);
+        }
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("ids", storedIds);
+        Iterable<Map<String, Object>> result = ((Neo4jStoreManager)storeMgr).getCypherEngineRegistry().execute(db, cypherText, params);
+        if (ec.getStatistics() != null)
+        {
+            // Add to statistics
+            ec.getStatistics().incrementNumReads();
+        }
+
+        Map<String, PropertyContainer> propObjs = new HashMap<String, PropertyContainer>();
+        for (Map<String, Object> row : result)
+        {
+            PropertyContainer propObj = (PropertyContainer)row.get("pc");
+            propObjs.put(getIdentityIndexValue(new Object[] {propObj.getProperty(propName)}), propObj);
+        }
+        return propObjs;
+    }
+
+    /**
+     * Method to find the Nodes/Relationships for the specified objects, looking up the objects of each inheritance tree
+     * together (one identity index query, or one Cypher query where there is no identity index and the identity is a
+     * single value) rather than one lookup per object. Objects whose identity is the Neo4j id are looked up directly.
+     * Doesn't use (or update) the PropertyContainer cached with each ObjectProvider.
+     * @param db The GraphDatabaseService
+     * @param ops ObjectProviders of the objects (with distinct identities)
+     * @return The Nodes/Relationships found, keyed by ObjectProvider
+     */
+    public static Map<ObjectProvider, PropertyContainer> findPropertyContainersForObjectProviders(GraphDatabaseService db,
+            Collection<ObjectProvider> ops)
+    {
+        Map<ObjectProvider, PropertyContainer> propObjs = new HashMap<ObjectProvider, PropertyContainer>();
+        if (ops.isEmpty())
+        {
+            return propObjs;
+        }
+
+        // Group the objects by the root class of their inheritance tree, keyed by identity index value
+        ExecutionContext ec = ops.iterator().next().getExecutionContext();
+        StoreManager storeMgr = ec.getStoreManager();
+        Map<AbstractClassMetaData, Map<String, ObjectProvider>> opsByRootCmd = new HashMap<AbstractClassMetaData, Map<String, ObjectProvider>>();
+        for (ObjectProvider op : ops)
+        {
+            AbstractClassMetaData cmd = op.getClassMetaData();
+            if (cmd.getIdentityType() != IdentityType.APPLICATION && cmd.getIdentityType() != IdentityType.DATASTORE)
+            {
+                // Nondurable so no identity to find it by
+                continue;
+            }
+            else if (cmd.pkIsDatastoreAttributed(storeMgr))
+            {
+                PropertyContainer propObj = getPropertyContainerForObjectId(db, ec, cmd, op.getInternalObjectId());
+                if (propObj != null)
+                {
+                    propObjs.put(op, propObj);
+                }
+                continue;
+            }
+
+            AbstractClassMetaData rootCmd = cmd.getBaseAbstractClassMetaData();
+            Map<String, ObjectProvider> opsForRoot = opsByRootCmd.get(rootCmd);
+            if (opsForRoot == null)
+            {
+                opsForRoot = new HashMap<String, ObjectProvider>();
+                opsByRootCmd.put(rootCmd, opsForRoot);
+            }
+            opsForRoot.put(getIdentityIndexValueForObjectProvider(op), op);
+        }
+
+        for (Map.Entry<AbstractClassMetaData, Map<String, ObjectProvider>> entry : opsByRootCmd.entrySet())
+        {
+            AbstractClassMetaData rootCmd = entry.getKey();
+            Map<String, ObjectProvider> opsForRoot = entry.getValue();
+
+            Map<String, ? extends PropertyContainer> found = null;
+            if (classUsesIdentityIndex(storeMgr, rootCmd) && db.index().existsForNodes(getIdentityIndexName(rootCmd)))
+            {
+                found = getNodesFromIdentityIndex(db, ec, rootCmd, opsForRoot.keySet());
+                if (found.size() < opsForRoot.size() && !((Neo4jStoreManager)storeMgr).isIdentityIndexComplete(db, rootCmd))
+                {
+                    // Index doesn't cover Nodes persisted before it was created, so look up the others without it
+                    Map<String, PropertyContainer> foundWithMissing = new HashMap<String, PropertyContainer>(found);
+                    List<ObjectProvider> missingOps = new ArrayList<ObjectProvider>();
+                    for (Map.Entry<String, ObjectProvider> opEntry : opsForRoot.entrySet())
+                    {
+                        if (!found.containsKey(opEntry.getKey()))
+                        {
+                            missingOps.add(opEntry.getValue());
+                        }
+                    }
+                    if (rootCmd.getIdentityType() == IdentityType.DATASTORE || rootCmd.getPKMemberPositions().length == 1)
+                    {
+                        Map<String, PropertyContainer> missing = getPropertyContainersForObjectProviders(db, ec, rootCmd, missingOps);
+                        if (!missing.isEmpty())
+                        {
+                            ((Neo4jStoreManager)storeMgr).identityIndexMissed(rootCmd, missing.size());
+                        }
+                        foundWithMissing.putAll(missing);
+                    }
+                    else
+                    {
+                        for (ObjectProvider op : missingOps)
+                        {
+                            PropertyContainer propObj = getPropertyContainerForObjectId(db, ec, op.getClassMetaData(), op.getInternalObjectId());
+                            if (propObj != null)
+                            {
+                                foundWithMissing.put(getIdentityIndexValueForObjectProvider(op), propObj);
+                            }
+                        }
+                    }
+                    found = foundWithMissing;
+                }
+            }
+            else if (rootCmd.getIdentityType() == IdentityType.DATASTORE || rootCmd.getPKMemberPositions().length == 1)
+            {
+                found = getPropertyContainersForObjectProviders(db, ec, rootCmd, opsForRoot.values());
+            }
+            else
+            {
+                // Composite identity and no identity index, so look up each object
+                for (ObjectProvider op : opsForRoot.values())
                 {
-                    cypherString.append(" and ");
+                    PropertyContainer propObj = getPropertyContainerForObjectId(db, ec, op.getClassMetaData(), op.getInternalObjectId());
+                    if (propObj != null)
+                    {
+                        propObjs.put(op, propObj);
+                    }
                 }
+                continue;
             }
-            cypherString.append(")");
-        }
-        else if (cmd.getIdentityType() == IdentityType.DATASTORE)
-        {
-            OID oid = (OID)id;
-            if (oid == null || storeMgr.isStrategyDatastoreAttributed(cmd, -1))
+
+            for (Map.Entry<String, ? extends PropertyContainer> foundEntry : found.entrySet())
             {
-                // Not yet set, so return null (needs to be attributed in the datastore)
-                return null;
+                ObjectProvider op = opsForRoot.get(foundEntry.getKey());
+                if (op != null)
+                {
+                    propObjs.put(op, foundEntry.getValue());
+                }
             }
-            Object value = oid.getKeyValue();
-            String propName = ec.getStoreManager().getNamingFactory().getColumnName(cmd, ColumnType.DATASTOREID_COLUMN);
-            cypherString.append(" WHERE (pc.");
-            cypherString.append(propName);
-            cypherString.append(" = ");
-            cypherString.append(Neo4jUtils.getStoredValueForField(ec, null, value, FieldRole.ROLE_FIELD));
-            cypherString.append(")");
-        }
-        else
-        {
-            throw new NucleusException("Impossible to retrieve Node/Relationship for nondurable identity");
         }
+        return propObjs;
+    }
 
-        if (cmd.hasDiscriminatorStrategy())
+    private static String escapeIndexQueryTerm(String term)
+    {
+        StringBuffer str = new StringBuffer();
+        for (int i=0;i<term.length();i++)
         {
-            DiscriminatorMetaData discmd = cmd.getDiscriminatorMetaData();
-            String propName = storeMgr.getNamingFactory().getColumnName(cmd, ColumnType.DISCRIMINATOR_COLUMN);
-            Object discVal = null;
-            if (cmd.getDiscriminatorStrategy() == DiscriminatorStrategy.CLASS_NAME)
-            {
-                discVal = cmd.getFullClassName();
-            }
-            else
+            char c = term.charAt(i);
+            if ("\\+-!():^[]\"{}~*?|&/".indexOf(c) >= 0)
             {
-                discVal = discmd.getValue();
+                str.append('\\');
             }
-            cypherString.append(" and (pc.").append(propName).append(" = \"").append(discVal).append("\")");
+            str.append(c);
         }
+        return str.toString();
+    }
 
-        cypherString.append(" RETURN pc");
-
+    private static Node getNodeFromIdentityIndex(GraphDatabaseService db, ExecutionContext ec, AbstractClassMetaData cmd,
+            String idxValue, Object id)
+    {
         if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled())
         {
-            NucleusLogger.DATASTORE_NATIVE.debug("Retrieving object using Cypher query : " + cypherString);
+            NucleusLogger.DATASTORE_NATIVE.debug("Retrieving Node for id=" + id + " using index " + getIdentityIndexName(cmd) +
+                " (" + cmd.getFullClassName() + "=" + idxValue + ")");
         }
 
-        ExecutionEngine engine = new ExecutionEngine(graphDB);
-        ExecutionResult result = engine.execute(cypherString.toString());
+        IndexHits<Node> hits = db.index().forNodes(getIdentityIndexName(cmd)).get(cmd.getFullClassName(), idxValue);
         if (ec.getStatistics() != null)
         {
             // Add to statistics
             ec.getStatistics().incrementNumReads();
         }
-
-        Iterator<Map<String, Object>> iter = result.iterator();
-        if (!iter.hasNext())
+        try
         {
-            return null;
+            if (!hits.hasNext())
+            {
+                return null;
+            }
+            Node node = hits.next();
+            if (hits.hasNext())
+            {
+                throw new NucleusException("Lookup of Node for object with id=" + id + " returned more than 1 result!");
+            }
+            return node;
         }
-
-        Map<String, Object> map = iter.next();
-        PropertyContainer propObj = (PropertyContainer)map.get("pc");
-        if (iter.hasNext())
+        finally
         {
-            throw new NucleusException("Query of Node/Relationship for object with id=" + id + 
-                " returned more than 1 result! : " + cypherString);
+            hits.close();
         }
-        return propObj;
     }
 
     /**
      * Method to execute a Cypher query.
      * @param query Query that is invoking this Cypher query
-     * @param db The GraphDatabaseService to execute against
+     * @param mconn The connection to execute against
      * @param cypherText The Cypher query
      * @param candidateCmd Meta-data for the candidate of this query (if returning candidate)
      * @return List of results. If a result clause is provided then returns List&lt;Object&gt; or List&lt;Object[]&gt;
      *     and otherwise returns List&lt;candidate&gt;
      */
-    public static List executeCypherQuery(Query query, GraphDatabaseService db, String cypherText,
+    public static List executeCypherQuery(Query query, ManagedConnection mconn, String cypherText,
             AbstractClassMetaData candidateCmd)
     {
+        return executeCypherQuery(query, mconn, cypherText, null, candidateCmd, false);
+    }
+
+    /**
+     * Method to execute a (parameterised) Cypher query.
+     * When the rows are to be locked (only when they are the final results of a query serialising reads, see
+     * {@link #useWriteLockForQuery(Query)}), all result rows are read and the Nodes/Relationships in them are
+     * write-locked (in a deterministic order), and then the query is executed again so that the results returned
+     * are read under the locks (repeating while it returns Nodes/Relationships not yet locked).
+     * @param query Query that is invoking this Cypher query
+     * @param mconn The connection to execute against
+     * @param cypherText The Cypher query
+     * @param cypherParams Values for any parameters in the Cypher query, keyed by name (or null if none)
+     * @param candidateCmd Meta-data for the candidate of this query (if returning candidate)
+     * @param lock Whether to write-lock the Nodes/Relationships of the result rows
+     * @return List of results. If a result clause is provided then returns List&lt;Object&gt; or List&lt;Object[]&gt;
+     *     and otherwise returns List&lt;candidate&gt;
+     */
+    public static List executeCypherQuery(Query query, ManagedConnection mconn, String cypherText,
+            Map<String, Object> cypherParams, AbstractClassMetaData candidateCmd, boolean lock)
+    {
+        GraphDatabaseService db = (lock ? getGraphDatabaseForWrite(mconn) : getGraphDatabase(mconn));
         if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled())
         {
             NucleusLogger.DATASTORE_NATIVE.debug("Retrieving objects of type " + candidateCmd.getFullClassName() + 
-                " using Cypher query : " + cypherText);
+                " using Cypher query : " + cypherText + (cypherParams != null ? " with parameters " + cypherParams : ""));
         }
 
         // Extract the result from the Cypher text
@@ -314,13 +1136,94 @@ public class Neo4jUtils
             resultStr = null;
         }
 
-        ExecutionEngine engine = new ExecutionEngine(db);
-        ExecutionResult queryResult = engine.execute(cypherText);
+        Neo4jStoreManager storeMgr = (Neo4jStoreManager)query.getStoreManager();
+        Iterable<Map<String, Object>> queryResult = storeMgr.getCypherEngineRegistry().execute(db, cypherText, cypherParams);
+        if (lock)
+        {
+            // Lock the Nodes/Relationships returned, and re-read the rows under the locks until no more need locking
+            Set<PropertyContainer> lockedPropObjs = new HashSet<PropertyContainer>();
+            while (true)
+            {
+                List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+                Set<PropertyContainer> propObjs = new HashSet<PropertyContainer>();
+                for (Map<String, Object> row : queryResult)
+                {
+                    rows.add(row);
+                    for (Object value : row.values())
+                    {
+                        if (value instanceof PropertyContainer && !lockedPropObjs.contains(value))
+                        {
+                            propObjs.add((PropertyContainer)value);
+                        }
+                    }
+                }
+                queryResult = rows;
+                if (propObjs.isEmpty())
+                {
+                    if (lockedPropObjs.isEmpty() && !rows.isEmpty())
+                    {
+                        NucleusLogger.QUERY.warn("Query " + query + " is to serialise reads but its results have no" +
+                            " Nodes/Relationships to lock, so are returned without locking");
+                    }
+                    break;
+                }
+                acquireWriteLocks(mconn, propObjs);
+                lockedPropObjs.addAll(propObjs);
+                queryResult = storeMgr.getCypherEngineRegistry().execute(db, cypherText, cypherParams);
+            }
+        }
 
         // Return as lazy-load results object
         return new LazyLoadQueryResult(query, queryResult, resultStr);
     }
 
+    /**
+     * Convenience method to return whether the store has any type information, so could contain objects.
+     * This checks for the "DN_TYPES" index (or the "DN_TYPE_NODES" index when using type nodes) since the
+     * START clause of Cypher for a class fails when the index doesn't exist.
+     * @param storeMgr StoreManager
+     * @param db The GraphDatabaseService
+     * @return Whether there is type information
+     */
+    public static boolean hasTypeInformation(StoreManager storeMgr, GraphDatabaseService db)
+    {
+        if (((Neo4jStoreManager)storeMgr).usesTypeNodes())
+        {
+            return db.index().existsForNodes(Neo4jStoreManager.PROPCONTAINER_TYPE_NODE_INDEX);
+        }
+        return db.index().existsForNodes(Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX);
+    }
+
+    /**
+     * Convenience method to return the start of a Cypher query for the Nodes/Relationships of the specified class,
+     * binding them to the specified alias. This is a START on the "DN_TYPES" index or, when using type nodes, a START
+     * on the type node(s) with a MATCH of their instances.
+     * @param storeMgr StoreManager
+     * @param cmd Metadata for the class
+     * @param alias Alias for the Nodes/Relationships
+     * @param subclasses Whether to include instances of subclasses
+     * @return The Cypher text
+     */
+    public static String getCypherStartForClass(StoreManager storeMgr, AbstractClassMetaData cmd, String alias, boolean subclasses)
+    {
+        String indexClassName = cmd.getFullClassName();
+        if (!subclasses)
+        {
+            indexClassName += "-EXCLUSIVE";
+        }
+
+        boolean attributedRelation = Neo4jUtils.classIsAttributedRelation(cmd);
+        if (!attributedRelation && ((Neo4jStoreManager)storeMgr).usesTypeNodes())
+        {
+            String typeAlias = alias + "_type";
+            return "START " + typeAlias + "=node:" + Neo4jStoreManager.PROPCONTAINER_TYPE_NODE_INDEX +
+                "(" + Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX_KEY + "=\"" + indexClassName + "\")" +
+                " MATCH " + typeAlias + "<-[:" + DNRelationshipType.INSTANCE_OF.name() + "]-" + alias;
+        }
+        return "START " + alias + (attributedRelation ? "=relationship:" : "=node:") + Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX +
+            "(" + Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX_KEY + "=\"" + indexClassName + "\")";
+    }
+
     /**
      * Convenience method to construct a cypher query string from candidate information as well as any required
      * filter, result, ordering and range.
@@ -348,14 +1251,7 @@ public class Neo4jUtils
         StringBuffer cypherString = new StringBuffer();
 
         // Start from the nodes of the required type
-        String indexClassName = cmd.getFullClassName();
-        if (!subclasses)
-        {
-            indexClassName += "-EXCLUSIVE";
-        }
-        cypherString.append("START " + candidateAlias + 
-            (attributedRelation ? "=relationship:" : "=node:") + Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX + 
-            "(" + Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX_KEY + "=\"" + indexClassName + "\")");
+        cypherString.append(getCypherStartForClass(storeMgr, cmd, candidateAlias, subclasses));
 
         // Add any WHERE clause
         boolean multiple = false;
@@ -460,7 +1356,32 @@ public class Neo4jUtils
             ExecutionContext ec, AbstractClassMetaData cmd)
     {
         // Assumed to be of the root type, but check all subclasses
-        boolean attributedRelation = Neo4jUtils.classIsAttributedRelation(cmd);
+        Neo4jStoreManager storeMgr = (Neo4jStoreManager)ec.getStoreManager();
+        boolean attributedRelation = getPersistencePlan(ec, cmd).isAttributedRelation();
+        if (!attributedRelation && propObj instanceof Node)
+        {
+            // Type of the Node is recorded directly (class id, or INSTANCE_OF type node), unless persisted before this was recorded
+            TypeNodeRegistry typeNodes = storeMgr.getTypeNodeRegistry();
+            String className = (storeMgr.usesTypeNodes() ?
+                    typeNodes.getClassNameForNode((Node)propObj) : typeNodes.getClassNameForClassIdProperty((Node)propObj));
+            if (className != null)
+            {
+                if (className.equals(cmd.getFullClassName()))
+                {
+                    return cmd;
+                }
+                AbstractClassMetaData nodeCmd = ec.getMetaDataManager().getMetaDataForClass(className, ec.getClassLoaderResolver());
+                if (nodeCmd != null)
+                {
+                    return nodeCmd;
+                }
+            }
+            if (storeMgr.usesTypeNodes())
+            {
+                return cmd;
+            }
+        }
+
         if (attributedRelation)
         {
             Index<Relationship> typesIdx = propObj.getGraphDatabase().index().forRelationships(Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX);
@@ -544,6 +1465,28 @@ public class Neo4jUtils
         return obj;
     }
 
+    /**
+     * Convenience method to return the identity of the object stored in a Node/Relationship, as it would be generated
+     * when the object is retrieved (e.g by a query).
+     * @param propObj The Node/Relationship
+     * @param cmd Metadata for the class that this is an instance of
+     * @param ec ExecutionContext
+     * @return The identity (or null if the class has nondurable identity)
+     */
+    public static Object getIdentityForPropertyContainer(PropertyContainer propObj, AbstractClassMetaData cmd, ExecutionContext ec)
+    {
+        if (cmd.getIdentityType() == IdentityType.APPLICATION)
+        {
+            return IdentityUtils.getApplicationIdentityForResultSetRow(ec, cmd, null, false, new FetchFieldManager(ec, propObj, cmd));
+        }
+        else if (cmd.getIdentityType() == IdentityType.DATASTORE)
+        {
+            Object idKey = propObj.getProperty(getPersistencePlan(ec, cmd).getDatastoreIdPropertyName());
+            return OIDFactory.getInstance(ec.getNucleusContext(), cmd.getFullClassName(), idKey);
+        }
+        return null;
+    }
+
     protected static Object getObjectUsingApplicationIdForDBObject(final PropertyContainer propObj, 
             final AbstractClassMetaData cmd, final ExecutionContext ec, boolean ignoreCache, final int[] fpMembers)
     {
@@ -551,7 +1494,6 @@ public class Neo4jUtils
         Object id = IdentityUtils.getApplicationIdentityForResultSetRow(ec, cmd, null, 
             false, fm);
 
-        StoreManager storeMgr = ec.getStoreManager();
         Class type = ec.getClassLoaderResolver().classForName(cmd.getFullClassName());
         Object pc = ec.findObject(id, false, false, type.getName());
         ObjectProvider op = ec.findObjectProvider(pc);
@@ -591,7 +1533,7 @@ public class Neo4jUtils
                 else
                 {
                     // Get the surrogate version from the datastore
-                    version = propObj.getProperty(storeMgr.getNamingFactory().getColumnName(cmd, ColumnType.VERSION_COLUMN));
+                    version = propObj.getProperty(getPersistencePlan(ec, cmd).getVersionPropertyName());
                 }
                 op.setVersion(version);
             }
@@ -602,8 +1544,7 @@ public class Neo4jUtils
     protected static Object getObjectUsingDatastoreIdForDBObject(final PropertyContainer propObj, 
             final AbstractClassMetaData cmd, final ExecutionContext ec, boolean ignoreCache, final int[] fpMembers)
     {
-        StoreManager storeMgr = ec.getStoreManager();
-        Object idKey = propObj.getProperty(storeMgr.getNamingFactory().getColumnName(cmd, ColumnType.DATASTOREID_COLUMN));
+        Object idKey = propObj.getProperty(getPersistencePlan(ec, cmd).getDatastoreIdPropertyName());
 
         OID id = OIDFactory.getInstance(ec.getNucleusContext(), cmd.getFullClassName(), idKey);
         Class type = ec.getClassLoaderResolver().classForName(cmd.getFullClassName());
@@ -645,7 +1586,7 @@ public class Neo4jUtils
                 else
                 {
                     // Get the surrogate version from the datastore
-                    version = propObj.getProperty(storeMgr.getNamingFactory().getColumnName(cmd, ColumnType.VERSION_COLUMN));
+                    version = propObj.getProperty(getPersistencePlan(ec, cmd).getVersionPropertyName());
                 }
                 op.setVersion(version);
             }
@@ -685,7 +1626,6 @@ public class Neo4jUtils
 
             if (cmd.isVersioned())
             {
-                // Set the version on the retrieved object
                 StoreManager storeMgr = ec.getStoreManager();
                 Object version = null;
                 VersionMetaData vermd = cmd.getVersionMetaDataForClass();
@@ -698,7 +1638,7 @@ public class Neo4jUtils
                 else
                 {
                     // Get the surrogate version from the datastore
-                    version = propObj.getProperty(storeMgr.getNamingFactory().getColumnName(cmd, ColumnType.VERSION_COLUMN));
+                    version = propObj.getProperty(getPersistencePlan(ec, cmd).getVersionPropertyName());
                 }
                 op.setVersion(version);
             }
@@ -722,155 +1662,8 @@ public class Neo4jUtils
             return null;
         }
 
-        Class type = value.getClass();
-        if (mmd != null)
-        {
-            if (fieldRole == FieldRole.ROLE_COLLECTION_ELEMENT)
-            {
-                type = ec.getClassLoaderResolver().classForName(mmd.getCollection().getElementType());
-            }
-            else if (fieldRole == FieldRole.ROLE_ARRAY_ELEMENT)
-            {
-                type = ec.getClassLoaderResolver().classForName(mmd.getArray().getElementType());
-            }
-            else if (fieldRole == FieldRole.ROLE_MAP_KEY)
-            {
-                type = ec.getClassLoaderResolver().classForName(mmd.getMap().getKeyType());
-            }
-            else if (fieldRole == FieldRole.ROLE_MAP_VALUE)
-            {
-                type = ec.getClassLoaderResolver().classForName(mmd.getMap().getValueType());
-            }
-            else
-            {
-                type = mmd.getType();
-            }
-        }
-
-        if (mmd != null && mmd.hasCollection() && fieldRole == FieldRole.ROLE_FIELD)
-        {
-            Collection rawColl = (Collection)value;
-            if (rawColl.size() == 0)
-            {
-                return null;
-            }
-
-            Object[] objArray = new Object[rawColl.size()];
-            int i = 0;
-            for (Object elem : rawColl)
-            {
-                Object storeElem = getStoredValueForField(ec, mmd, elem, FieldRole.ROLE_COLLECTION_ELEMENT);
-                objArray[i++] = storeElem;
-            }
-
-            // Convert to an accepted array type if necessary
-            return convertArrayToStorableArray(objArray, mmd);
-        }
-        else if (mmd != null && mmd.hasArray() && fieldRole == FieldRole.ROLE_FIELD)
-        {
-            if (Array.getLength(value) == 0)
-            {
-                return null;
-            }
-
-            if (type.getComponentType().isPrimitive())
-            {
-                return value;
-            }
-            else if (type.getComponentType() == String.class)
-            {
-                return value;
-            }
-
-            Object[] objArray = new Object[Array.getLength(value)];
-            for (int i=0;i<objArray.length;i++)
-            {
-                Object elem = Array.get(value, i);
-                Object storeElem = getStoredValueForField(ec, mmd, elem, FieldRole.ROLE_ARRAY_ELEMENT);
-                objArray[i] = storeElem;
-            }
-
-            // Convert to an accepted array type if necessary
-            return convertArrayToStorableArray(objArray, mmd);
-        }
-
-        if (Byte.class.isAssignableFrom(type) ||
-            Boolean.class.isAssignableFrom(type) ||
-            Character.class.isAssignableFrom(type) ||
-            Double.class.isAssignableFrom(type) ||
-            Float.class.isAssignableFrom(type) ||
-            Integer.class.isAssignableFrom(type) ||
-            Long.class.isAssignableFrom(type) ||
-            Short.class.isAssignableFrom(type) ||
-            String.class.isAssignableFrom(type))
-        {
-            // Natively supported
-            return value;
-        }
-        else if (Enum.class.isAssignableFrom(type))
-        {
-            ColumnMetaData colmd = null;
-            if (mmd != null && mmd.getColumnMetaData() != null && mmd.getColumnMetaData().length > 0)
-            {
-                colmd = mmd.getColumnMetaData()[0];
-            }
-            boolean useNumeric = MetaDataUtils.persistColumnAsNumeric(colmd);
-            return useNumeric ? ((Enum)value).ordinal() : ((Enum)value).name();
-        }
-
-        // Fallback to built-in type converters
-        TypeConverter strConv = ec.getTypeManager().getTypeConverterForType(type, String.class);
-        TypeConverter longConv = ec.getTypeManager().getTypeConverterForType(type, Long.class);
-        if (strConv != null)
-        {
-            // store as a String
-            return strConv.toDatastoreType(value);
-        }
-        else if (longConv != null)
-        {
-            // store as a Long
-            return longConv.toDatastoreType(value);
-        }
-
-        // TODO Cater for cases with no converters
-        return value;
-    }
-
-    private static Object convertArrayToStorableArray(Object[] objArray, AbstractMemberMetaData mmd)
-    {
-        if (objArray == null || objArray.length == 0)
-        {
-            return null;
-        }
-
-        // Convert to an accepted array type if necessary
-        Object array = objArray;
-        Class cmptCls = objArray[0].getClass();
-        if (ClassUtils.isPrimitiveWrapperType(cmptCls.getName()))
-        {
-            // Primitive wrapper so convert to the primitive array type (ignores null elements)
-            Class primType = ClassUtils.getPrimitiveTypeForType(cmptCls);
-            array = Array.newInstance(primType, objArray.length);
-            for (int i=0;i<objArray.length;i++)
-            {
-                Array.set(array, i, objArray[i]);
-            }
-        }
-        else if (cmptCls.isPrimitive() || cmptCls == String.class)
-        {
-            array = Array.newInstance(cmptCls, objArray.length);
-            for (int i=0;i<objArray.length;i++)
-            {
-                Array.set(array, i, objArray[i]);
-            }
-        }
-        else
-        {
-            throw new NucleusException("Field " + mmd.getFullFieldName() + 
-                " cannot be persisted to Neo4j since Neo4j doesn't natively support such a type (" + mmd.getType() + ")");
-        }
-
-        return array;
+        ValueCodec codec = ((Neo4jStoreManager)ec.getStoreManager()).getValueCodec(mmd, fieldRole, value.getClass(), ec);
+        return codec.encode(value);
     }
 
     /**
@@ -889,110 +1682,8 @@ public class Neo4jUtils
             return null;
         }
 
-        Class type = value.getClass();
-        if (mmd != null)
-        {
-            if (fieldRole == FieldRole.ROLE_COLLECTION_ELEMENT)
-            {
-                type = ec.getClassLoaderResolver().classForName(mmd.getCollection().getElementType());
-            }
-            else if (fieldRole == FieldRole.ROLE_ARRAY_ELEMENT)
-            {
-                type = ec.getClassLoaderResolver().classForName(mmd.getArray().getElementType());
-            }
-            else if (fieldRole == FieldRole.ROLE_MAP_KEY)
-            {
-                type = ec.getClassLoaderResolver().classForName(mmd.getMap().getKeyType());
-            }
-            else if (fieldRole == FieldRole.ROLE_MAP_VALUE)
-            {
-                type = ec.getClassLoaderResolver().classForName(mmd.getMap().getValueType());
-            }
-            else
-            {
-                type = mmd.getType();
-            }
-        }
-
-        if (mmd != null && mmd.hasCollection() && fieldRole == FieldRole.ROLE_FIELD)
-        {
-            Collection<Object> coll;
-            try
-            {
-                Class instanceType = SCOUtils.getContainerInstanceType(mmd.getType(), mmd.getOrderMetaData() != null);
-                coll = (Collection<Object>) instanceType.newInstance();
-            }
-            catch (Exception e)
-            {
-                throw new NucleusDataStoreException(e.getMessage(), e);
-            }
-
-            for (int i=0;i<Array.getLength(value);i++)
-            {
-                Object elem = Array.get(value, i);
-                Object storeElem = getFieldValueFromStored(ec, mmd, elem, FieldRole.ROLE_COLLECTION_ELEMENT);
-                coll.add(storeElem);
-            }
-            return coll;
-        }
-        else if (mmd != null && mmd.hasArray() && fieldRole == FieldRole.ROLE_FIELD)
-        {
-            Object array = Array.newInstance(mmd.getType().getComponentType(), Array.getLength(value));
-            for (int i=0;i<Array.getLength(value);i++)
-            {
-                Object elem = Array.get(value, i);
-                Object storeElem = getFieldValueFromStored(ec, mmd, elem, FieldRole.ROLE_ARRAY_ELEMENT);
-                Array.set(array, i++, storeElem);
-            }
-            return array;
-        }
-
-        if (Byte.class.isAssignableFrom(type) ||
-            Boolean.class.isAssignableFrom(type) ||
-            Character.class.isAssignableFrom(type) ||
-            Double.class.isAssignableFrom(type) ||
-            Float.class.isAssignableFrom(type) ||
-            Integer.class.isAssignableFrom(type) ||
-            Long.class.isAssignableFrom(type) ||
-            Short.class.isAssignableFrom(type) ||
-            String.class.isAssignableFrom(type))
-        {
-            return value;
-        }
-        else if (Enum.class.isAssignableFrom(type))
-        {
-            ColumnMetaData colmd = null;
-            if (mmd != null && mmd.getColumnMetaData() != null && mmd.getColumnMetaData().length > 0)
-            {
-                colmd = mmd.getColumnMetaData()[0];
-            }
-            if (MetaDataUtils.persistColumnAsNumeric(colmd))
-            {
-                return type.getEnumConstants()[((Number)value).intValue()];
-            }
-            else
-            {
-                return Enum.valueOf(type, (String)value);
-            }
-        }
-
-        TypeConverter strConv = ec.getTypeManager().getTypeConverterForType(type, String.class);
-        TypeConverter longConv = ec.getTypeManager().getTypeConverterForType(type, Long.class);
-        if (strConv != null)
-        {
-            // Persisted as a String, so convert back
-            String strValue = (String)value;
-            return strConv.toMemberType(strValue);
-        }
-        else if (longConv != null)
-        {
-            // Persisted as a Long, so convert back
-            Long longValue = (Long)value;
-            return longConv.toMemberType(longValue);
-        }
-
-        // TODO Cater for cases with no converters
-        return value;
+        ValueCodec codec = ((Neo4jStoreManager)ec.getStoreManager()).getValueCodec(mmd, fieldRole, value.getClass(), ec);
+        return codec.decode(value);
     }
 
     /**
@@ -1050,7 +1741,7 @@ public class Neo4jUtils
         ManagedConnection mconn = storeMgr.getConnection(ec);
         try
         {
-            GraphDatabaseService db = (GraphDatabaseService)mconn.getConnection();
+            GraphDatabaseService db = getGraphDatabase(mconn);
             PropertyContainer propObj = Neo4jUtils.getPropertyContainerForObjectId(db, ec, rootCmd, id);
             if (propObj instanceof Node)
             {
@@ -1069,6 +1760,11 @@ public class Neo4jUtils
         }
     }
 
+    private static PersistencePlan getPersistencePlan(ExecutionContext ec, AbstractClassMetaData cmd)
+    {
+        return ((Neo4jStoreManager)ec.getStoreManager()).getPersistencePlan(cmd, ec.getClassLoaderResolver());
+    }
+
     /**
      * Return whether a class should be persisted as a Relationship rather than Node.
      * If a class is marked as an "attributed relation" then it needs to have 2 PC references, one for source
@@ -0,0 +1,220 @@
+/**********************************************************************
+Copyright (c) 2013 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.neo4j;
+
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.PropertyNames;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.metadata.DiscriminatorStrategy;
+import org.datanucleus.metadata.IdentityType;
+import org.datanucleus.metadata.VersionMetaData;
+import org.datanucleus.store.StoreManager;
+import org.datanucleus.store.schema.naming.ColumnType;
+import org.datanucleus.store.schema.naming.NamingFactory;
+
+/**
+ * Information about how objects of a class are persisted, derived from its metadata once and then shared by
+ * all operations on objects of the class : the property name of each member, which members are relations, and the
+ * properties for the datastore identity, version, discriminator and multi-tenancy. Immutable, and cached by the
+ * StoreManager.
+ */
+public class PersistencePlan
+{
+    private final AbstractClassMetaData cmd;
+
+    private final boolean attributedRelation;
+
+    /** Property name of each managed member (interned), indexed by absolute member number. */
+    private final String[] propertyNames;
+
+    private final int[] relationMemberPositions;
+
+    private final int[] nonRelationMemberPositions;
+
+    private final String datastoreIdPropertyName;
+
+    private final VersionMetaData versionMetaData;
+
+    private final AbstractMemberMetaData versionMember;
+
+    private final String versionPropertyName;
+
+    private final String discriminatorPropertyName;
+
+    private final Object discriminatorValue;
+
+    private final String multitenancyPropertyName;
+
+    /**
+     * Constructor, deriving the plan from the metadata of the class.
+     * @param cmd Metadata for the class
+     * @param storeMgr StoreManager
+     * @param clr ClassLoader resolver
+     */
+    public PersistencePlan(AbstractClassMetaData cmd, StoreManager storeMgr, ClassLoaderResolver clr)
+    {
+        this.cmd = cmd;
+        this.attributedRelation = Neo4jUtils.classIsAttributedRelation(cmd);
+
+        NamingFactory namingFactory = storeMgr.getNamingFactory();
+        int numMembers = cmd.getNoOfInheritedManagedMembers() + cmd.getNoOfManagedMembers();
+        propertyNames = new String[numMembers];
+        for (int i=0;i<numMembers;i++)
+        {
+            AbstractMemberMetaData mmd = cmd.getMetaDataForManagedMemberAtAbsolutePosition(i);
+            if (mmd != null)
+            {
+                propertyNames[i] = namingFactory.getColumnName(mmd, ColumnType.COLUMN).intern();
+            }
+        }
+
+        relationMemberPositions = cmd.getRelationMemberPositions(clr, storeMgr.getMetaDataManager());
+        nonRelationMemberPositions = cmd.getNonRelationMemberPositions(clr, storeMgr.getMetaDataManager());
+
+        datastoreIdPropertyName = (cmd.getIdentityType() == IdentityType.DATASTORE ?
+                namingFactory.getColumnName(cmd, ColumnType.DATASTOREID_COLUMN).intern() : null);
+
+        versionMetaData = cmd.getVersionMetaDataForClass();
+        if (versionMetaData != null)
+        {
+            versionMember = (versionMetaData.getFieldName() != null ? cmd.getMetaDataForMember(versionMetaData.getFieldName()) : null);
+            versionPropertyName = namingFactory.getColumnName(cmd, ColumnType.VERSION_COLUMN).intern();
+        }
+        else
+        {
+            versionMember = null;
+            versionPropertyName = null;
+        }
+
+        if (cmd.hasDiscriminatorStrategy())
+        {
+            discriminatorPropertyName = namingFactory.getColumnName(cmd, ColumnType.DISCRIMINATOR_COLUMN).intern();
+            discriminatorValue = (cmd.getDiscriminatorStrategy() == DiscriminatorStrategy.CLASS_NAME ?
+                    cmd.getFullClassName() : cmd.getDiscriminatorMetaData().getValue());
+        }
+        else
+        {
+            discriminatorPropertyName = null;
+            discriminatorValue = null;
+        }
+
+        if (storeMgr.getStringProperty(PropertyNames.PROPERTY_MAPPING_TENANT_ID) != null &&
+            !"true".equalsIgnoreCase(cmd.getValueForExtension("multitenancy-disable")))
+        {
+            multitenancyPropertyName = namingFactory.getColumnName(cmd, ColumnType.MULTITENANCY_COLUMN).intern();
+        }
+        else
+        {
+            multitenancyPropertyName = null;
+        }
+    }
+
+    public AbstractClassMetaData getClassMetaData()
+    {
+        return cmd;
+    }
+
+    /**
+     * Accessor for whether objects of the class are persisted as Relationships rather than Nodes.
+     * @return Whether an attributed relation
+     */
+    public boolean isAttributedRelation()
+    {
+        return attributedRelation;
+    }
+
+    /**
+     * Accessor for the name of the property storing the specified member.
+     * @param fieldNumber Absolute number of the member
+     * @return The property name
+     */
+    public String getPropertyName(int fieldNumber)
+    {
+        return propertyNames[fieldNumber];
+    }
+
+    public int[] getRelationMemberPositions()
+    {
+        return relationMemberPositions;
+    }
+
+    public int[] getNonRelationMemberPositions()
+    {
+        return nonRelationMemberPositions;
+    }
+
+    /**
+     * Accessor for the name of the property storing the datastore identity.
+     * @return The property name (or null if the class doesn't use datastore identity)
+     */
+    public String getDatastoreIdPropertyName()
+    {
+        return datastoreIdPropertyName;
+    }
+
+    /**
+     * Accessor for the version metadata of the class.
+     * @return The version metadata (or null if not versioned)
+     */
+    public VersionMetaData getVersionMetaData()
+    {
+        return versionMetaData;
+    }
+
+    /**
+     * Accessor for the member holding the version.
+     * @return The version member (or null if not versioned, or using a surrogate version)
+     */
+    public AbstractMemberMetaData getVersionMember()
+    {
+        return versionMember;
+    }
+
+    /**
+     * Accessor for the name of the property storing the surrogate version.
+     * @return The property name (or null if not versioned)
+     */
+    public String getVersionPropertyName()
+    {
+        return versionPropertyName;
+    }
+
+    /**
+     * Accessor for the name of the property storing the discriminator.
+     * @return The property name (or null if the class has no discriminator)
+     */
+    public String getDiscriminatorPropertyName()
+    {
+        return discriminatorPropertyName;
+    }
+
+    public Object getDiscriminatorValue()
+    {
+        return discriminatorValue;
+    }
+
+    /**
+     * Accessor for the name of the property storing the tenant id.
+     * @return The property name (or null if not using multi-tenancy for this class)
+     */
+    public String getMultitenancyPropertyName()
+    {
+        return multitenancyPropertyName;
+    }
+}
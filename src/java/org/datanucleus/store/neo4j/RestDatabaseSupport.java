@@ -0,0 +1,165 @@
+/**********************************************************************
+Copyright (c) 2013 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.neo4j;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.datanucleus.util.NucleusLogger;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Lock;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.rest.graphdb.BatchTransaction;
+import org.neo4j.rest.graphdb.RestAPI;
+import org.neo4j.rest.graphdb.RestAPIFacade;
+import org.neo4j.rest.graphdb.RestAPIImpl;
+import org.neo4j.rest.graphdb.RestGraphDatabase;
+import org.neo4j.rest.graphdb.query.RestCypherQueryEngine;
+
+/**
+ * Support for using a remote Neo4j server via its REST API (using java-rest-binding), presenting it as a
+ * GraphDatabaseService. All use of java-rest-binding classes is kept in here so that its jar is only needed
+ * when connecting to a remote server.
+ * <p>
+ * With batched transactions, all writes in a Neo4j transaction are sent to the server in a single batch request
+ * when the transaction finishes, rather than a request per Node/Relationship/property. Cypher is sent directly.
+ * The writes aren't on the server until the batch is sent, so Cypher queries and identity index lookups in the same
+ * transaction don't see them (objects already in the ExecutionContext are still found by their identity).
+ * Batching is set per connection, rather than by the JVM-wide java-rest-binding system property.
+ * </p>
+ */
+public class RestDatabaseSupport
+{
+    RestCypherQueryEngine cypherEngine;
+
+    /**
+     * Method to connect to a remote Neo4j server.
+     * @param url URL of the server REST API, e.g "http://localhost:7474/db/data"
+     * @param userName User name (or null)
+     * @param password Password (or null)
+     * @param batchTransactions Whether to send the writes of each transaction in a single batch request
+     * @return The GraphDatabaseService for the server
+     */
+    public static GraphDatabaseService connect(String url, String userName, String password, boolean batchTransactions)
+    {
+        NucleusLogger.CONNECTION.info("Connecting to remote Neo4j server at " + url + (batchTransactions ? " using batched transactions" : ""));
+        RemoteGraphDatabase db = new RemoteGraphDatabase(new RestAPIFacade(url, userName, password), batchTransactions);
+        if (batchTransactions)
+        {
+            // Separate (direct) API for writes that must not be part of the batch of the current thread
+            db.unbatched = new RemoteGraphDatabase(new RestAPIImpl(url, userName, password), false);
+        }
+        return db;
+    }
+
+    /**
+     * Accessor for a GraphDatabaseService for the same server whose writes are sent to the server when made, even
+     * when the current thread has a batched transaction, for writes that must be committed on their own.
+     * @param db The GraphDatabaseService for the server (from <i>connect</i>)
+     * @return The unbatched GraphDatabaseService
+     */
+    public static GraphDatabaseService getUnbatchedDatabase(GraphDatabaseService db)
+    {
+        RemoteGraphDatabase remoteDB = (RemoteGraphDatabase)db;
+        return (remoteDB.unbatched != null ? remoteDB.unbatched : remoteDB);
+    }
+
+    /**
+     * Constructor for Cypher execution against a remote server.
+     * @param db The GraphDatabaseService for the server (from <i>connect</i>)
+     */
+    public RestDatabaseSupport(GraphDatabaseService db)
+    {
+        cypherEngine = new RestCypherQueryEngine(((RestGraphDatabase)db).getRestAPI());
+    }
+
+    /**
+     * Method to execute the provided Cypher text on the server.
+     * @param cypherText The Cypher query
+     * @param params Values for any parameters in the Cypher query (or null)
+     * @return The result rows
+     */
+    public Iterable<Map<String, Object>> execute(String cypherText, Map<String, Object> params)
+    {
+        if (params == null)
+        {
+            params = Collections.emptyMap();
+        }
+        return cypherEngine.query(cypherText, params);
+    }
+
+    /**
+     * RestGraphDatabase whose transactions are batched (or not) as configured for this connection.
+     */
+    static class RemoteGraphDatabase extends RestGraphDatabase
+    {
+        boolean batchTransactions;
+
+        /** Unbatched database for the same server, when batching transactions. */
+        RemoteGraphDatabase unbatched;
+
+        RemoteGraphDatabase(RestAPI restAPI, boolean batchTransactions)
+        {
+            super(restAPI);
+            this.batchTransactions = batchTransactions;
+        }
+
+        /* (non-Javadoc)
+         * @see org.neo4j.rest.graphdb.RestGraphDatabase#beginTx()
+         */
+        @Override
+        public Transaction beginTx()
+        {
+            if (batchTransactions)
+            {
+                return BatchTransaction.begin(getRestAPI());
+            }
+            return new UnbatchedTransaction();
+        }
+    }
+
+    /**
+     * Transaction when not batching, where each write is sent to the server when made, so there is nothing to do on
+     * commit, and rollback and locking aren't possible.
+     */
+    static class UnbatchedTransaction implements Transaction
+    {
+        public void success()
+        {
+        }
+
+        public void failure()
+        {
+        }
+
+        public void finish()
+        {
+        }
+
+        public Lock acquireWriteLock(PropertyContainer entity)
+        {
+            throw new UnsupportedOperationException("Locking is not supported for a remote Neo4j server");
+        }
+
+        public Lock acquireReadLock(PropertyContainer entity)
+        {
+            throw new UnsupportedOperationException("Locking is not supported for a remote Neo4j server");
+        }
+    }
+}
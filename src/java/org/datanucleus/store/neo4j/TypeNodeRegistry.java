@@ -0,0 +1,451 @@
+/**********************************************************************
+Copyright (c) 2013 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.neo4j;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.transaction.TransactionManager;
+
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.store.neo4j.fieldmanager.DNRelationshipType;
+import org.datanucleus.util.NucleusLogger;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.kernel.GraphDatabaseAPI;
+
+/**
+ * Registry of the class ids of a store and, when type membership is represented in the graph
+ * ("datanucleus.neo4j.typeMembership" of "typeNodes"), of its type nodes. Each persistable class with instances has
+ * a class node, holding its class name and a compact class id, and each Node of an object has the class id of its
+ * concrete class as a property, so the class of a Node is found without a lookup.
+ * The class nodes are registered in the (small) "DN_CLASS_IDS" index with key "class" set to the class name and
+ * key "id" set to the class id, which is how class ids are allocated atomically : a class id is only taken by the
+ * class node that registers it first, so a process (or registry) that loses the race tries the next id.
+ * <p>
+ * When using type nodes, the class node is also the type node of its class : it is registered in the "DN_TYPE_NODES"
+ * index with key "class" set to {class-name}-EXCLUSIVE, {class-name}, and the name of each persistable superclass, and
+ * each Node of an object has an INSTANCE_OF Relationship to it, so a query can start from the type nodes of a class
+ * (optionally including subclasses) and match their instances. Otherwise no type nodes are created.
+ * </p>
+ * <p>
+ * Class nodes are created in their own Neo4j transaction on the calling thread, so that they exist regardless of the
+ * outcome of the transaction inserting the first instance, and so they can be cached here. Any transaction of the
+ * calling thread is suspended meanwhile (for a remote server, the class node is written directly rather than as part
+ * of any batch). The only locks taken are on the new class node and its index keys, which no other transaction holds
+ * for longer than its own creation of a class node, so the creation can't deadlock with the suspended transaction.
+ * Note that creating an INSTANCE_OF Relationship locks the type node until the transaction ends, so concurrent
+ * transactions inserting objects of the same class are serialised; setting the class id property locks nothing shared.
+ * </p>
+ */
+public class TypeNodeRegistry
+{
+    /** Property of a class node holding the name of the class. */
+    public static final String CLASS_NAME_PROPERTY = "DN_CLASS_NAME";
+
+    /** Property of a class node (and of each Node of an object) holding the class id. */
+    public static final String CLASS_ID_PROPERTY = "DN_CLASS_ID";
+
+    /** Key in the "DN_CLASS_IDS" index under which a class node is registered with its class id. */
+    public static final String CLASS_ID_INDEX_KEY = "id";
+
+    /** Whether the class nodes are also type nodes, related to the Nodes of their instances. */
+    private final boolean typeNodes;
+
+    /** Id of the type node, keyed by class name (only when using type nodes). */
+    private final Map<String, Long> typeNodeIdsByClassName = new ConcurrentHashMap<String, Long>();
+
+    /** Class id, keyed by class name. */
+    private final Map<String, Integer> classIdsByClassName = new ConcurrentHashMap<String, Integer>();
+
+    /** Class name, keyed by class id. */
+    private final Map<Integer, String> classNamesByClassId = new ConcurrentHashMap<Integer, String>();
+
+    /**
+     * Constructor.
+     * @param typeNodes Whether the Nodes of objects are related to a type node for their class
+     */
+    public TypeNodeRegistry(boolean typeNodes)
+    {
+        this.typeNodes = typeNodes;
+    }
+
+    /**
+     * Method to record the type of a new Node of an object, relating it to the type node of its class (creating
+     * the type node if this is the first instance) and setting its class id. Only for use when using type nodes.
+     * @param db The GraphDatabaseService
+     * @param node The Node
+     * @param cmd Metadata for the class of the object
+     */
+    public void addInstance(GraphDatabaseService db, Node node, AbstractClassMetaData cmd)
+    {
+        String className = cmd.getFullClassName();
+        Long typeNodeId = typeNodeIdsByClassName.get(className);
+        if (typeNodeId == null)
+        {
+            createClassNode(db, cmd);
+            typeNodeId = typeNodeIdsByClassName.get(className);
+        }
+        node.createRelationshipTo(db.getNodeById(typeNodeId), DNRelationshipType.INSTANCE_OF);
+        node.setProperty(CLASS_ID_PROPERTY, classIdsByClassName.get(className));
+    }
+
+    /**
+     * Method to set the class id of the Node of an object (creating the class node if this is the first instance),
+     * without relating it to any type node.
+     * @param db The GraphDatabaseService
+     * @param node The Node
+     * @param cmd Metadata for the class of the object
+     */
+    public void setClassId(GraphDatabaseService db, Node node, AbstractClassMetaData cmd)
+    {
+        node.setProperty(CLASS_ID_PROPERTY, getClassId(db, cmd));
+    }
+
+    /**
+     * Accessor for the class id of the specified class, creating its class node if not yet existing.
+     * @param db The GraphDatabaseService
+     * @param cmd Metadata for the class
+     * @return The class id
+     */
+    public int getClassId(GraphDatabaseService db, AbstractClassMetaData cmd)
+    {
+        Integer classId = classIdsByClassName.get(cmd.getFullClassName());
+        if (classId == null)
+        {
+            createClassNode(db, cmd);
+            classId = classIdsByClassName.get(cmd.getFullClassName());
+        }
+        return classId;
+    }
+
+    /**
+     * Accessor for the type node of the specified class (when using type nodes).
+     * @param db The GraphDatabaseService
+     * @param className Name of the class
+     * @return The type node, or null if the class has no type node (i.e no instance has been persisted)
+     */
+    public Node getTypeNode(GraphDatabaseService db, String className)
+    {
+        Long typeNodeId = typeNodeIdsByClassName.get(className);
+        if (typeNodeId != null)
+        {
+            return db.getNodeById(typeNodeId);
+        }
+
+        // Maybe created by another process, so look up just this class
+        if (!db.index().existsForNodes(Neo4jStoreManager.PROPCONTAINER_TYPE_NODE_INDEX))
+        {
+            return null;
+        }
+        Node typeNode = db.index().forNodes(Neo4jStoreManager.PROPCONTAINER_TYPE_NODE_INDEX).get(
+            Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX_KEY, className + "-EXCLUSIVE").getSingle();
+        if (typeNode != null)
+        {
+            register(typeNode);
+            typeNodeIdsByClassName.put(className, typeNode.getId());
+        }
+        return typeNode;
+    }
+
+    /**
+     * Accessor for the name of the class with the specified class id.
+     * @param db The GraphDatabaseService
+     * @param classId The class id
+     * @return Name of the class (or null if not known)
+     */
+    public String getClassNameForClassId(GraphDatabaseService db, int classId)
+    {
+        String className = classNamesByClassId.get(classId);
+        if (className == null)
+        {
+            // Maybe created by another process
+            load(db);
+            className = classNamesByClassId.get(classId);
+        }
+        return className;
+    }
+
+    /**
+     * Accessor for the name of the class of the object stored in the specified Node, using its class id property or,
+     * failing that, its INSTANCE_OF Relationship.
+     * @param node The Node
+     * @return Name of the class (or null if the Node has no type information)
+     */
+    public String getClassNameForNode(Node node)
+    {
+        String className = getClassNameForClassIdProperty(node);
+        if (className != null)
+        {
+            return className;
+        }
+
+        Relationship rel = node.getSingleRelationship(DNRelationshipType.INSTANCE_OF, Direction.OUTGOING);
+        return (rel != null ? (String)rel.getEndNode().getProperty(CLASS_NAME_PROPERTY, null) : null);
+    }
+
+    /**
+     * Accessor for the name of the class of the object stored in the specified Node, using its class id property.
+     * @param node The Node
+     * @return Name of the class (or null if the Node has no (known) class id)
+     */
+    public String getClassNameForClassIdProperty(Node node)
+    {
+        Object classId = node.getProperty(CLASS_ID_PROPERTY, null);
+        if (classId instanceof Number)
+        {
+            return getClassNameForClassId(node.getGraphDatabase(), ((Number)classId).intValue());
+        }
+        return null;
+    }
+
+    /**
+     * Accessor for the Nodes of the objects of exactly the specified type.
+     * @param typeNode The type node of the class
+     * @return The Nodes of its instances
+     */
+    public static Iterable<Node> getInstanceNodes(final Node typeNode)
+    {
+        return new Iterable<Node>()
+        {
+            public Iterator<Node> iterator()
+            {
+                final Iterator<Relationship> relIter = typeNode.getRelationships(DNRelationshipType.INSTANCE_OF, Direction.INCOMING).iterator();
+                return new Iterator<Node>()
+                {
+                    public boolean hasNext()
+                    {
+                        return relIter.hasNext();
+                    }
+
+                    public Node next()
+                    {
+                        return relIter.next().getStartNode();
+                    }
+
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Method to clear all cached type information, for use when the database is shut down.
+     */
+    public void clear()
+    {
+        typeNodeIdsByClassName.clear();
+        classIdsByClassName.clear();
+        classNamesByClassId.clear();
+    }
+
+    /**
+     * Method to (re)load the cached class ids from the class nodes in the datastore, removing any cached
+     * class that no longer has a class node (e.g. the database was cleared).
+     * @param db The GraphDatabaseService
+     */
+    protected void load(GraphDatabaseService db)
+    {
+        if (!db.index().existsForNodes(Neo4jStoreManager.PROPCONTAINER_CLASS_ID_INDEX))
+        {
+            clear();
+            return;
+        }
+
+        Set<String> classNames = new HashSet<String>();
+        IndexHits<Node> classNodes = db.index().forNodes(Neo4jStoreManager.PROPCONTAINER_CLASS_ID_INDEX).query(
+            Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX_KEY, "*");
+        try
+        {
+            for (Node classNode : classNodes)
+            {
+                classNames.add(register(classNode));
+            }
+        }
+        finally
+        {
+            classNodes.close();
+        }
+
+        Iterator<Map.Entry<String, Integer>> classIdIter = classIdsByClassName.entrySet().iterator();
+        while (classIdIter.hasNext())
+        {
+            Map.Entry<String, Integer> entry = classIdIter.next();
+            if (!classNames.contains(entry.getKey()))
+            {
+                classIdIter.remove();
+                classNamesByClassId.remove(entry.getValue());
+                typeNodeIdsByClassName.remove(entry.getKey());
+            }
+        }
+    }
+
+    private String register(Node classNode)
+    {
+        String className = (String)classNode.getProperty(CLASS_NAME_PROPERTY);
+        Integer classId = ((Number)classNode.getProperty(CLASS_ID_PROPERTY)).intValue();
+        classIdsByClassName.put(className, classId);
+        classNamesByClassId.put(classId, className);
+        return className;
+    }
+
+    /**
+     * Method to create the class node for a class (unless created since last loaded), committing it in its own
+     * transaction, and registering it as the type node of the class when using type nodes.
+     * The class id is one more than the highest known, unless another process takes that id first (see class javadoc),
+     * in which case the next free id is used.
+     * @param db The GraphDatabaseService
+     * @param cmd Metadata for the class
+     */
+    protected synchronized void createClassNode(GraphDatabaseService db, AbstractClassMetaData cmd)
+    {
+        load(db);
+        String className = cmd.getFullClassName();
+        if (classIdsByClassName.containsKey(className) && (!typeNodes || typeNodeIdsByClassName.containsKey(className) ||
+            getTypeNode(db, className) != null))
+        {
+            return;
+        }
+
+        int maxClassId = 0;
+        for (Integer classId : classNamesByClassId.keySet())
+        {
+            maxClassId = Math.max(maxClassId, classId);
+        }
+
+        Node classNode = null;
+        if (db instanceof GraphDatabaseAPI)
+        {
+            // Suspend any transaction of this thread, so the class node is created in a transaction of its own
+            TransactionManager txManager = ((GraphDatabaseAPI)db).getTxManager();
+            javax.transaction.Transaction threadTx = null;
+            try
+            {
+                threadTx = txManager.suspend();
+            }
+            catch (Exception e)
+            {
+                throw new NucleusDataStoreException("Exception suspending Neo4j transaction to create class node for " + className, e);
+            }
+
+            try
+            {
+                classNode = createClassNodeInTransaction(db, cmd, maxClassId + 1);
+            }
+            finally
+            {
+                if (threadTx != null)
+                {
+                    try
+                    {
+                        txManager.resume(threadTx);
+                    }
+                    catch (Exception e)
+                    {
+                        throw new NucleusDataStoreException("Exception resuming Neo4j transaction after creating class node for " + className, e);
+                    }
+                }
+            }
+        }
+        else
+        {
+            // Remote server, so write directly to the server rather than in any batch of this thread
+            classNode = createClassNodeInTransaction(RestDatabaseSupport.getUnbatchedDatabase(db), cmd, maxClassId + 1);
+        }
+
+        register(classNode);
+        if (typeNodes)
+        {
+            getTypeNode(db, className);
+        }
+        if (NucleusLogger.DATASTORE_SCHEMA.isDebugEnabled())
+        {
+            NucleusLogger.DATASTORE_SCHEMA.debug("Created " + (typeNodes ? "type" : "class") + " node " + classNode +
+                " for class " + className + " with class id " + classIdsByClassName.get(className));
+        }
+    }
+
+    private Node createClassNodeInTransaction(GraphDatabaseService db, AbstractClassMetaData cmd, int firstClassId)
+    {
+        Transaction tx = db.beginTx();
+        try
+        {
+            Index<Node> classIdIdx = db.index().forNodes(Neo4jStoreManager.PROPCONTAINER_CLASS_ID_INDEX);
+            Node classNode = classIdIdx.get(Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX_KEY, cmd.getFullClassName()).getSingle();
+            if (classNode == null)
+            {
+                Node newNode = db.createNode();
+                newNode.setProperty(CLASS_NAME_PROPERTY, cmd.getFullClassName());
+                classNode = classIdIdx.putIfAbsent(newNode, Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX_KEY, cmd.getFullClassName());
+                if (classNode != null)
+                {
+                    // Created by another process since we looked
+                    newNode.delete();
+                }
+                else
+                {
+                    // Take the first class id not registered by another class node
+                    classNode = newNode;
+                    int classId = firstClassId;
+                    while (classIdIdx.putIfAbsent(classNode, CLASS_ID_INDEX_KEY, "" + classId) != null)
+                    {
+                        classId++;
+                    }
+                    classNode.setProperty(CLASS_ID_PROPERTY, classId);
+                }
+            }
+
+            if (typeNodes)
+            {
+                Index<Node> typeNodeIdx = db.index().forNodes(Neo4jStoreManager.PROPCONTAINER_TYPE_NODE_INDEX);
+                if (typeNodeIdx.putIfAbsent(classNode, Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX_KEY, cmd.getFullClassName() + "-EXCLUSIVE") == null)
+                {
+                    AbstractClassMetaData theCmd = cmd;
+                    while (theCmd != null)
+                    {
+                        typeNodeIdx.add(classNode, Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX_KEY, theCmd.getFullClassName());
+                        theCmd = theCmd.getSuperAbstractClassMetaData();
+                    }
+                }
+            }
+            tx.success();
+            return classNode;
+        }
+        catch (RuntimeException re)
+        {
+            tx.failure();
+            throw new NucleusDataStoreException("Exception creating class node for " + cmd.getFullClassName(), re);
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+}
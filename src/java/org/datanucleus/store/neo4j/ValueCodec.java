@@ -0,0 +1,560 @@
+/**********************************************************************
+Copyright (c) 2013 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.neo4j;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.exceptions.NucleusException;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.metadata.ColumnMetaData;
+import org.datanucleus.metadata.FieldRole;
+import org.datanucleus.metadata.MetaDataUtils;
+import org.datanucleus.store.types.SCOUtils;
+import org.datanucleus.store.types.TypeManager;
+import org.datanucleus.store.types.converters.TypeConverter;
+import org.datanucleus.util.ClassUtils;
+
+/**
+ * Conversion between the value of a (non-relation) member, or of an element/key/value of it, and the value stored
+ * in a Neo4j property, taking into account the types that Neo4j supports. The conversion to use is decided when the
+ * codec is created (from the metadata of the member) so encoding/decoding a value doesn't need any type lookup.
+ * Codecs are immutable, so can be shared by all threads; they are cached by the StoreManager.
+ */
+public abstract class ValueCodec
+{
+    /**
+     * Method to convert the value of the member into the value to store.
+     * @param value The value (not null)
+     * @return The value to store (null when nothing should be stored)
+     */
+    public abstract Object encode(Object value);
+
+    /**
+     * Method to convert the stored value into the value of the member.
+     * @param value The stored value (not null)
+     * @return The value for the member
+     */
+    public abstract Object decode(Object value);
+
+    /**
+     * Method to create the codec for a member in the specified role.
+     * @param mmd Metadata for the member
+     * @param fieldRole Role of the values (see FieldRole)
+     * @param clr ClassLoader resolver
+     * @param typeMgr Type manager
+     * @return The codec
+     */
+    public static ValueCodec forMember(AbstractMemberMetaData mmd, int fieldRole, ClassLoaderResolver clr, TypeManager typeMgr)
+    {
+        if (fieldRole == FieldRole.ROLE_COLLECTION_ELEMENT)
+        {
+            return forType(clr.classForName(mmd.getCollection().getElementType()), mmd, typeMgr);
+        }
+        else if (fieldRole == FieldRole.ROLE_ARRAY_ELEMENT)
+        {
+            return forType(clr.classForName(mmd.getArray().getElementType()), mmd, typeMgr);
+        }
+        else if (fieldRole == FieldRole.ROLE_MAP_KEY)
+        {
+            return forType(clr.classForName(mmd.getMap().getKeyType()), mmd, typeMgr);
+        }
+        else if (fieldRole == FieldRole.ROLE_MAP_VALUE)
+        {
+            return forType(clr.classForName(mmd.getMap().getValueType()), mmd, typeMgr);
+        }
+        else if (fieldRole == FieldRole.ROLE_FIELD && mmd.hasCollection())
+        {
+            Class elementType = clr.classForName(mmd.getCollection().getElementType());
+            return new CollectionCodec(mmd, forType(elementType, mmd, typeMgr), getDirectArrayType(elementType));
+        }
+        else if (fieldRole == FieldRole.ROLE_FIELD && mmd.hasArray())
+        {
+            return new ArrayCodec(mmd, forMember(mmd, FieldRole.ROLE_ARRAY_ELEMENT, clr, typeMgr));
+        }
+        return forType(mmd.getType(), mmd, typeMgr);
+    }
+
+    /**
+     * Method to create the codec for values of a (non-container) type.
+     * @param type The type
+     * @param mmd Metadata for the member holding the values (null if not known)
+     * @param typeMgr Type manager
+     * @return The codec
+     */
+    public static ValueCodec forType(Class type, AbstractMemberMetaData mmd, TypeManager typeMgr)
+    {
+        if (Byte.class.isAssignableFrom(type) ||
+            Boolean.class.isAssignableFrom(type) ||
+            Character.class.isAssignableFrom(type) ||
+            Double.class.isAssignableFrom(type) ||
+            Float.class.isAssignableFrom(type) ||
+            Integer.class.isAssignableFrom(type) ||
+            Long.class.isAssignableFrom(type) ||
+            Short.class.isAssignableFrom(type) ||
+            String.class.isAssignableFrom(type))
+        {
+            // Natively supported
+            return NativeCodec.INSTANCE;
+        }
+        else if (Enum.class.isAssignableFrom(type))
+        {
+            ColumnMetaData colmd = null;
+            if (mmd != null && mmd.getColumnMetaData() != null && mmd.getColumnMetaData().length > 0)
+            {
+                colmd = mmd.getColumnMetaData()[0];
+            }
+            return new EnumCodec(type, MetaDataUtils.persistColumnAsNumeric(colmd));
+        }
+
+        // Fallback to built-in type converters
+        TypeConverter strConv = typeMgr.getTypeConverterForType(type, String.class);
+        if (strConv != null)
+        {
+            // store as a String
+            return new ConverterCodec(strConv);
+        }
+        TypeConverter longConv = typeMgr.getTypeConverterForType(type, Long.class);
+        if (longConv != null)
+        {
+            // store as a Long
+            return new ConverterCodec(longConv);
+        }
+
+        // TODO Cater for cases with no converters
+        return NativeCodec.INSTANCE;
+    }
+
+    /**
+     * Codec for types that Neo4j stores natively.
+     */
+    private static class NativeCodec extends ValueCodec
+    {
+        static final NativeCodec INSTANCE = new NativeCodec();
+
+        public Object encode(Object value)
+        {
+            return value;
+        }
+
+        public Object decode(Object value)
+        {
+            return value;
+        }
+    }
+
+    /**
+     * Codec for an enum, stored as its ordinal or name.
+     */
+    private static class EnumCodec extends ValueCodec
+    {
+        final Class enumType;
+        final Object[] constants;
+        final boolean numeric;
+
+        EnumCodec(Class enumType, boolean numeric)
+        {
+            this.enumType = enumType;
+            this.constants = enumType.getEnumConstants();
+            this.numeric = numeric;
+        }
+
+        public Object encode(Object value)
+        {
+            return numeric ? ((Enum)value).ordinal() : ((Enum)value).name();
+        }
+
+        public Object decode(Object value)
+        {
+            return numeric ? constants[((Number)value).intValue()] : Enum.valueOf(enumType, (String)value);
+        }
+    }
+
+    /**
+     * Codec using a TypeConverter to a type that Neo4j stores natively (String or Long).
+     */
+    private static class ConverterCodec extends ValueCodec
+    {
+        final TypeConverter converter;
+
+        ConverterCodec(TypeConverter converter)
+        {
+            this.converter = converter;
+        }
+
+        public Object encode(Object value)
+        {
+            return converter.toDatastoreType(value);
+        }
+
+        public Object decode(Object value)
+        {
+            return converter.toMemberType(value);
+        }
+    }
+
+    /**
+     * Codec for a Collection member, stored as an array of its (encoded) elements.
+     * Collections of Long/Integer/Double/String are copied directly to/from a long[]/int[]/double[]/String[].
+     */
+    private static class CollectionCodec extends ValueCodec
+    {
+        final AbstractMemberMetaData mmd;
+        final ValueCodec elementCodec;
+        final Class instanceType;
+
+        /** Type of array that the elements are stored as directly (null if the elements need converting). */
+        final Class directArrayType;
+
+        CollectionCodec(AbstractMemberMetaData mmd, ValueCodec elementCodec, Class directArrayType)
+        {
+            this.mmd = mmd;
+            this.elementCodec = elementCodec;
+            this.instanceType = SCOUtils.getContainerInstanceType(mmd.getType(), mmd.getOrderMetaData() != null);
+            this.directArrayType = directArrayType;
+        }
+
+        public Object encode(Object value)
+        {
+            Collection rawColl = (Collection)value;
+            if (rawColl.size() == 0)
+            {
+                return null;
+            }
+
+            if (directArrayType != null)
+            {
+                Object array = toDirectArray(rawColl);
+                if (array != null)
+                {
+                    return array;
+                }
+                // Some element is null or of another type, so convert generically
+            }
+
+            Object[] objArray = new Object[rawColl.size()];
+            int i = 0;
+            for (Object elem : rawColl)
+            {
+                objArray[i++] = (elem != null ? elementCodec.encode(elem) : null);
+            }
+
+            // Convert to an accepted array type if necessary
+            return convertArrayToStorableArray(objArray, mmd);
+        }
+
+        public Object decode(Object value)
+        {
+            Collection<Object> coll;
+            try
+            {
+                coll = (Collection<Object>) instanceType.newInstance();
+            }
+            catch (Exception e)
+            {
+                throw new NucleusDataStoreException(e.getMessage(), e);
+            }
+
+            if (value.getClass() == directArrayType)
+            {
+                addDirectArray(value, coll);
+                return coll;
+            }
+
+            int length = Array.getLength(value);
+            for (int i=0;i<length;i++)
+            {
+                Object elem = Array.get(value, i);
+                coll.add(elem != null ? elementCodec.decode(elem) : null);
+            }
+            return coll;
+        }
+    }
+
+    /**
+     * Codec for an array member, stored as is when Neo4j supports the component type, otherwise as an array of its
+     * (encoded) elements.
+     */
+    private static class ArrayCodec extends ValueCodec
+    {
+        final AbstractMemberMetaData mmd;
+        final ValueCodec elementCodec;
+        final Class componentType;
+        final boolean storedAsIs;
+
+        ArrayCodec(AbstractMemberMetaData mmd, ValueCodec elementCodec)
+        {
+            this.mmd = mmd;
+            this.elementCodec = elementCodec;
+            this.componentType = mmd.getType().getComponentType();
+            this.storedAsIs = componentType.isPrimitive() || componentType == String.class;
+        }
+
+        public Object encode(Object value)
+        {
+            int length = Array.getLength(value);
+            if (length == 0)
+            {
+                return null;
+            }
+            else if (storedAsIs)
+            {
+                return value;
+            }
+
+            Object[] objArray = new Object[length];
+            for (int i=0;i<length;i++)
+            {
+                Object elem = Array.get(value, i);
+                objArray[i] = (elem != null ? elementCodec.encode(elem) : null);
+            }
+
+            // Convert to an accepted array type if necessary
+            return convertArrayToStorableArray(objArray, mmd);
+        }
+
+        public Object decode(Object value)
+        {
+            if (storedAsIs && value.getClass() == mmd.getType())
+            {
+                Object array = copyArray(value);
+                if (array != null)
+                {
+                    return array;
+                }
+            }
+
+            int length = Array.getLength(value);
+            Object array = Array.newInstance(componentType, length);
+            for (int i=0;i<length;i++)
+            {
+                Object elem = Array.get(value, i);
+                Array.set(array, i, elem != null ? elementCodec.decode(elem) : null);
+            }
+            return array;
+        }
+    }
+
+    /**
+     * Accessor for the type of array that elements of the specified type are stored as without conversion.
+     * @param elementType Type of the elements
+     * @return The array type, or null if the elements are not copied directly
+     */
+    private static Class getDirectArrayType(Class elementType)
+    {
+        if (elementType == Long.class)
+        {
+            return long[].class;
+        }
+        else if (elementType == Integer.class)
+        {
+            return int[].class;
+        }
+        else if (elementType == Double.class)
+        {
+            return double[].class;
+        }
+        else if (elementType == String.class)
+        {
+            return String[].class;
+        }
+        return null;
+    }
+
+    /**
+     * Method to copy the elements of a collection (of Long/Integer/Double/String) into the array stored for it.
+     * @param coll The collection
+     * @return The array, or null if an element is null or not of the element type
+     */
+    private static Object toDirectArray(Collection coll)
+    {
+        int size = coll.size();
+        Object first = coll.iterator().next();
+        int i = 0;
+        if (first instanceof Long)
+        {
+            long[] array = new long[size];
+            for (Object elem : coll)
+            {
+                if (!(elem instanceof Long))
+                {
+                    return null;
+                }
+                array[i++] = ((Long)elem).longValue();
+            }
+            return array;
+        }
+        else if (first instanceof Integer)
+        {
+            int[] array = new int[size];
+            for (Object elem : coll)
+            {
+                if (!(elem instanceof Integer))
+                {
+                    return null;
+                }
+                array[i++] = ((Integer)elem).intValue();
+            }
+            return array;
+        }
+        else if (first instanceof Double)
+        {
+            double[] array = new double[size];
+            for (Object elem : coll)
+            {
+                if (!(elem instanceof Double))
+                {
+                    return null;
+                }
+                array[i++] = ((Double)elem).doubleValue();
+            }
+            return array;
+        }
+        else if (first instanceof String)
+        {
+            String[] array = new String[size];
+            for (Object elem : coll)
+            {
+                if (!(elem instanceof String))
+                {
+                    return null;
+                }
+                array[i++] = (String)elem;
+            }
+            return array;
+        }
+        return null;
+    }
+
+    /**
+     * Method to add the elements of a stored long[]/int[]/double[]/String[] to a collection.
+     * @param array The stored array
+     * @param coll The collection
+     */
+    private static void addDirectArray(Object array, Collection<Object> coll)
+    {
+        if (array instanceof long[])
+        {
+            long[] values = (long[])array;
+            ensureCapacity(coll, values.length);
+            for (int i=0;i<values.length;i++)
+            {
+                coll.add(Long.valueOf(values[i]));
+            }
+        }
+        else if (array instanceof int[])
+        {
+            int[] values = (int[])array;
+            ensureCapacity(coll, values.length);
+            for (int i=0;i<values.length;i++)
+            {
+                coll.add(Integer.valueOf(values[i]));
+            }
+        }
+        else if (array instanceof double[])
+        {
+            double[] values = (double[])array;
+            ensureCapacity(coll, values.length);
+            for (int i=0;i<values.length;i++)
+            {
+                coll.add(Double.valueOf(values[i]));
+            }
+        }
+        else
+        {
+            String[] values = (String[])array;
+            ensureCapacity(coll, values.length);
+            Collections.addAll(coll, (Object[])values);
+        }
+    }
+
+    private static void ensureCapacity(Collection coll, int size)
+    {
+        if (coll instanceof ArrayList)
+        {
+            ((ArrayList)coll).ensureCapacity(size);
+        }
+    }
+
+    /**
+     * Method to copy an array of a type stored as is, without reflection for the common types.
+     * @param array The array
+     * @return The copy, or null if not a type copied here
+     */
+    private static Object copyArray(Object array)
+    {
+        if (array instanceof long[])
+        {
+            return ((long[])array).clone();
+        }
+        else if (array instanceof int[])
+        {
+            return ((int[])array).clone();
+        }
+        else if (array instanceof double[])
+        {
+            return ((double[])array).clone();
+        }
+        else if (array instanceof String[])
+        {
+            return ((String[])array).clone();
+        }
+        return null;
+    }
+
+    private static Object convertArrayToStorableArray(Object[] objArray, AbstractMemberMetaData mmd)
+    {
+        if (objArray == null || objArray.length == 0)
+        {
+            return null;
+        }
+
+        // Convert to an accepted array type if necessary
+        Object array = objArray;
+        Class cmptCls = objArray[0].getClass();
+        if (ClassUtils.isPrimitiveWrapperType(cmptCls.getName()))
+        {
+            // Primitive wrapper so convert to the primitive array type (ignores null elements)
+            Class primType = ClassUtils.getPrimitiveTypeForType(cmptCls);
+            array = Array.newInstance(primType, objArray.length);
+            for (int i=0;i<objArray.length;i++)
+            {
+                Array.set(array, i, objArray[i]);
+            }
+        }
+        else if (cmptCls.isPrimitive() || cmptCls == String.class)
+        {
+            array = Array.newInstance(cmptCls, objArray.length);
+            for (int i=0;i<objArray.length;i++)
+            {
+                Array.set(array, i, objArray[i]);
+            }
+        }
+        else
+        {
+            throw new NucleusException("Field " + mmd.getFullFieldName() +
+                " cannot be persisted to Neo4j since Neo4j doesn't natively support such a type (" + mmd.getType() + ")");
+        }
+
+        return array;
+    }
+}
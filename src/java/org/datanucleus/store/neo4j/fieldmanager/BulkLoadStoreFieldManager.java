@@ -0,0 +1,177 @@
+/**********************************************************************
+Copyright (c) 2013 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.neo4j.fieldmanager;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.metadata.MetaDataUtils;
+import org.datanucleus.metadata.RelationType;
+import org.datanucleus.state.ObjectProvider;
+import org.datanucleus.store.neo4j.BulkLoadPropertyContainer;
+import org.datanucleus.store.neo4j.Neo4jBulkLoader;
+import org.datanucleus.store.neo4j.Neo4jStoreManager;
+
+/**
+ * Field Manager for putting values from a POJO into a Node being bulk loaded.
+ * Non-relation (and embedded) fields are stored as properties exactly as by StoreFieldManager, whereas relation
+ * fields are written as Relationships via the Neo4jBulkLoader. Only supports insertion.
+ */
+public class BulkLoadStoreFieldManager extends StoreFieldManager
+{
+    protected Neo4jBulkLoader loader;
+
+    public BulkLoadStoreFieldManager(ObjectProvider op, BulkLoadPropertyContainer propObj, Neo4jBulkLoader loader)
+    {
+        super(op, propObj, true);
+        this.loader = loader;
+    }
+
+    /* (non-Javadoc)
+     * @see org.datanucleus.store.neo4j.fieldmanager.StoreFieldManager#storeObjectField(int, java.lang.Object)
+     */
+    @Override
+    public void storeObjectField(int fieldNumber, Object value)
+    {
+        AbstractMemberMetaData mmd = cmd.getMetaDataForManagedMemberAtAbsolutePosition(fieldNumber);
+        if (!isStorable(mmd))
+        {
+            return;
+        }
+
+        ClassLoaderResolver clr = ec.getClassLoaderResolver();
+        RelationType relationType = mmd.getRelationType(clr);
+        if (relationType == RelationType.NONE || mmd.isSerialized() ||
+            MetaDataUtils.getInstance().isMemberEmbedded(ec.getMetaDataManager(), clr, mmd, relationType, ownerMmd))
+        {
+            // Stored as properties of this Node
+            super.storeObjectField(fieldNumber, value);
+            return;
+        }
+        if (value == null)
+        {
+            return;
+        }
+
+        if (RelationType.isRelationSingleValued(relationType))
+        {
+            // 1-1/N-1 Make sure it is persisted and form the relation
+            Object valuePC = ec.persistObjectInternal(value, null, -1, -1);
+            if (relationType != RelationType.MANY_TO_ONE_BI && mmd.getMappedBy() == null)
+            {
+                // Only have a Relationship if this side owns the relation
+                createRelationship(mmd, relationType, clr, ec.findObjectProvider(valuePC), DNRelationshipType.SINGLE_VALUED, null);
+            }
+        }
+        else if (mmd.hasCollection() || mmd.hasArray())
+        {
+            if ((mmd.hasCollection() && mmd.getCollection().isSerializedElement()) ||
+                (mmd.hasArray() && mmd.getArray().isSerializedElement()))
+            {
+                throw new NucleusUserException("Don't currently support serialised elements at " + mmd.getFullFieldName());
+            }
+
+            // We only store relations when we are the owner
+            boolean owner = (relationType == RelationType.ONE_TO_MANY_BI || relationType == RelationType.ONE_TO_MANY_UNI ||
+                (relationType == RelationType.MANY_TO_MANY_BI && mmd.getMappedBy() == null));
+            boolean indexed = mmd.hasArray() || value instanceof List;
+
+            Iterator elementIter = null;
+            if (mmd.hasCollection())
+            {
+                elementIter = ((Collection)value).iterator();
+            }
+            else
+            {
+                Object[] elements = new Object[Array.getLength(value)];
+                for (int i=0;i<elements.length;i++)
+                {
+                    elements[i] = Array.get(value, i);
+                }
+                elementIter = Arrays.asList(elements).iterator();
+            }
+
+            int index = 0;
+            while (elementIter.hasNext())
+            {
+                Object element = elementIter.next();
+                if (element == null)
+                {
+                    throw new NucleusUserException("Dont currently support having null elements in collections/arrays : " + mmd.getFullFieldName());
+                }
+
+                // Reachability : Persist any objects that are not yet persistent
+                Object elementPC = ec.persistObjectInternal(element, null, -1, -1);
+                if (owner)
+                {
+                    createRelationship(mmd, relationType, clr, ec.findObjectProvider(elementPC), DNRelationshipType.MULTI_VALUED,
+                        indexed ? Integer.valueOf(index) : null);
+                }
+                index++;
+            }
+        }
+        else
+        {
+            // TODO Support bulk loading of maps
+            throw new NucleusUserException("Don't currently support bulk loading of map field : " + mmd.getFullFieldName());
+        }
+    }
+
+    /**
+     * Method to create a Relationship from this Node to the Node of the related object, with the same properties
+     * as StoreFieldManager would set.
+     * @param mmd Metadata for the member
+     * @param relationType Type of relation
+     * @param clr ClassLoader resolver
+     * @param relatedOP ObjectProvider for the related object
+     * @param type Type of Relationship
+     * @param index Position of the related object in a List/array (or null)
+     */
+    protected void createRelationship(AbstractMemberMetaData mmd, RelationType relationType, ClassLoaderResolver clr,
+            ObjectProvider relatedOP, DNRelationshipType type, Integer index)
+    {
+        Object relatedPropObj = relatedOP.getAssociatedValue(Neo4jStoreManager.OBJECT_PROVIDER_PROPCONTAINER);
+        if (!(relatedPropObj instanceof BulkLoadPropertyContainer))
+        {
+            throw new NucleusUserException("Object " + relatedOP.getObjectAsPrintable() + " referenced by " + mmd.getFullFieldName() +
+                " was not persisted by this bulk load, so cannot be related to");
+        }
+
+        Map<String, Object> relProps = new HashMap<String, Object>();
+        relProps.put(Neo4jStoreManager.RELATIONSHIP_FIELD_NAME, mmd.getName());
+        if (index != null)
+        {
+            relProps.put(Neo4jStoreManager.RELATIONSHIP_INDEX_NAME, index);
+        }
+        if (RelationType.isBidirectional(relationType))
+        {
+            AbstractMemberMetaData[] relMmds = mmd.getRelatedMemberMetaData(clr);
+            relProps.put(Neo4jStoreManager.RELATIONSHIP_FIELD_NAME_NONOWNER, relMmds[0].getName());
+        }
+        loader.createRelationship(((BulkLoadPropertyContainer)propObj).getNodeId(),
+            ((BulkLoadPropertyContainer)relatedPropObj).getNodeId(), type, relProps);
+    }
+}
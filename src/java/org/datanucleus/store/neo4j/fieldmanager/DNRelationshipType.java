@@ -25,5 +25,8 @@ import org.neo4j.graphdb.RelationshipType;
 public enum DNRelationshipType implements RelationshipType 
 {
     SINGLE_VALUED,
-    MULTI_VALUED
+    MULTI_VALUED,
+
+    /** From the Node of an object to the type node of its class (when using type nodes). */
+    INSTANCE_OF
 }
\ No newline at end of file
@@ -43,7 +43,7 @@ import org.datanucleus.store.fieldmanager.AbstractFetchFieldManager;
 import org.datanucleus.store.fieldmanager.FieldManager;
 import org.datanucleus.store.neo4j.Neo4jStoreManager;
 import org.datanucleus.store.neo4j.Neo4jUtils;
-import org.datanucleus.store.schema.naming.ColumnType;
+import org.datanucleus.store.neo4j.PersistencePlan;
 import org.datanucleus.store.types.SCOUtils;
 import org.datanucleus.store.types.converters.TypeConverter;
 import org.neo4j.graphdb.Node;
@@ -63,6 +63,9 @@ public class FetchFieldManager extends AbstractFetchFieldManager
     /** Metadata for the owner field if this is embedded. */
     protected AbstractMemberMetaData ownerMmd = null;
 
+    /** Persistence plan of the class, holding the property name of each member. */
+    protected PersistencePlan plan;
+
     public FetchFieldManager(ObjectProvider op, PropertyContainer node)
     {
         super(op);
@@ -71,6 +74,7 @@ public class FetchFieldManager extends AbstractFetchFieldManager
         {
             embedded = true;
         }
+        this.plan = ((Neo4jStoreManager)ec.getStoreManager()).getPersistencePlan(cmd, ec.getClassLoaderResolver());
     }
 
     public FetchFieldManager(ExecutionContext ec, PropertyContainer node, AbstractClassMetaData cmd)
@@ -82,12 +86,12 @@ public class FetchFieldManager extends AbstractFetchFieldManager
             throw new NucleusException("Attempt to create FetchFieldManager for " + op + " with null Neo4j Node!" +
                 " Generate a testcase that reproduces this and raise an issue");
         }
+        this.plan = ((Neo4jStoreManager)ec.getStoreManager()).getPersistencePlan(cmd, ec.getClassLoaderResolver());
     }
 
     protected String getPropName(int fieldNumber)
     {
-        return ec.getStoreManager().getNamingFactory().getColumnName(
-            cmd.getMetaDataForManagedMemberAtAbsolutePosition(fieldNumber), ColumnType.COLUMN);
+        return plan.getPropertyName(fieldNumber);
     }
 
     /* (non-Javadoc)
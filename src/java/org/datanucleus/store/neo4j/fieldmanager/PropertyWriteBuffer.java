@@ -0,0 +1,146 @@
+/**********************************************************************
+Copyright (c) 2013 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.neo4j.fieldmanager;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.neo4j.graphdb.PropertyContainer;
+
+/**
+ * Buffer of the property changes for a Node/Relationship during an update, so that they can be applied together
+ * when the fields have all been provided. A property set (or removed) more than once only has its last change
+ * applied, and a change that would leave the property as it currently is (same value, or removal of a property
+ * that isn't set) is dropped, avoiding the write lock, transaction state and logical log entry of a no-op write.
+ */
+public class PropertyWriteBuffer
+{
+    /** Marker for a pending removal of a property. */
+    private static final Object REMOVED = new Object();
+
+    protected final PropertyContainer propObj;
+
+    /** Pending value of each changed property (or REMOVED), in order of change. */
+    private final Map<String, Object> pending = new LinkedHashMap<String, Object>();
+
+    private int numApplied = 0;
+
+    private int numSuppressed = 0;
+
+    public PropertyWriteBuffer(PropertyContainer propObj)
+    {
+        this.propObj = propObj;
+    }
+
+    public void setProperty(String name, Object value)
+    {
+        if (pending.put(name, value) != null)
+        {
+            // Overwrites an earlier change
+            numSuppressed++;
+        }
+    }
+
+    public void removeProperty(String name)
+    {
+        if (pending.put(name, REMOVED) != null)
+        {
+            // Overwrites an earlier change
+            numSuppressed++;
+        }
+    }
+
+    /**
+     * Accessor for whether the property will be set, taking account of pending changes.
+     * @param name Name of the property
+     * @return Whether it has a value
+     */
+    public boolean hasProperty(String name)
+    {
+        Object value = pending.get(name);
+        if (value != null)
+        {
+            return value != REMOVED;
+        }
+        return propObj.hasProperty(name);
+    }
+
+    /**
+     * Method to apply the pending changes to the Node/Relationship, omitting those that wouldn't change it.
+     */
+    public void flush()
+    {
+        for (Map.Entry<String, Object> entry : pending.entrySet())
+        {
+            String name = entry.getKey();
+            Object value = entry.getValue();
+            if (value == REMOVED)
+            {
+                if (propObj.hasProperty(name))
+                {
+                    propObj.removeProperty(name);
+                    numApplied++;
+                }
+                else
+                {
+                    numSuppressed++;
+                }
+            }
+            else if (valuesEqual(value, propObj.getProperty(name, null)))
+            {
+                numSuppressed++;
+            }
+            else
+            {
+                propObj.setProperty(name, value);
+                numApplied++;
+            }
+        }
+        pending.clear();
+    }
+
+    /**
+     * Accessor for the number of property writes applied to the Node/Relationship.
+     * @return Number of writes applied
+     */
+    public int getNumberApplied()
+    {
+        return numApplied;
+    }
+
+    /**
+     * Accessor for the number of property writes dropped, either because overwritten before being applied or
+     * because the property already had that value.
+     * @return Number of writes suppressed
+     */
+    public int getNumberSuppressed()
+    {
+        return numSuppressed;
+    }
+
+    private static boolean valuesEqual(Object value, Object currentValue)
+    {
+        if (currentValue == null)
+        {
+            return false;
+        }
+        // Compare arrays (of primitives or Strings) by content
+        return Arrays.deepEquals(new Object[] {value}, new Object[] {currentValue});
+    }
+}
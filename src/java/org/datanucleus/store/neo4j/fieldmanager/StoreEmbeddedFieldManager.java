@@ -33,6 +33,21 @@ public class StoreEmbeddedFieldManager extends StoreFieldManager
         this.ownerMmd = ownerMmd;
     }
 
+    /**
+     * Constructor for an embedded object whose properties are buffered with those of its owner.
+     * @param op ObjectProvider of the embedded object
+     * @param propObj Node/Relationship of the owner
+     * @param insert Whether inserting
+     * @param ownerMmd Metadata for the owner member
+     * @param writeBuffer Buffer of the property changes of the owner (null if not buffered)
+     */
+    public StoreEmbeddedFieldManager(ObjectProvider op, PropertyContainer propObj, boolean insert, AbstractMemberMetaData ownerMmd,
+            PropertyWriteBuffer writeBuffer)
+    {
+        super(op, propObj, insert, writeBuffer);
+        this.ownerMmd = ownerMmd;
+    }
+
     protected String getPropName(int fieldNumber)
     {
         return Neo4jUtils.getPropertyNameForEmbeddedField(ownerMmd, fieldNumber);
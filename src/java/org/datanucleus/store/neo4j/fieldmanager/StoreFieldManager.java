@@ -21,6 +21,7 @@ import java.io.Serializable;
 import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -38,9 +39,11 @@ import org.datanucleus.store.fieldmanager.AbstractStoreFieldManager;
 import org.datanucleus.store.fieldmanager.FieldManager;
 import org.datanucleus.store.neo4j.Neo4jStoreManager;
 import org.datanucleus.store.neo4j.Neo4jUtils;
-import org.datanucleus.store.schema.naming.ColumnType;
+import org.datanucleus.store.neo4j.PersistencePlan;
+import org.datanucleus.store.neo4j.management.Neo4jStatistics;
 import org.datanucleus.store.types.TypeManager;
 import org.datanucleus.store.types.converters.TypeConverter;
+import org.datanucleus.util.NucleusLogger;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.PropertyContainer;
 import org.neo4j.graphdb.Relationship;
@@ -56,16 +59,78 @@ public class StoreFieldManager extends AbstractStoreFieldManager
     /** Metadata of the owner field if this is for an embedded object. */
     protected AbstractMemberMetaData ownerMmd = null;
 
+    /** Buffer of the property changes when updating (null when inserting, so properties are set directly). */
+    protected PropertyWriteBuffer writeBuffer = null;
+
+    /** Persistence plan of the class, holding the property name of each member. */
+    protected PersistencePlan plan;
+
     public StoreFieldManager(ObjectProvider op, PropertyContainer propObj, boolean insert)
+    {
+        this(op, propObj, insert, insert ? null : new PropertyWriteBuffer(propObj));
+    }
+
+    protected StoreFieldManager(ObjectProvider op, PropertyContainer propObj, boolean insert, PropertyWriteBuffer writeBuffer)
     {
         super(op, insert);
         this.propObj = propObj;
+        this.writeBuffer = writeBuffer;
+        this.plan = ((Neo4jStoreManager)ec.getStoreManager()).getPersistencePlan(cmd, ec.getClassLoaderResolver());
+    }
+
+    /**
+     * Method to apply any buffered property changes to the Node/Relationship, to be called after providing the fields
+     * of an update.
+     */
+    public void flush()
+    {
+        if (writeBuffer == null)
+        {
+            return;
+        }
+
+        writeBuffer.flush();
+        Neo4jStatistics stats = ((Neo4jStoreManager)ec.getStoreManager()).getStatistics();
+        stats.propertyWritesFlushed(writeBuffer.getNumberApplied(), writeBuffer.getNumberSuppressed());
+        if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled() && writeBuffer.getNumberSuppressed() > 0)
+        {
+            NucleusLogger.DATASTORE_NATIVE.debug("Updated " + propObj + " with " + writeBuffer.getNumberApplied() +
+                " property writes, omitting " + writeBuffer.getNumberSuppressed() + " that would not change it");
+        }
+    }
+
+    protected void setProperty(String propName, Object value)
+    {
+        if (writeBuffer != null)
+        {
+            writeBuffer.setProperty(propName, value);
+        }
+        else
+        {
+            propObj.setProperty(propName, value);
+        }
+    }
+
+    protected void removeProperty(String propName)
+    {
+        if (writeBuffer != null)
+        {
+            writeBuffer.removeProperty(propName);
+        }
+        else
+        {
+            propObj.removeProperty(propName);
+        }
+    }
+
+    protected boolean hasProperty(String propName)
+    {
+        return (writeBuffer != null ? writeBuffer.hasProperty(propName) : propObj.hasProperty(propName));
     }
 
     protected String getPropName(int fieldNumber)
     {
-        return ec.getStoreManager().getNamingFactory().getColumnName(
-            cmd.getMetaDataForManagedMemberAtAbsolutePosition(fieldNumber), ColumnType.COLUMN);
+        return plan.getPropertyName(fieldNumber);
     }
 
     /* (non-Javadoc)
@@ -78,7 +143,7 @@ public class StoreFieldManager extends AbstractStoreFieldManager
         {
             return;
         }
-        propObj.setProperty(getPropName(fieldNumber), value);
+        setProperty(getPropName(fieldNumber), value);
     }
 
     /* (non-Javadoc)
@@ -91,7 +156,7 @@ public class StoreFieldManager extends AbstractStoreFieldManager
         {
             return;
         }
-        propObj.setProperty(getPropName(fieldNumber), value);
+        setProperty(getPropName(fieldNumber), value);
     }
 
     /* (non-Javadoc)
@@ -104,7 +169,7 @@ public class StoreFieldManager extends AbstractStoreFieldManager
         {
             return;
         }
-        propObj.setProperty(getPropName(fieldNumber), value);
+        setProperty(getPropName(fieldNumber), value);
     }
 
     /* (non-Javadoc)
@@ -117,7 +182,7 @@ public class StoreFieldManager extends AbstractStoreFieldManager
         {
             return;
         }
-        propObj.setProperty(getPropName(fieldNumber), value);
+        setProperty(getPropName(fieldNumber), value);
     }
 
     /* (non-Javadoc)
@@ -130,7 +195,7 @@ public class StoreFieldManager extends AbstractStoreFieldManager
         {
             return;
         }
-        propObj.setProperty(getPropName(fieldNumber), value);
+        setProperty(getPropName(fieldNumber), value);
     }
 
     /* (non-Javadoc)
@@ -143,7 +208,7 @@ public class StoreFieldManager extends AbstractStoreFieldManager
         {
             return;
         }
-        propObj.setProperty(getPropName(fieldNumber), value);
+        setProperty(getPropName(fieldNumber), value);
     }
 
     /* (non-Javadoc)
@@ -156,7 +221,7 @@ public class StoreFieldManager extends AbstractStoreFieldManager
         {
             return;
         }
-        propObj.setProperty(getPropName(fieldNumber), value);
+        setProperty(getPropName(fieldNumber), value);
     }
 
     /* (non-Javadoc)
@@ -169,7 +234,7 @@ public class StoreFieldManager extends AbstractStoreFieldManager
         {
             return;
         }
-        propObj.setProperty(getPropName(fieldNumber), value);
+        setProperty(getPropName(fieldNumber), value);
     }
 
     /* (non-Javadoc)
@@ -186,11 +251,11 @@ public class StoreFieldManager extends AbstractStoreFieldManager
         {
             if (!insert)
             {
-                propObj.removeProperty(getPropName(fieldNumber));
+                removeProperty(getPropName(fieldNumber));
             }
             return;
         }
-        propObj.setProperty(getPropName(fieldNumber), value);
+        setProperty(getPropName(fieldNumber), value);
     }
 
     /* (non-Javadoc)
@@ -205,11 +270,11 @@ public class StoreFieldManager extends AbstractStoreFieldManager
             return;
         }
 
-        String propName = ec.getStoreManager().getNamingFactory().getColumnName(mmd, ColumnType.COLUMN);
-        if (!insert && propObj.hasProperty(propName) && value == null)
+        String propName = plan.getPropertyName(fieldNumber);
+        if (!insert && hasProperty(propName) && value == null)
         {
             // Updating the field, it had a value but this time is null, so remove it
-            propObj.removeProperty(propName);
+            removeProperty(propName);
             return;
         }
 
@@ -268,7 +333,7 @@ public class StoreFieldManager extends AbstractStoreFieldManager
                     // TODO Cater for inherited embedded objects (discriminator)
 
                     ObjectProvider embOP = ec.findObjectProviderForEmbedded(value, op, mmd);
-                    FieldManager ffm = new StoreEmbeddedFieldManager(embOP, propObj, insert, embMmd);
+                    FieldManager ffm = new StoreEmbeddedFieldManager(embOP, propObj, insert, embMmd, writeBuffer);
                     embOP.provideFields(embcmd.getAllMemberPositions(), ffm);
                     return;
                 }
@@ -287,7 +352,7 @@ public class StoreFieldManager extends AbstractStoreFieldManager
             {
                 TypeConverter<Serializable, String> conv = ec.getTypeManager().getTypeConverterForType(Serializable.class, String.class);
                 String strValue = conv.toDatastoreType((Serializable) value);
-                propObj.setProperty(propName, strValue);
+                setProperty(propName, strValue);
                 return;
             }
             else
@@ -333,7 +398,7 @@ public class StoreFieldManager extends AbstractStoreFieldManager
             // User-defined type converter
             TypeManager typeMgr = ec.getNucleusContext().getTypeManager();
             TypeConverter conv = typeMgr.getTypeConverterForName(mmd.getTypeConverterName());
-            propObj.setProperty(propName, conv.toDatastoreType(value));
+            setProperty(propName, conv.toDatastoreType(value));
         }
         else
         {
@@ -341,7 +406,7 @@ public class StoreFieldManager extends AbstractStoreFieldManager
             if (storedValue != null)
             {
                 // Neo4j doesn't allow null values
-                propObj.setProperty(propName, storedValue);
+                setProperty(propName, storedValue);
             }
         }
         op.wrapSCOField(fieldNumber, value, false, false, true);
@@ -441,48 +506,15 @@ public class StoreFieldManager extends AbstractStoreFieldManager
                 return;
             }
 
-            if (insert)
+            if (coll instanceof List)
             {
-                // Insert of the collection, so create Relationship for each
-                int index = 0;
-                for (Node newNode : relNodes)
-                {
-                    Relationship rel = node.createRelationshipTo(newNode, DNRelationshipType.MULTI_VALUED);
-                    rel.setProperty(Neo4jStoreManager.RELATIONSHIP_FIELD_NAME, mmd.getName());
-                    if (coll instanceof List)
-                    {
-                        rel.setProperty(Neo4jStoreManager.RELATIONSHIP_INDEX_NAME, index);
-                        index++;
-                    }
-                    if (RelationType.isBidirectional(relationType))
-                    {
-                        AbstractMemberMetaData[] relMmds = mmd.getRelatedMemberMetaData(clr);
-                        rel.setProperty(Neo4jStoreManager.RELATIONSHIP_FIELD_NAME_NONOWNER, relMmds[0].getName());
-                    }
-                }
+                // Store the position of each element in a property on its Relationship
+                updateRelationshipsForMultivaluedMember(node, mmd, relationType, clr, relNodes,
+                    Neo4jStoreManager.RELATIONSHIP_INDEX_NAME, getPositions(relNodes.size()));
             }
             else
             {
-                // Update of the collection so remove existing Relationship and create new
-                // TODO Handle better detecting which are still present and which new/updated
-                deleteRelationshipsForMultivaluedMember(node, mmd);
-
-                int index = 0;
-                for (Node newNode : relNodes)
-                {
-                    Relationship rel = node.createRelationshipTo(newNode, DNRelationshipType.MULTI_VALUED);
-                    rel.setProperty(Neo4jStoreManager.RELATIONSHIP_FIELD_NAME, mmd.getName());
-                    if (coll instanceof List)
-                    {
-                        rel.setProperty(Neo4jStoreManager.RELATIONSHIP_INDEX_NAME, index);
-                        index++;
-                    }
-                    if (RelationType.isBidirectional(relationType))
-                    {
-                        AbstractMemberMetaData[] relMmds = mmd.getRelatedMemberMetaData(clr);
-                        rel.setProperty(Neo4jStoreManager.RELATIONSHIP_FIELD_NAME_NONOWNER, relMmds[0].getName());
-                    }
-                }
+                updateRelationshipsForMultivaluedMember(node, mmd, relationType, clr, relNodes, null, null);
             }
         }
         else if (mmd.hasArray())
@@ -520,43 +552,9 @@ public class StoreFieldManager extends AbstractStoreFieldManager
                 return;
             }
 
-            if (insert)
-            {
-                // Insert of the array, so create Relationship for each
-                int index = 0;
-                for (Node newNode : relNodes)
-                {
-                    Relationship rel = node.createRelationshipTo(newNode, DNRelationshipType.MULTI_VALUED);
-                    rel.setProperty(Neo4jStoreManager.RELATIONSHIP_FIELD_NAME, mmd.getName());
-                    rel.setProperty(Neo4jStoreManager.RELATIONSHIP_INDEX_NAME, index);
-                    if (RelationType.isBidirectional(relationType))
-                    {
-                        AbstractMemberMetaData[] relMmds = mmd.getRelatedMemberMetaData(clr);
-                        rel.setProperty(Neo4jStoreManager.RELATIONSHIP_FIELD_NAME_NONOWNER, relMmds[0].getName());
-                    }
-                    index++;
-                }
-            }
-            else
-            {
-                // Update of the array so remove existing Relationship and create new
-                // TODO Handle better detecting which are still present and which new/updated
-                deleteRelationshipsForMultivaluedMember(node, mmd);
-
-                int index = 0;
-                for (Node newNode : relNodes)
-                {
-                    Relationship rel = node.createRelationshipTo(newNode, DNRelationshipType.MULTI_VALUED);
-                    rel.setProperty(Neo4jStoreManager.RELATIONSHIP_FIELD_NAME, mmd.getName());
-                    rel.setProperty(Neo4jStoreManager.RELATIONSHIP_INDEX_NAME, index);
-                    if (RelationType.isBidirectional(relationType))
-                    {
-                        AbstractMemberMetaData[] relMmds = mmd.getRelatedMemberMetaData(clr);
-                        rel.setProperty(Neo4jStoreManager.RELATIONSHIP_FIELD_NAME_NONOWNER, relMmds[0].getName());
-                    }
-                    index++;
-                }
-            }
+            // Store the position of each element in a property on its Relationship
+            updateRelationshipsForMultivaluedMember(node, mmd, relationType, clr, relNodes,
+                Neo4jStoreManager.RELATIONSHIP_INDEX_NAME, getPositions(relNodes.size()));
         }
         else if (mmd.hasMap())
         {
@@ -601,58 +599,17 @@ public class StoreFieldManager extends AbstractStoreFieldManager
                     return;
                 }
 
-                if (insert)
+                // Relationship owner-value (with key as property in some cases)
+                if (mmd.getKeyMetaData() != null && mmd.getKeyMetaData().getMappedBy() != null)
                 {
-                    // Insert of the map, so create Relationship owner-value (with key as property in some cases)
-                    Iterator relKeyIter = relKeyValues.iterator();
-                    for (Node newNode : relNodes)
-                    {
-                        Relationship rel = node.createRelationshipTo(newNode, DNRelationshipType.MULTI_VALUED);
-                        rel.setProperty(Neo4jStoreManager.RELATIONSHIP_FIELD_NAME, mmd.getName());
-                        if (mmd.getKeyMetaData() != null && mmd.getKeyMetaData().getMappedBy() != null)
-                        {
-                            // Do nothing, key stored in field in value
-                        }
-                        else
-                        {
-                            // Store key in property on Relationship
-                            Object relKeyVal = relKeyIter.next();
-                            rel.setProperty(Neo4jStoreManager.RELATIONSHIP_MAP_KEY_VALUE, relKeyVal);
-                        }
-                        if (RelationType.isBidirectional(relationType))
-                        {
-                            AbstractMemberMetaData[] relMmds = mmd.getRelatedMemberMetaData(clr);
-                            rel.setProperty(Neo4jStoreManager.RELATIONSHIP_FIELD_NAME_NONOWNER, relMmds[0].getName());
-                        }
-                    }
+                    // Key stored in field in value
+                    updateRelationshipsForMultivaluedMember(node, mmd, relationType, clr, relNodes, null, null);
                 }
                 else
                 {
-                    // Update of the map so remove existing Relationships and create new
-                    // TODO Handle better detecting which are still present and which new/updated
-                    deleteRelationshipsForMultivaluedMember(node, mmd);
-
-                    Iterator relKeyIter = relKeyValues.iterator();
-                    for (Node newNode : relNodes)
-                    {
-                        Relationship rel = node.createRelationshipTo(newNode, DNRelationshipType.MULTI_VALUED);
-                        rel.setProperty(Neo4jStoreManager.RELATIONSHIP_FIELD_NAME, mmd.getName());
-                        if (mmd.getKeyMetaData() != null && mmd.getKeyMetaData().getMappedBy() != null)
-                        {
-                            // Do nothing, key stored in field in value
-                        }
-                        else
-                        {
-                            // Store key in property on Relationship
-                            Object relKeyVal = relKeyIter.next();
-                            rel.setProperty(Neo4jStoreManager.RELATIONSHIP_MAP_KEY_VALUE, relKeyVal);
-                        }
-                        if (RelationType.isBidirectional(relationType))
-                        {
-                            AbstractMemberMetaData[] relMmds = mmd.getRelatedMemberMetaData(clr);
-                            rel.setProperty(Neo4jStoreManager.RELATIONSHIP_FIELD_NAME_NONOWNER, relMmds[0].getName());
-                        }
-                    }
+                    // Store key in property on Relationship
+                    updateRelationshipsForMultivaluedMember(node, mmd, relationType, clr, relNodes,
+                        Neo4jStoreManager.RELATIONSHIP_MAP_KEY_VALUE, relKeyValues);
                 }
             }
             else if (mmd.getMap().keyIsPersistent() && !mmd.getMap().valueIsPersistent())
@@ -695,58 +652,17 @@ public class StoreFieldManager extends AbstractStoreFieldManager
                     return;
                 }
 
-                if (insert)
+                // Relationship owner-key (with value as property in some cases)
+                if (mmd.getValueMetaData() != null && mmd.getValueMetaData().getMappedBy() != null)
                 {
-                    // Insert of the map, so create Relationship owner-key (with value as property in some cases)
-                    Iterator relValIter = relValValues.iterator();
-                    for (Node newNode : relNodes)
-                    {
-                        Relationship rel = node.createRelationshipTo(newNode, DNRelationshipType.MULTI_VALUED);
-                        rel.setProperty(Neo4jStoreManager.RELATIONSHIP_FIELD_NAME, mmd.getName());
-                        if (mmd.getValueMetaData() != null && mmd.getValueMetaData().getMappedBy() != null)
-                        {
-                            // Do nothing, value stored in field in key
-                        }
-                        else
-                        {
-                            // Store value in property on Relationship
-                            Object relValValue = relValIter.next();
-                            rel.setProperty(Neo4jStoreManager.RELATIONSHIP_MAP_VAL_VALUE, relValValue);
-                        }
-                        if (RelationType.isBidirectional(relationType))
-                        {
-                            AbstractMemberMetaData[] relMmds = mmd.getRelatedMemberMetaData(clr);
-                            rel.setProperty(Neo4jStoreManager.RELATIONSHIP_FIELD_NAME_NONOWNER, relMmds[0].getName());
-                        }
-                    }
+                    // Value stored in field in key
+                    updateRelationshipsForMultivaluedMember(node, mmd, relationType, clr, relNodes, null, null);
                 }
                 else
                 {
-                    // Update of the map so remove existing Relationships and create new
-                    // TODO Handle better detecting which are still present and which new/updated
-                    deleteRelationshipsForMultivaluedMember(node, mmd);
-
-                    Iterator relValIter = relValValues.iterator();
-                    for (Node newNode : relNodes)
-                    {
-                        Relationship rel = node.createRelationshipTo(newNode, DNRelationshipType.MULTI_VALUED);
-                        rel.setProperty(Neo4jStoreManager.RELATIONSHIP_FIELD_NAME, mmd.getName());
-                        if (mmd.getValueMetaData() != null && mmd.getValueMetaData().getMappedBy() != null)
-                        {
-                            // Do nothing, value stored in field in key
-                        }
-                        else
-                        {
-                            // Store value in property on Relationship
-                            Object relValValue = relValIter.next();
-                            rel.setProperty(Neo4jStoreManager.RELATIONSHIP_MAP_VAL_VALUE, relValValue);
-                        }
-                        if (RelationType.isBidirectional(relationType))
-                        {
-                            AbstractMemberMetaData[] relMmds = mmd.getRelatedMemberMetaData(clr);
-                            rel.setProperty(Neo4jStoreManager.RELATIONSHIP_FIELD_NAME_NONOWNER, relMmds[0].getName());
-                        }
-                    }
+                    // Store value in property on Relationship
+                    updateRelationshipsForMultivaluedMember(node, mmd, relationType, clr, relNodes,
+                        Neo4jStoreManager.RELATIONSHIP_MAP_VAL_VALUE, relValValues);
                 }
             }
             else
@@ -758,22 +674,132 @@ public class StoreFieldManager extends AbstractStoreFieldManager
     }
 
     /**
-     * Convenience method that finds all relationships from the provided owner node and deletes all that
-     * are for the specified field.
+     * Convenience method to make the Relationships from the owner node for the specified multi-valued member match
+     * the required target nodes. On insert a Relationship is created for each target. On update the existing
+     * Relationships are compared with the targets, so that a Relationship to a node that is still a target is kept
+     * (with its property updated only when changed, e.g a list element that moved position), Relationships to new
+     * targets are created, and those to nodes that are no longer targets are deleted.
      * @param ownerNode The owner Node
-     * @param mmd Metadata for the member that we are removing relationships for
+     * @param mmd Metadata for the member
+     * @param relationType Type of relation
+     * @param clr ClassLoader resolver
+     * @param relNodes The target nodes, in order (may contain duplicates)
+     * @param relPropName Name of the property to store on each Relationship (e.g position, map key), or null if none
+     * @param relPropValues Values of that property for the respective target nodes (when relPropName is set)
      */
-    private void deleteRelationshipsForMultivaluedMember(Node ownerNode, AbstractMemberMetaData mmd)
+    private void updateRelationshipsForMultivaluedMember(Node ownerNode, AbstractMemberMetaData mmd,
+            RelationType relationType, ClassLoaderResolver clr, List<Node> relNodes, String relPropName, List relPropValues)
     {
-        Iterable<Relationship> rels = ownerNode.getRelationships(DNRelationshipType.MULTI_VALUED);
-        Iterator<Relationship> relIter = rels.iterator();
-        while (relIter.hasNext())
+        // Find the existing Relationships for this member, keyed by the target node
+        Map<Node, List<Relationship>> existingRels = new HashMap<Node, List<Relationship>>();
+        if (!insert)
+        {
+            Iterator<Relationship> relIter = ownerNode.getRelationships(DNRelationshipType.MULTI_VALUED).iterator();
+            while (relIter.hasNext())
+            {
+                Relationship rel = relIter.next();
+                if (rel.getProperty(Neo4jStoreManager.RELATIONSHIP_FIELD_NAME).equals(mmd.getName()))
+                {
+                    Node relNode = rel.getOtherNode(ownerNode);
+                    List<Relationship> relsForNode = existingRels.get(relNode);
+                    if (relsForNode == null)
+                    {
+                        relsForNode = new ArrayList<Relationship>(1);
+                        existingRels.put(relNode, relsForNode);
+                    }
+                    relsForNode.add(rel);
+                }
+            }
+        }
+
+        String nonOwnerMemberName = null;
+        if (RelationType.isBidirectional(relationType))
         {
-            Relationship rel = relIter.next();
-            if (rel.getProperty(Neo4jStoreManager.RELATIONSHIP_FIELD_NAME).equals(mmd.getName()))
+            AbstractMemberMetaData[] relMmds = mmd.getRelatedMemberMetaData(clr);
+            nonOwnerMemberName = relMmds[0].getName();
+        }
+
+        int numCreated = 0;
+        int numUpdated = 0;
+        Iterator relPropValIter = (relPropName != null ? relPropValues.iterator() : null);
+        for (Node relNode : relNodes)
+        {
+            Object relPropValue = (relPropValIter != null ? relPropValIter.next() : null);
+
+            Relationship rel = takeExistingRelationship(existingRels.get(relNode), relPropName, relPropValue);
+            if (rel == null)
+            {
+                rel = ownerNode.createRelationshipTo(relNode, DNRelationshipType.MULTI_VALUED);
+                rel.setProperty(Neo4jStoreManager.RELATIONSHIP_FIELD_NAME, mmd.getName());
+                if (relPropName != null)
+                {
+                    rel.setProperty(relPropName, relPropValue);
+                }
+                if (nonOwnerMemberName != null)
+                {
+                    rel.setProperty(Neo4jStoreManager.RELATIONSHIP_FIELD_NAME_NONOWNER, nonOwnerMemberName);
+                }
+                numCreated++;
+            }
+            else if (relPropName != null && !relPropValue.equals(rel.getProperty(relPropName, null)))
+            {
+                rel.setProperty(relPropName, relPropValue);
+                numUpdated++;
+            }
+        }
+
+        // Remove Relationships to nodes that are no longer targets
+        int numDeleted = 0;
+        for (List<Relationship> relsForNode : existingRels.values())
+        {
+            for (Relationship rel : relsForNode)
             {
                 rel.delete();
+                numDeleted++;
+            }
+        }
+
+        if (!insert && NucleusLogger.DATASTORE_NATIVE.isDebugEnabled())
+        {
+            NucleusLogger.DATASTORE_NATIVE.debug("Updated relationships of " + ownerNode + " for " + mmd.getFullFieldName() +
+                " : created=" + numCreated + " updated=" + numUpdated + " deleted=" + numDeleted);
+        }
+    }
+
+    /**
+     * Convenience method to take an existing Relationship to a target node for reuse, preferring one that already
+     * has the required property value (so a list with duplicate elements needn't be renumbered).
+     * @param relsForNode The existing (unused) Relationships to the target node (or null)
+     * @param relPropName Name of the property stored on the Relationship, or null if none
+     * @param relPropValue The required value of that property
+     * @return The Relationship (removed from relsForNode), or null if there is none
+     */
+    private static Relationship takeExistingRelationship(List<Relationship> relsForNode, String relPropName, Object relPropValue)
+    {
+        if (relsForNode == null || relsForNode.isEmpty())
+        {
+            return null;
+        }
+        if (relPropName != null)
+        {
+            for (int i=0;i<relsForNode.size();i++)
+            {
+                if (relPropValue.equals(relsForNode.get(i).getProperty(relPropName, null)))
+                {
+                    return relsForNode.remove(i);
+                }
             }
         }
+        return relsForNode.remove(relsForNode.size()-1);
+    }
+
+    private static List<Integer> getPositions(int size)
+    {
+        List<Integer> positions = new ArrayList<Integer>(size);
+        for (int i=0;i<size;i++)
+        {
+            positions.add(i);
+        }
+        return positions;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,165 @@
+/**********************************************************************
+Copyright (c) 2013 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.neo4j.management;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies. Latencies are recorded in nanoseconds into power-of-2 microsecond buckets,
+ * where bucket <i>i</i> holds latencies below 2^i microseconds (and the last bucket holds everything longer),
+ * so recording is a few atomic increments and percentiles are accurate to within a factor of 2.
+ */
+public class LatencyHistogram
+{
+    /** Number of buckets, the last covering latencies of 2^30 microseconds (around 18 minutes) and above. */
+    public static final int NUM_BUCKETS = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Method to record a latency.
+     * @param nanos The latency (ns)
+     */
+    public void record(long nanos)
+    {
+        if (nanos < 0)
+        {
+            nanos = 0;
+        }
+        long micros = nanos / 1000;
+        int bucket = (micros == 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket < NUM_BUCKETS ? bucket : NUM_BUCKETS - 1);
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos))
+        {
+            max = maxNanos.get();
+        }
+    }
+
+    /**
+     * Accessor for the number of latencies recorded.
+     * @return The count
+     */
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    /**
+     * Accessor for the total of all latencies recorded.
+     * @return The total (ns)
+     */
+    public long getTotalNanos()
+    {
+        return totalNanos.get();
+    }
+
+    /**
+     * Accessor for the mean latency.
+     * @return The mean (microsecs), or 0 if nothing recorded
+     */
+    public long getMeanMicros()
+    {
+        long num = count.get();
+        return (num > 0 ? totalNanos.get() / num / 1000 : 0);
+    }
+
+    /**
+     * Accessor for the maximum latency.
+     * @return The max (microsecs)
+     */
+    public long getMaxMicros()
+    {
+        return maxNanos.get() / 1000;
+    }
+
+    /**
+     * Accessor for the (upper bound of the bucket holding the) specified percentile of the latencies.
+     * @param percentile The percentile (0-100)
+     * @return The latency (microsecs), or 0 if nothing recorded
+     */
+    public long getPercentileMicros(double percentile)
+    {
+        long[] counts = getBucketCounts();
+        long total = 0;
+        for (int i=0;i<counts.length;i++)
+        {
+            total += counts[i];
+        }
+        if (total == 0)
+        {
+            return 0;
+        }
+
+        long threshold = (long)Math.ceil(total * percentile / 100.0);
+        long cumulative = 0;
+        for (int i=0;i<counts.length;i++)
+        {
+            cumulative += counts[i];
+            if (cumulative >= threshold)
+            {
+                return Math.min(1L << i, getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+
+    /**
+     * Accessor for a snapshot of the bucket counts, where bucket <i>i</i> is the number of latencies below 2^i microsecs
+     * (and not in a lower bucket).
+     * @return The counts
+     */
+    public long[] getBucketCounts()
+    {
+        long[] counts = new long[NUM_BUCKETS];
+        for (int i=0;i<NUM_BUCKETS;i++)
+        {
+            counts[i] = buckets.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * Method to clear all recorded latencies.
+     */
+    public void reset()
+    {
+        for (int i=0;i<NUM_BUCKETS;i++)
+        {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+
+    public String toString()
+    {
+        return "count=" + getCount() + " mean=" + getMeanMicros() + "us p99=" + getPercentileMicros(99) + "us max=" + getMaxMicros() + "us";
+    }
+}
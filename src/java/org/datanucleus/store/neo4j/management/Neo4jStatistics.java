@@ -0,0 +1,446 @@
+/**********************************************************************
+Copyright (c) 2013 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.neo4j.management;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import org.datanucleus.store.neo4j.CypherEngineRegistry;
+import org.datanucleus.util.NucleusLogger;
+
+/**
+ * Statistics for a Neo4j StoreManager, covering its managed connections, Neo4j transactions, property writes on
+ * update, Cypher execution and the latency of each operation per persistable class, together with the statistics
+ * that the Neo4j kernel publishes via JMX (caches, memory mapping, primitive counts etc) for the embedded database(s)
+ * used. Registered as an MBean when JMX is enabled ("datanucleus.jmxType").
+ * Counters are atomic so this can be updated from any thread without locking.
+ */
+public class Neo4jStatistics implements Neo4jStatisticsMBean
+{
+    /** Operations of the persistence handler whose latencies are recorded per class. */
+    public static enum Operation
+    {
+        INSERT,
+        UPDATE,
+        DELETE,
+        FETCH,
+        LOCATE
+    }
+
+    /** Query for the Kernel MBean of each Neo4j database in this JVM. */
+    private static final String NEO4J_KERNEL_BEANS = "org.neo4j:name=Kernel,*";
+
+    /** Items of each row of the class latencies. */
+    private static final String[] CLASS_LATENCY_ITEMS = {"className", "operation", "count", "meanMicros", "maxMicros",
+        "percentile99Micros", "totalMicros"};
+
+    private static final CompositeType CLASS_LATENCY_TYPE;
+
+    private static final TabularType CLASS_LATENCIES_TYPE;
+
+    static
+    {
+        try
+        {
+            CLASS_LATENCY_TYPE = new CompositeType("ClassOperationLatency", "Latencies of an operation on objects of a class",
+                CLASS_LATENCY_ITEMS, CLASS_LATENCY_ITEMS,
+                new OpenType[] {SimpleType.STRING, SimpleType.STRING, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG,
+                    SimpleType.LONG, SimpleType.LONG});
+            CLASS_LATENCIES_TYPE = new TabularType("ClassOperationLatencies", "Latencies of each operation on objects of each class",
+                CLASS_LATENCY_TYPE, new String[] {"className", "operation"});
+        }
+        catch (OpenDataException ode)
+        {
+            throw new ExceptionInInitializerError(ode);
+        }
+    }
+
+    private final CypherEngineRegistry cypherEngines;
+
+    /** Canonical paths of the embedded databases whose kernel statistics are included. */
+    private final Set<String> storeDirectories = new CopyOnWriteArraySet<String>();
+
+    private final AtomicInteger openConnections = new AtomicInteger();
+
+    private final AtomicLong connectionsOpened = new AtomicLong();
+
+    private final AtomicLong txStarted = new AtomicLong();
+
+    private final AtomicLong txCommitted = new AtomicLong();
+
+    private final AtomicLong txRolledBack = new AtomicLong();
+
+    private final LatencyHistogram txTimes = new LatencyHistogram();
+
+    /** Latency histograms of each persistable class, indexed by Operation ordinal. */
+    private final ConcurrentMap<String, LatencyHistogram[]> classLatencies = new ConcurrentHashMap<String, LatencyHistogram[]>();
+
+    private final AtomicLong propertyWritesApplied = new AtomicLong();
+
+    private final AtomicLong propertyWritesSuppressed = new AtomicLong();
+
+    public Neo4jStatistics(CypherEngineRegistry cypherEngines)
+    {
+        this.cypherEngines = cypherEngines;
+    }
+
+    /**
+     * Method to include the kernel statistics of an embedded database.
+     * @param storeDir Directory of the store
+     */
+    public void addStoreDirectory(String storeDir)
+    {
+        storeDirectories.add(getCanonicalPath(storeDir));
+    }
+
+    public void connectionOpened()
+    {
+        openConnections.incrementAndGet();
+        connectionsOpened.incrementAndGet();
+    }
+
+    public void connectionClosed()
+    {
+        openConnections.decrementAndGet();
+    }
+
+    public void transactionStarted()
+    {
+        txStarted.incrementAndGet();
+    }
+
+    /**
+     * Method to record the end of a Neo4j transaction.
+     * @param committed Whether it committed (otherwise rolled back)
+     * @param nanos Time from start to end (ns)
+     */
+    public void transactionEnded(boolean committed, long nanos)
+    {
+        if (committed)
+        {
+            txCommitted.incrementAndGet();
+        }
+        else
+        {
+            txRolledBack.incrementAndGet();
+        }
+        txTimes.record(nanos);
+    }
+
+    /**
+     * Method to record the property writes of an update of a Node/Relationship.
+     * @param applied Number of property writes applied
+     * @param suppressed Number of property writes omitted since they wouldn't change the property
+     */
+    public void propertyWritesFlushed(int applied, int suppressed)
+    {
+        propertyWritesApplied.addAndGet(applied);
+        propertyWritesSuppressed.addAndGet(suppressed);
+    }
+
+    /**
+     * Method to record the latency of an operation on an object.
+     * @param className Name of the class of the object
+     * @param operation The operation
+     * @param nanos The latency (ns)
+     */
+    public void recordOperation(String className, Operation operation, long nanos)
+    {
+        LatencyHistogram[] histograms = classLatencies.get(className);
+        if (histograms == null)
+        {
+            histograms = new LatencyHistogram[Operation.values().length];
+            for (int i=0;i<histograms.length;i++)
+            {
+                histograms[i] = new LatencyHistogram();
+            }
+            LatencyHistogram[] existing = classLatencies.putIfAbsent(className, histograms);
+            if (existing != null)
+            {
+                histograms = existing;
+            }
+        }
+        histograms[operation.ordinal()].record(nanos);
+    }
+
+    /**
+     * Accessor for the latencies of an operation on objects of a class.
+     * @param className Name of the class
+     * @param operation The operation
+     * @return The histogram (or null if no operation on objects of the class has been recorded)
+     */
+    public LatencyHistogram getLatencyHistogram(String className, Operation operation)
+    {
+        LatencyHistogram[] histograms = classLatencies.get(className);
+        return (histograms != null ? histograms[operation.ordinal()] : null);
+    }
+
+    public int getOpenConnections()
+    {
+        return openConnections.get();
+    }
+
+    public long getConnectionsOpened()
+    {
+        return connectionsOpened.get();
+    }
+
+    public long getTransactionsStarted()
+    {
+        return txStarted.get();
+    }
+
+    public long getTransactionsCommitted()
+    {
+        return txCommitted.get();
+    }
+
+    public long getTransactionsRolledBack()
+    {
+        return txRolledBack.get();
+    }
+
+    public long getTransactionMeanMicros()
+    {
+        return txTimes.getMeanMicros();
+    }
+
+    public long getTransactionMaxMicros()
+    {
+        return txTimes.getMaxMicros();
+    }
+
+    public long getTransaction99thPercentileMicros()
+    {
+        return txTimes.getPercentileMicros(99);
+    }
+
+    public long[] getTransactionLatencyHistogram()
+    {
+        return txTimes.getBucketCounts();
+    }
+
+    public long getPropertyWritesApplied()
+    {
+        return propertyWritesApplied.get();
+    }
+
+    public long getPropertyWritesSuppressed()
+    {
+        return propertyWritesSuppressed.get();
+    }
+
+    public TabularData getClassLatencies()
+    {
+        TabularData latencies = new TabularDataSupport(CLASS_LATENCIES_TYPE);
+        for (Map.Entry<String, LatencyHistogram[]> entry : new TreeMap<String, LatencyHistogram[]>(classLatencies).entrySet())
+        {
+            for (Operation operation : Operation.values())
+            {
+                LatencyHistogram histogram = entry.getValue()[operation.ordinal()];
+                if (histogram.getCount() > 0)
+                {
+                    try
+                    {
+                        latencies.put(new CompositeDataSupport(CLASS_LATENCY_TYPE, CLASS_LATENCY_ITEMS,
+                            new Object[] {entry.getKey(), operation.name(), histogram.getCount(), histogram.getMeanMicros(),
+                                histogram.getMaxMicros(), histogram.getPercentileMicros(99), histogram.getTotalNanos() / 1000}));
+                    }
+                    catch (OpenDataException ode)
+                    {
+                        NucleusLogger.GENERAL.debug("Unable to provide latencies of " + entry.getKey() + "." + operation, ode);
+                    }
+                }
+            }
+        }
+        return latencies;
+    }
+
+    public long getCypherExecutions()
+    {
+        return cypherEngines.getExecutionTimes().getCount();
+    }
+
+    public long getCypherMeanMicros()
+    {
+        return cypherEngines.getExecutionTimes().getMeanMicros();
+    }
+
+    public long getCypherMaxMicros()
+    {
+        return cypherEngines.getExecutionTimes().getMaxMicros();
+    }
+
+    public long getCypher99thPercentileMicros()
+    {
+        return cypherEngines.getExecutionTimes().getPercentileMicros(99);
+    }
+
+    public long[] getCypherLatencyHistogram()
+    {
+        return cypherEngines.getExecutionTimes().getBucketCounts();
+    }
+
+    /**
+     * Accessor for the numeric attributes of the MBeans that Neo4j registers for the embedded database(s) of this
+     * store, keyed by "{bean name}.{attribute}". Which beans are present depends on the Neo4j edition in use
+     * (e.g "Cache" and "Memory Mapping" are only registered by the advanced/enterprise editions).
+     * @return The kernel statistics
+     */
+    public Map<String, Number> getKernelStatistics()
+    {
+        Map<String, Number> stats = new TreeMap<String, Number>();
+        if (storeDirectories.isEmpty())
+        {
+            return stats;
+        }
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try
+        {
+            for (ObjectName kernelName : server.queryNames(new ObjectName(NEO4J_KERNEL_BEANS), null))
+            {
+                Object storeDir = server.getAttribute(kernelName, "StoreDirectory");
+                if (storeDir == null || !storeDirectories.contains(getCanonicalPath(storeDir.toString())))
+                {
+                    continue;
+                }
+
+                ObjectName instanceQuery = (ObjectName)server.getAttribute(kernelName, "MBeanQuery");
+                for (ObjectName beanName : server.queryNames(instanceQuery, null))
+                {
+                    addNumericAttributes(server, beanName, stats);
+                }
+            }
+        }
+        catch (JMException jme)
+        {
+            NucleusLogger.GENERAL.debug("Unable to read Neo4j kernel statistics", jme);
+        }
+        return stats;
+    }
+
+    private void addNumericAttributes(MBeanServer server, ObjectName beanName, Map<String, Number> stats)
+        throws JMException
+    {
+        String prefix = beanName.getKeyProperty("name") + ".";
+        for (MBeanAttributeInfo attrInfo : server.getMBeanInfo(beanName).getAttributes())
+        {
+            if (!attrInfo.isReadable())
+            {
+                continue;
+            }
+
+            Object value;
+            try
+            {
+                value = server.getAttribute(beanName, attrInfo.getName());
+            }
+            catch (Exception e)
+            {
+                // Some attributes are only available in some states, so ignore
+                continue;
+            }
+
+            if (value instanceof Number)
+            {
+                stats.put(prefix + attrInfo.getName(), (Number)value);
+            }
+            else if (value instanceof CompositeData)
+            {
+                addNumericItems(prefix + attrInfo.getName(), (CompositeData)value, stats);
+            }
+            else if (value instanceof CompositeData[])
+            {
+                CompositeData[] values = (CompositeData[])value;
+                for (int i=0;i<values.length;i++)
+                {
+                    addNumericItems(prefix + attrInfo.getName() + "[" + i + "]", values[i], stats);
+                }
+            }
+        }
+    }
+
+    private void addNumericItems(String prefix, CompositeData data, Map<String, Number> stats)
+    {
+        if (data == null)
+        {
+            return;
+        }
+        for (String key : data.getCompositeType().keySet())
+        {
+            Object value = data.get(key);
+            if (value instanceof Number)
+            {
+                stats.put(prefix + "." + key, (Number)value);
+            }
+        }
+    }
+
+    /**
+     * Method to clear the connection, transaction and Cypher statistics (open connections are still counted).
+     */
+    public void reset()
+    {
+        connectionsOpened.set(0);
+        txStarted.set(0);
+        txCommitted.set(0);
+        txRolledBack.set(0);
+        txTimes.reset();
+        classLatencies.clear();
+        propertyWritesApplied.set(0);
+        propertyWritesSuppressed.set(0);
+        cypherEngines.getExecutionTimes().reset();
+    }
+
+    private static String getCanonicalPath(String path)
+    {
+        File file = new File(path);
+        try
+        {
+            return file.getCanonicalPath();
+        }
+        catch (IOException ioe)
+        {
+            return file.getAbsolutePath();
+        }
+    }
+}
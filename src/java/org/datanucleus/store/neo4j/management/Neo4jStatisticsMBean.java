@@ -0,0 +1,73 @@
+/**********************************************************************
+Copyright (c) 2013 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.neo4j.management;
+
+import java.util.Map;
+
+import javax.management.openmbean.TabularData;
+
+/**
+ * MBean interface for the statistics of a Neo4j StoreManager.
+ * All latencies are in microseconds.
+ */
+public interface Neo4jStatisticsMBean
+{
+    int getOpenConnections();
+
+    long getConnectionsOpened();
+
+    long getTransactionsStarted();
+
+    long getTransactionsCommitted();
+
+    long getTransactionsRolledBack();
+
+    long getTransactionMeanMicros();
+
+    long getTransactionMaxMicros();
+
+    long getTransaction99thPercentileMicros();
+
+    long[] getTransactionLatencyHistogram();
+
+    long getPropertyWritesApplied();
+
+    long getPropertyWritesSuppressed();
+
+    /**
+     * Accessor for the latencies of each operation on objects of each class, with a row per class and operation
+     * (e.g "mydomain.Person", "UPDATE") giving the count, mean, max, 99th percentile and total latency (microsecs).
+     * An operation on a batch of objects is counted once for each class in the batch, with the latency of the batch.
+     * @return The latencies
+     */
+    TabularData getClassLatencies();
+
+    long getCypherExecutions();
+
+    long getCypherMeanMicros();
+
+    long getCypherMaxMicros();
+
+    long getCypher99thPercentileMicros();
+
+    long[] getCypherLatencyHistogram();
+
+    Map<String, Number> getKernelStatistics();
+
+    void reset();
+}
@@ -30,7 +30,6 @@ import org.datanucleus.query.evaluator.JavaQueryEvaluator;
 import org.datanucleus.store.StoreManager;
 import org.datanucleus.store.connection.ManagedConnection;
 import org.datanucleus.store.connection.ManagedConnectionResourceListener;
-import org.datanucleus.store.neo4j.Neo4jStoreManager;
 import org.datanucleus.store.neo4j.Neo4jUtils;
 import org.datanucleus.store.query.AbstractJDOQLQuery;
 import org.datanucleus.store.query.AbstractQueryResult;
@@ -223,7 +222,7 @@ public class JDOQLQuery extends AbstractJDOQLQuery
         ManagedConnection mconn = getStoreManager().getConnection(ec);
         try
         {
-            GraphDatabaseService db = (GraphDatabaseService)mconn.getConnection();
+            GraphDatabaseService db = Neo4jUtils.getGraphDatabase(mconn);
 
             long startTime = System.currentTimeMillis();
             if (NucleusLogger.QUERY.isDebugEnabled())
@@ -236,14 +235,15 @@ public class JDOQLQuery extends AbstractJDOQLQuery
             boolean resultInMemory = (result != null);
             boolean orderInMemory = (ordering != null);
             boolean rangeInMemory = (range != null);
+            boolean lock = Neo4jUtils.useWriteLockForQuery(this);
             if (candidateCollection != null)
             {
                 candidates = new ArrayList(candidateCollection);
             }
-            else if (evaluateInMemory())
+            else if (evaluateInMemory() || !datastoreCompilation.supportsParameterValues(parameters))
             {
                 // Retrieve the candidates using Cypher
-                if (!db.index().existsForNodes(Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX))
+                if (!Neo4jUtils.hasTypeInformation(getStoreManager(), db))
                 {
                     // The node index doesn't exist so obviously no data
                     candidates = new ArrayList();
@@ -254,7 +254,8 @@ public class JDOQLQuery extends AbstractJDOQLQuery
                         ec.getMetaDataManager().getMetaDataForClass(candidateClass, ec.getClassLoaderResolver());
                     String cypherText = Neo4jUtils.getCypherTextForQuery(ec, cmd, compilation.getCandidateAlias(), 
                         subclasses, null, null, null, null, null);
-                    candidates = Neo4jUtils.executeCypherQuery(this, db, cypherText, cmd);
+                    candidates = Neo4jUtils.executeCypherQuery(this, mconn, cypherText, null, cmd,
+                        lock && !filterInMemory && !orderInMemory && !rangeInMemory);
                 }
             }
             else
@@ -269,7 +270,7 @@ public class JDOQLQuery extends AbstractJDOQLQuery
                         rangeInMemory = !datastoreCompilation.isRangeComplete();
                     }
                 }
-                if (!db.index().existsForNodes(Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX))
+                if (!Neo4jUtils.hasTypeInformation(getStoreManager(), db))
                 {
                     // The node index doesn't exist so obviously no data
                     candidates = new ArrayList();
@@ -279,10 +280,26 @@ public class JDOQLQuery extends AbstractJDOQLQuery
                     AbstractClassMetaData cmd =
                         ec.getMetaDataManager().getMetaDataForClass(candidateClass, ec.getClassLoaderResolver());
                     String cypherText = datastoreCompilation.getCypherText();
-                    candidates = Neo4jUtils.executeCypherQuery(this, db, cypherText, cmd);
+                    Map<String, Object> cypherParams = datastoreCompilation.getCypherParameterValues(ec, parameters);
+                    candidates = Neo4jUtils.executeCypherQuery(this, mconn, cypherText, cypherParams, cmd,
+                        lock && !filterInMemory && !orderInMemory && !rangeInMemory);
                 }
             }
 
+            if (lock && (candidateCollection != null || filterInMemory || orderInMemory || rangeInMemory))
+            {
+                // Lock just the objects selected in-memory, re-read them under the locks, and then re-apply the query
+                if (candidates instanceof QueryResult)
+                {
+                    ((QueryResult)candidates).disconnect();
+                }
+                JavaQueryEvaluator selector = new JDOQLEvaluator(this, candidates, compilation,
+                    parameters, ec.getClassLoaderResolver());
+                candidates = new ArrayList(selector.execute(filterInMemory, orderInMemory, false, false, rangeInMemory));
+                Neo4jUtils.acquireWriteLocksForObjects(ec, mconn, candidates);
+                rangeInMemory = false;
+            }
+
             Collection results = candidates;
             if (filterInMemory || resultInMemory || rangeInMemory || resultClass != null || orderInMemory)
             {
@@ -379,7 +396,7 @@ public class JDOQLQuery extends AbstractJDOQLQuery
             }
         }
 
-        // Set any extensions (TODO Support locking if possible with Neo4j)
+        // Set any extensions (locking for serializeRead is applied on execution)
 
         if (NucleusLogger.QUERY.isDebugEnabled())
         {
@@ -30,7 +30,6 @@ import org.datanucleus.query.evaluator.JavaQueryEvaluator;
 import org.datanucleus.store.StoreManager;
 import org.datanucleus.store.connection.ManagedConnection;
 import org.datanucleus.store.connection.ManagedConnectionResourceListener;
-import org.datanucleus.store.neo4j.Neo4jStoreManager;
 import org.datanucleus.store.neo4j.Neo4jUtils;
 import org.datanucleus.store.query.AbstractJPQLQuery;
 import org.datanucleus.store.query.AbstractQueryResult;
@@ -224,7 +223,7 @@ public class JPQLQuery extends AbstractJPQLQuery
         ManagedConnection mconn = getStoreManager().getConnection(ec);
         try
         {
-            GraphDatabaseService db = (GraphDatabaseService)mconn.getConnection();
+            GraphDatabaseService db = Neo4jUtils.getGraphDatabase(mconn);
 
             long startTime = System.currentTimeMillis();
             if (NucleusLogger.QUERY.isDebugEnabled())
@@ -237,14 +236,15 @@ public class JPQLQuery extends AbstractJPQLQuery
             boolean resultInMemory = (result != null);
             boolean orderInMemory = (ordering != null);
             boolean rangeInMemory = (range != null);
+            boolean lock = Neo4jUtils.useWriteLockForQuery(this);
             if (candidateCollection != null)
             {
                 candidates = new ArrayList(candidateCollection);
             }
-            else if (evaluateInMemory())
+            else if (evaluateInMemory() || !datastoreCompilation.supportsParameterValues(parameters))
             {
                 // Retrieve the candidates using Cypher
-                if (!db.index().existsForNodes(Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX))
+                if (!Neo4jUtils.hasTypeInformation(getStoreManager(), db))
                 {
                     // The node index doesn't exist so obviously no data
                     candidates = new ArrayList();
@@ -255,7 +255,8 @@ public class JPQLQuery extends AbstractJPQLQuery
                         ec.getMetaDataManager().getMetaDataForClass(candidateClass, ec.getClassLoaderResolver());
                     String cypherText = Neo4jUtils.getCypherTextForQuery(ec, cmd, compilation.getCandidateAlias(), 
                         subclasses, null, null, null, null, null);
-                    candidates = Neo4jUtils.executeCypherQuery(this, db, cypherText, cmd);
+                    candidates = Neo4jUtils.executeCypherQuery(this, mconn, cypherText, null, cmd,
+                        lock && !filterInMemory && !orderInMemory && !rangeInMemory);
                 }
             }
             else
@@ -271,7 +272,7 @@ public class JPQLQuery extends AbstractJPQLQuery
                     }
                 }
 
-                if (!db.index().existsForNodes(Neo4jStoreManager.PROPCONTAINER_TYPE_INDEX))
+                if (!Neo4jUtils.hasTypeInformation(getStoreManager(), db))
                 {
                     // The node index doesn't exist so obviously no data and not needing a result clause
                     candidates = new ArrayList();
@@ -281,10 +282,26 @@ public class JPQLQuery extends AbstractJPQLQuery
                     AbstractClassMetaData cmd =
                         ec.getMetaDataManager().getMetaDataForClass(candidateClass, ec.getClassLoaderResolver());
                     String cypherText = datastoreCompilation.getCypherText();
-                    candidates = Neo4jUtils.executeCypherQuery(this, db, cypherText, cmd);
+                    Map<String, Object> cypherParams = datastoreCompilation.getCypherParameterValues(ec, parameters);
+                    candidates = Neo4jUtils.executeCypherQuery(this, mconn, cypherText, cypherParams, cmd,
+                        lock && !filterInMemory && !orderInMemory && !rangeInMemory);
                 }
             }
 
+            if (lock && (candidateCollection != null || filterInMemory || orderInMemory || rangeInMemory))
+            {
+                // Lock just the objects selected in-memory, re-read them under the locks, and then re-apply the query
+                if (candidates instanceof QueryResult)
+                {
+                    ((QueryResult)candidates).disconnect();
+                }
+                JavaQueryEvaluator selector = new JDOQLEvaluator(this, candidates, compilation,
+                    parameters, ec.getClassLoaderResolver());
+                candidates = new ArrayList(selector.execute(filterInMemory, orderInMemory, false, false, rangeInMemory));
+                Neo4jUtils.acquireWriteLocksForObjects(ec, mconn, candidates);
+                rangeInMemory = false;
+            }
+
             Collection results = candidates;
             if (filterInMemory || resultInMemory || resultClass != null || orderInMemory || rangeInMemory)
             {
@@ -389,7 +406,7 @@ public class JPQLQuery extends AbstractJPQLQuery
             // Restrict to the supplied candidate ids
         }
 
-        // Set any extensions (TODO Support locking if possible with Neo4j)
+        // Set any extensions (locking for serializeRead is applied on execution)
 
         if (NucleusLogger.QUERY.isDebugEnabled())
         {
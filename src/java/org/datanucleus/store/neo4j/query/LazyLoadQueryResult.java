@@ -38,11 +38,10 @@ import org.datanucleus.util.NucleusLogger;
 import org.datanucleus.util.SoftValueMap;
 import org.datanucleus.util.StringUtils;
 import org.datanucleus.util.WeakValueMap;
-import org.neo4j.cypher.javacompat.ExecutionResult;
 import org.neo4j.graphdb.PropertyContainer;
 
 /**
- * QueryResult for Neo4j queries that tries to lazy load results from the provided ExecutionResult
+ * QueryResult for Neo4j queries that tries to lazy load results from the provided Cypher result rows
  * so to avoid problems with memory. By default if the query is for instances of a candidate (i.e no result
  * clause) then the method used to calculate the size is by doing a Cypher "count" query, and if the query is
  * for a result clause then the method used to calculate the size is by loading all results; obviously the user
@@ -54,7 +53,7 @@ public class LazyLoadQueryResult extends AbstractQueryResult implements Serializ
 {
     protected ExecutionContext ec;
 
-    protected ExecutionResult result;
+    protected Iterable<Map<String, Object>> result;
 
     protected Iterator<Map<String, Object>> resultIterator;
 
@@ -67,7 +66,7 @@ public class LazyLoadQueryResult extends AbstractQueryResult implements Serializ
     /** Map of object, keyed by the index (0, 1, etc). */
     protected Map<Integer, Object> itemsByIndex = null;
 
-    public LazyLoadQueryResult(Query q, ExecutionResult result, String cypherResult)
+    public LazyLoadQueryResult(Query q, Iterable<Map<String, Object>> result, String cypherResult)
     {
         super(q);
         this.candidateAliasName = query.getCompilation().getCandidateAlias();
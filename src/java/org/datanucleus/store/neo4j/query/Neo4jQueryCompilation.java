@@ -17,6 +17,18 @@ Contributors:
 **********************************************************************/
 package org.datanucleus.store.neo4j.query;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.datanucleus.ExecutionContext;
+import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.metadata.FieldRole;
+import org.datanucleus.store.neo4j.Neo4jUtils;
+import org.datanucleus.store.neo4j.query.expression.Neo4jParameter;
+import org.datanucleus.store.types.SCO;
+
 /**
  * Datastore-specific (Neo4j Cypher) compilation information for a java query.
  */
@@ -34,6 +46,9 @@ public class Neo4jQueryCompilation
 
     boolean precompilable = true;
 
+    /** Parameters referenced (as placeholders) in the Cypher text. */
+    List<Neo4jParameter> parameters = null;
+
     public Neo4jQueryCompilation()
     {
     }
@@ -97,4 +112,88 @@ public class Neo4jQueryCompilation
     {
         this.rangeComplete = complete;
     }
+
+    public void addParameter(Neo4jParameter param)
+    {
+        if (parameters == null)
+        {
+            parameters = new ArrayList<Neo4jParameter>();
+        }
+        parameters.add(param);
+    }
+
+    public List<Neo4jParameter> getParameters()
+    {
+        return parameters;
+    }
+
+    /**
+     * Method to return the values to pass to Cypher for the parameter placeholders in the Cypher text, converted
+     * to the form in which they are stored in Neo4j.
+     * @param ec ExecutionContext
+     * @param paramValues Values of the query parameters, keyed by name (or position)
+     * @return The Cypher parameter values, keyed by Cypher parameter name (or null if no parameters)
+     * @throws NucleusUserException if a parameter referenced in the Cypher has no value
+     */
+    public Map<String, Object> getCypherParameterValues(ExecutionContext ec, Map paramValues)
+    {
+        if (parameters == null)
+        {
+            return null;
+        }
+
+        Map<String, Object> cypherParams = new HashMap<String, Object>();
+        for (Neo4jParameter param : parameters)
+        {
+            cypherParams.put(param.getCypherName(),
+                Neo4jUtils.getStoredValueForField(ec, param.getMemberMetaData(), getParameterValue(param, paramValues), FieldRole.ROLE_FIELD));
+        }
+        return cypherParams;
+    }
+
+    /**
+     * Accessor for whether the Cypher text can be executed with the specified parameter values. A null value can't
+     * be passed to a placeholder (since comparing with null never matches in Cypher), so a query with a null
+     * parameter value has to be evaluated in-memory.
+     * @param paramValues Values of the query parameters, keyed by name (or position)
+     * @return Whether the Cypher text can be used
+     * @throws NucleusUserException if a parameter referenced in the Cypher has no value
+     */
+    public boolean supportsParameterValues(Map paramValues)
+    {
+        if (parameters != null)
+        {
+            for (Neo4jParameter param : parameters)
+            {
+                if (getParameterValue(param, paramValues) == null)
+                {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private Object getParameterValue(Neo4jParameter param, Map paramValues)
+    {
+        Object value = null;
+        if (paramValues != null && paramValues.containsKey(param.getParameterId()))
+        {
+            value = paramValues.get(param.getParameterId());
+        }
+        else if (paramValues != null && paramValues.containsKey(Integer.valueOf(param.getPosition())))
+        {
+            value = paramValues.get(Integer.valueOf(param.getPosition()));
+        }
+        else
+        {
+            throw new NucleusUserException("Parameter " + param.getParameterId() + " has no value, so cannot execute the query");
+        }
+
+        if (value instanceof SCO)
+        {
+            value = ((SCO)value).getValue();
+        }
+        return value;
+    }
 }
\ No newline at end of file
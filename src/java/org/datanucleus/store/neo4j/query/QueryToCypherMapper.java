@@ -18,7 +18,9 @@ Contributors:
 package org.datanucleus.store.neo4j.query;
 
 import java.math.BigDecimal;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
@@ -45,10 +47,10 @@ import org.datanucleus.store.neo4j.query.expression.Neo4jBooleanExpression;
 import org.datanucleus.store.neo4j.query.expression.Neo4jExpression;
 import org.datanucleus.store.neo4j.query.expression.Neo4jFieldExpression;
 import org.datanucleus.store.neo4j.query.expression.Neo4jLiteral;
+import org.datanucleus.store.neo4j.query.expression.Neo4jParameter;
 import org.datanucleus.store.query.Query;
 import org.datanucleus.store.schema.naming.ColumnType;
 import org.datanucleus.store.types.SCO;
-import org.datanucleus.store.types.converters.TypeConverter;
 import org.datanucleus.util.NucleusLogger;
 import org.datanucleus.util.StringUtils;
 
@@ -68,8 +70,20 @@ public class QueryToCypherMapper extends AbstractExpressionEvaluator
     /** Input parameter values, keyed by the parameter name. Will be null if compiled pre-execution. */
     final Map parameters;
 
-    /** Positional parameter that we are up to (-1 implies not being used). */
-    int positionalParamNumber = -1;
+    /**
+     * Parameter placeholders in the Cypher, keyed by Cypher parameter name. Each use of a query parameter has its own
+     * placeholder, since each use may be compared with a member stored differently (so needing its own conversion).
+     */
+    Map<Object, Neo4jParameter> cypherParameters = new LinkedHashMap<Object, Neo4jParameter>();
+
+    /** Parameter placeholders in the filter being compiled, only added to cypherParameters if it compiles. */
+    Map<Object, Neo4jParameter> filterParameters = new LinkedHashMap<Object, Neo4jParameter>();
+
+    /** Position of each parameter encountered (in order of first use), keyed by the query parameter name. */
+    Map<Object, Integer> parameterPositions = new HashMap<Object, Integer>();
+
+    /** Metadata for the member resolved by the last call to getFieldNameForPrimary (if any). */
+    AbstractMemberMetaData primaryMmd = null;
 
     /** State variable for the component being compiled. */
     CompilationComponent compileComponent;
@@ -113,6 +127,10 @@ public class QueryToCypherMapper extends AbstractExpressionEvaluator
         compileOrder();
 
         neo4jCompilation.setPrecompilable(precompilable);
+        for (Neo4jParameter param : cypherParameters.values())
+        {
+            neo4jCompilation.addParameter(param);
+        }
 
         // Set which parts of the query were compilable for processing in the datastore
         neo4jCompilation.setFilterComplete(filterComplete);
@@ -160,6 +178,7 @@ public class QueryToCypherMapper extends AbstractExpressionEvaluator
                 else
                 {
                     filterText = ((Neo4jBooleanExpression) neoExpr).getCypherText();
+                    cypherParameters.putAll(filterParameters);
                 }
             }
             catch (Exception e)
@@ -362,17 +381,13 @@ public class QueryToCypherMapper extends AbstractExpressionEvaluator
         Object left = stack.pop();
         if (left instanceof Neo4jLiteral && right instanceof Neo4jFieldExpression)
         {
-            String field = ((Neo4jFieldExpression)right).getFieldName();
-            Object value = ((Neo4jLiteral)left).getValue();
-            Neo4jExpression neo4jExpr = new Neo4jBooleanExpression(field, value, Expression.OP_EQ);
+            Neo4jExpression neo4jExpr = newBooleanExpression((Neo4jFieldExpression)right, (Neo4jLiteral)left, Expression.OP_EQ);
             stack.push(neo4jExpr);
             return neo4jExpr;
         }
         else if (left instanceof Neo4jFieldExpression && right instanceof Neo4jLiteral)
         {
-            String field = ((Neo4jFieldExpression)left).getFieldName();
-            Object value = ((Neo4jLiteral)right).getValue();
-            Neo4jExpression neo4jExpr = new Neo4jBooleanExpression(field, value, Expression.OP_EQ);
+            Neo4jExpression neo4jExpr = newBooleanExpression((Neo4jFieldExpression)left, (Neo4jLiteral)right, Expression.OP_EQ);
             stack.push(neo4jExpr);
             return neo4jExpr;
         }
@@ -391,17 +406,13 @@ public class QueryToCypherMapper extends AbstractExpressionEvaluator
         Object left = stack.pop();
         if (left instanceof Neo4jLiteral && right instanceof Neo4jFieldExpression)
         {
-            String field = ((Neo4jFieldExpression)right).getFieldName();
-            Object value = ((Neo4jLiteral)left).getValue();
-            Neo4jExpression neo4jExpr = new Neo4jBooleanExpression(field, value, Expression.OP_NOTEQ);
+            Neo4jExpression neo4jExpr = newBooleanExpression((Neo4jFieldExpression)right, (Neo4jLiteral)left, Expression.OP_NOTEQ);
             stack.push(neo4jExpr);
             return neo4jExpr;
         }
         else if (left instanceof Neo4jFieldExpression && right instanceof Neo4jLiteral)
         {
-            String field = ((Neo4jFieldExpression)left).getFieldName();
-            Object value = ((Neo4jLiteral)right).getValue();
-            Neo4jExpression neo4jExpr = new Neo4jBooleanExpression(field, value, Expression.OP_NOTEQ);
+            Neo4jExpression neo4jExpr = newBooleanExpression((Neo4jFieldExpression)left, (Neo4jLiteral)right, Expression.OP_NOTEQ);
             stack.push(neo4jExpr);
             return neo4jExpr;
         }
@@ -420,17 +431,13 @@ public class QueryToCypherMapper extends AbstractExpressionEvaluator
         Object left = stack.pop();
         if (left instanceof Neo4jLiteral && right instanceof Neo4jFieldExpression)
         {
-            String field = ((Neo4jFieldExpression)right).getFieldName();
-            Object value = ((Neo4jLiteral)left).getValue();
-            Neo4jExpression neo4jExpr = new Neo4jBooleanExpression(field, value, Expression.OP_LTEQ);
+            Neo4jExpression neo4jExpr = newBooleanExpression((Neo4jFieldExpression)right, (Neo4jLiteral)left, Expression.OP_LTEQ);
             stack.push(neo4jExpr);
             return neo4jExpr;
         }
         else if (left instanceof Neo4jFieldExpression && right instanceof Neo4jLiteral)
         {
-            String field = ((Neo4jFieldExpression)left).getFieldName();
-            Object value = ((Neo4jLiteral)right).getValue();
-            Neo4jExpression neo4jExpr = new Neo4jBooleanExpression(field, value, Expression.OP_GT);
+            Neo4jExpression neo4jExpr = newBooleanExpression((Neo4jFieldExpression)left, (Neo4jLiteral)right, Expression.OP_GT);
             stack.push(neo4jExpr);
             return neo4jExpr;
         }
@@ -449,17 +456,13 @@ public class QueryToCypherMapper extends AbstractExpressionEvaluator
         Object left = stack.pop();
         if (left instanceof Neo4jLiteral && right instanceof Neo4jFieldExpression)
         {
-            String field = ((Neo4jFieldExpression)right).getFieldName();
-            Object value = ((Neo4jLiteral)left).getValue();
-            Neo4jExpression neo4jExpr = new Neo4jBooleanExpression(field, value, Expression.OP_GTEQ);
+            Neo4jExpression neo4jExpr = newBooleanExpression((Neo4jFieldExpression)right, (Neo4jLiteral)left, Expression.OP_GTEQ);
             stack.push(neo4jExpr);
             return neo4jExpr;
         }
         else if (left instanceof Neo4jFieldExpression && right instanceof Neo4jLiteral)
         {
-            String field = ((Neo4jFieldExpression)left).getFieldName();
-            Object value = ((Neo4jLiteral)right).getValue();
-            Neo4jExpression neo4jExpr = new Neo4jBooleanExpression(field, value, Expression.OP_LT);
+            Neo4jExpression neo4jExpr = newBooleanExpression((Neo4jFieldExpression)left, (Neo4jLiteral)right, Expression.OP_LT);
             stack.push(neo4jExpr);
             return neo4jExpr;
         }
@@ -478,17 +481,13 @@ public class QueryToCypherMapper extends AbstractExpressionEvaluator
         Object left = stack.pop();
         if (left instanceof Neo4jLiteral && right instanceof Neo4jFieldExpression)
         {
-            String field = ((Neo4jFieldExpression)right).getFieldName();
-            Object value = ((Neo4jLiteral)left).getValue();
-            Neo4jExpression neo4jExpr = new Neo4jBooleanExpression(field, value, Expression.OP_LT);
+            Neo4jExpression neo4jExpr = newBooleanExpression((Neo4jFieldExpression)right, (Neo4jLiteral)left, Expression.OP_LT);
             stack.push(neo4jExpr);
             return neo4jExpr;
         }
         else if (left instanceof Neo4jFieldExpression && right instanceof Neo4jLiteral)
         {
-            String field = ((Neo4jFieldExpression)left).getFieldName();
-            Object value = ((Neo4jLiteral)right).getValue();
-            Neo4jExpression neo4jExpr = new Neo4jBooleanExpression(field, value, Expression.OP_GTEQ);
+            Neo4jExpression neo4jExpr = newBooleanExpression((Neo4jFieldExpression)left, (Neo4jLiteral)right, Expression.OP_GTEQ);
             stack.push(neo4jExpr);
             return neo4jExpr;
         }
@@ -507,17 +506,13 @@ public class QueryToCypherMapper extends AbstractExpressionEvaluator
         Object left = stack.pop();
         if (left instanceof Neo4jLiteral && right instanceof Neo4jFieldExpression)
         {
-            String field = ((Neo4jFieldExpression)right).getFieldName();
-            Object value = ((Neo4jLiteral)left).getValue();
-            Neo4jExpression neo4jExpr = new Neo4jBooleanExpression(field, value, Expression.OP_GT);
+            Neo4jExpression neo4jExpr = newBooleanExpression((Neo4jFieldExpression)right, (Neo4jLiteral)left, Expression.OP_GT);
             stack.push(neo4jExpr);
             return neo4jExpr;
         }
         else if (left instanceof Neo4jFieldExpression && right instanceof Neo4jLiteral)
         {
-            String field = ((Neo4jFieldExpression)left).getFieldName();
-            Object value = ((Neo4jLiteral)right).getValue();
-            Neo4jExpression neo4jExpr = new Neo4jBooleanExpression(field, value, Expression.OP_LTEQ);
+            Neo4jExpression neo4jExpr = newBooleanExpression((Neo4jFieldExpression)left, (Neo4jLiteral)right, Expression.OP_LTEQ);
             stack.push(neo4jExpr);
             return neo4jExpr;
         }
@@ -543,124 +538,81 @@ public class QueryToCypherMapper extends AbstractExpressionEvaluator
         return super.processNotExpression(expr);
     }
 
+    /**
+     * Convenience method to create a boolean expression comparing a field with a literal/parameter.
+     * When the literal is a parameter, the field metadata is recorded against it for conversion of its value at execution.
+     * @param fieldExpr The field expression
+     * @param litExpr The literal (or parameter) expression
+     * @param op The operator
+     * @return The boolean expression
+     */
+    protected Neo4jBooleanExpression newBooleanExpression(Neo4jFieldExpression fieldExpr, Neo4jLiteral litExpr, Expression.Operator op)
+    {
+        if (litExpr instanceof Neo4jParameter)
+        {
+            AbstractMemberMetaData mmd = fieldExpr.getMemberMetaData();
+            if (mmd != null && mmd.getRelationType(ec.getClassLoaderResolver()) != RelationType.NONE)
+            {
+                throw new NucleusException("Comparison of relation field " + mmd.getFullFieldName() + " with a parameter is not supported in-datastore");
+            }
+            ((Neo4jParameter)litExpr).setMemberMetaData(mmd);
+        }
+        return new Neo4jBooleanExpression(fieldExpr.getFieldName(), litExpr.getValue(), op);
+    }
+
     /* (non-Javadoc)
      * @see org.datanucleus.query.evaluator.AbstractExpressionEvaluator#processParameterExpression(org.datanucleus.query.expression.ParameterExpression)
      */
     @Override
     protected Object processParameterExpression(ParameterExpression expr)
     {
-        // Extract the parameter value (if set)
-        Object paramValue = null;
-        boolean paramValueSet = false;
+        // Number each parameter on first use, whether or not it ends up in the Cypher
+        Integer position = parameterPositions.get(expr.getId());
+        if (position == null)
+        {
+            position = Integer.valueOf(parameterPositions.size());
+            parameterPositions.put(expr.getId(), position);
+        }
+
+        if (compileComponent != CompilationComponent.FILTER)
+        {
+            // Only the filter passes parameter values to Cypher, so evaluate this component in-memory
+            throw new NucleusException("Parameter " + expr.getId() + " is only supported in-datastore in the filter");
+        }
+
         if (parameters != null && !parameters.isEmpty())
         {
-            // Check if the parameter has a value
+            // Check the type of the parameter value (if set) is something we can pass to Cypher
+            Object paramValue = null;
             if (parameters.containsKey(expr.getId()))
             {
-                // Named parameter
                 paramValue = parameters.get(expr.getId());
-                paramValueSet = true;
-            }
-            else if (parameters.containsKey(expr.getId()))
-            {
-                // Positional parameter, but already encountered
-                paramValue = parameters.get(expr.getId());
-                paramValueSet = true;
             }
             else
             {
-                // Positional parameter, not yet encountered
-                int position = positionalParamNumber;
-                if (positionalParamNumber < 0)
-                {
-                    position = 0;
-                }
-                if (parameters.containsKey(Integer.valueOf(position)))
-                {
-                    paramValue = parameters.get(Integer.valueOf(position));
-                    paramValueSet = true;
-                    positionalParamNumber = position+1;
-                }
+                paramValue = parameters.get(position);
             }
-        }
-
-        // TODO Change this to use Neo4jUtils.getStoredValueForField
-        if (paramValueSet)
-        {
-            if (paramValue instanceof Number)
-            {
-                Neo4jLiteral lit = new Neo4jLiteral(paramValue);
-                stack.push(lit);
-                precompilable = false;
-                return lit;
-            }
-            else if (paramValue instanceof String)
+            if (paramValue instanceof SCO)
             {
-                Neo4jLiteral lit = new Neo4jLiteral(paramValue);
-                stack.push(lit);
-                precompilable = false;
-                return lit;
+                paramValue = ((SCO)paramValue).getValue();
             }
-            else if (paramValue instanceof Character)
-            {
-                Neo4jLiteral lit = new Neo4jLiteral("" + paramValue);
-                stack.push(lit);
-                precompilable = false;
-                return lit;
-            }
-            else if (paramValue instanceof Boolean)
-            {
-                Neo4jLiteral lit = new Neo4jLiteral(paramValue);
-                stack.push(lit);
-                precompilable = false;
-                return lit;
-            }
-            else if (paramValue instanceof java.util.Date)
-            {
-                // java.util.Date etc are stored via converter
-                Object storedVal = paramValue;
-                Class paramType = paramValue.getClass();
-                if (paramValue instanceof SCO)
-                {
-                    paramType = ((SCO)paramValue).getValue().getClass();
-                }
-                TypeConverter strConv = ec.getTypeManager().getTypeConverterForType(paramType, String.class);
-                TypeConverter longConv = ec.getTypeManager().getTypeConverterForType(paramType, Long.class);
-                if (strConv != null)
-                {
-                    // store as a String
-                    storedVal = strConv.toDatastoreType(paramValue);
-                }
-                else if (longConv != null)
-                {
-                    // store as a Long
-                    storedVal = longConv.toDatastoreType(paramValue);
-                }
-                Neo4jLiteral lit = new Neo4jLiteral(storedVal);
-                stack.push(lit);
-                precompilable = false;
-                return lit;
-            }
-            else if (paramValue == null)
-            {
-                Neo4jLiteral lit = new Neo4jLiteral(null);
-                stack.push(lit);
-                precompilable = false;
-                return lit;
-            }
-            else
+            if (paramValue != null && !(paramValue instanceof Number) && !(paramValue instanceof String) &&
+                !(paramValue instanceof Character) && !(paramValue instanceof Boolean) &&
+                !(paramValue instanceof java.util.Date) && !(paramValue instanceof Enum))
             {
                 NucleusLogger.QUERY.info("Dont currently support parameter values of type " + paramValue.getClass().getName());
                 // TODO Support other parameter value types
+                precompilable = false;
+                return super.processParameterExpression(expr);
             }
         }
-        else
-        {
-            precompilable = false;
-            throw new NucleusException("Parameter " + expr + " is not currently set, so cannot complete the compilation");
-        }
 
-        return super.processParameterExpression(expr);
+        // Refer to this use of the parameter by its own placeholder, and pass in the value at execution so the
+        // compilation is reusable
+        Neo4jParameter param = new Neo4jParameter("param" + filterParameters.size(), expr.getId(), position.intValue());
+        filterParameters.put(param.getCypherName(), param);
+        stack.push(param);
+        return param;
     }
 
     /* (non-Javadoc)
@@ -693,7 +645,7 @@ public class QueryToCypherMapper extends AbstractExpressionEvaluator
             else
             {
                 // Assume all fields are prefixed by the candidate alias!
-                Neo4jFieldExpression fieldExpr = new Neo4jFieldExpression(compilation.getCandidateAlias() + "." + fieldName);
+                Neo4jFieldExpression fieldExpr = new Neo4jFieldExpression(compilation.getCandidateAlias() + "." + fieldName, primaryMmd);
                 stack.push(fieldExpr);
                 return fieldExpr;
             }
@@ -777,6 +729,7 @@ public class QueryToCypherMapper extends AbstractExpressionEvaluator
      */
     protected String getFieldNameForPrimary(PrimaryExpression expr)
     {
+        primaryMmd = null;
         List<String> tuples = expr.getTuples();
         if (tuples == null || tuples.isEmpty())
         {
@@ -806,6 +759,7 @@ public class QueryToCypherMapper extends AbstractExpressionEvaluator
                         throw new NucleusUserException("Query has reference to " +
                             StringUtils.collectionToString(tuples) + " yet " + name + " is a non-relation field!");
                     }
+                    primaryMmd = mmd;
                     if (embMmd != null)
                     {
                         // Get property name for field of embedded object
@@ -870,6 +824,7 @@ public class QueryToCypherMapper extends AbstractExpressionEvaluator
                         {
                             if (!iter.hasNext())
                             {
+                                primaryMmd = mmd;
                                 return name;
                             }
                             else
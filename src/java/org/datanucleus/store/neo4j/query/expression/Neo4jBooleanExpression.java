@@ -27,12 +27,26 @@ public class Neo4jBooleanExpression extends Neo4jExpression
     public Neo4jBooleanExpression(String propName, Object value, Expression.Operator op)
     {
         String valueStr = "" + value;
-        if (value != null && value instanceof String)
+        if (value instanceof Neo4jParameter)
+        {
+            // Parameter placeholder, value provided at execution
+            valueStr = ((Neo4jParameter)value).getCypherText();
+        }
+        else if (value != null && value instanceof String)
         {
             // Quote any strings
             valueStr = "\"" + valueStr + "\"";
         }
-        if (op == Expression.OP_EQ)
+        if (value == null && op == Expression.OP_EQ)
+        {
+            // "= null" never matches in Cypher
+            cypherText = propName + " IS NULL";
+        }
+        else if (value == null && op == Expression.OP_NOTEQ)
+        {
+            cypherText = propName + " IS NOT NULL";
+        }
+        else if (op == Expression.OP_EQ)
         {
             cypherText = propName + " = " + valueStr;
         }
@@ -17,6 +17,8 @@ Contributors:
 **********************************************************************/
 package org.datanucleus.store.neo4j.query.expression;
 
+import org.datanucleus.metadata.AbstractMemberMetaData;
+
 /**
  * Expression for a field in a Neo4j query.
  */
@@ -24,9 +26,18 @@ public class Neo4jFieldExpression extends Neo4jExpression
 {
     String fieldName;
 
+    /** Metadata for the member that this field represents (if known). */
+    AbstractMemberMetaData mmd;
+
     public Neo4jFieldExpression(String fieldName)
+    {
+        this(fieldName, null);
+    }
+
+    public Neo4jFieldExpression(String fieldName, AbstractMemberMetaData mmd)
     {
         this.fieldName = fieldName;
+        this.mmd = mmd;
         this.cypherText = fieldName;
     }
 
@@ -34,4 +45,9 @@ public class Neo4jFieldExpression extends Neo4jExpression
     {
         return fieldName;
     }
+
+    public AbstractMemberMetaData getMemberMetaData()
+    {
+        return mmd;
+    }
 }
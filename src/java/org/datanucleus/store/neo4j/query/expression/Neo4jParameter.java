@@ -0,0 +1,87 @@
+/**********************************************************************
+Copyright (c) 2013 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.neo4j.query.expression;
+
+import org.datanucleus.metadata.AbstractMemberMetaData;
+
+/**
+ * Representation of a parameter in a Neo4j query, rendered as a Cypher "{name}" placeholder so that the
+ * same Cypher text (and plan) can be used for all parameter values. The value is supplied at execution.
+ */
+public class Neo4jParameter extends Neo4jLiteral
+{
+    /** Name of the parameter in the Cypher text. */
+    String cypherName;
+
+    /** Name of the parameter in the query (or its position when positional). */
+    Object paramId;
+
+    /** Position of this parameter when the query uses positional parameters. */
+    int position;
+
+    /** Metadata for the member that this parameter is compared against (if known), for conversion of the value. */
+    AbstractMemberMetaData mmd;
+
+    public Neo4jParameter(String cypherName, Object paramId, int position)
+    {
+        super(null);
+        this.cypherName = cypherName;
+        this.paramId = paramId;
+        this.position = position;
+        this.cypherText = toString();
+    }
+
+    /**
+     * Accessor for the value of this literal; the parameter itself since the value is not known until execution.
+     * @return This parameter
+     */
+    public Object getValue()
+    {
+        return this;
+    }
+
+    public String getCypherName()
+    {
+        return cypherName;
+    }
+
+    public Object getParameterId()
+    {
+        return paramId;
+    }
+
+    public int getPosition()
+    {
+        return position;
+    }
+
+    public AbstractMemberMetaData getMemberMetaData()
+    {
+        return mmd;
+    }
+
+    public void setMemberMetaData(AbstractMemberMetaData mmd)
+    {
+        this.mmd = mmd;
+    }
+
+    public String toString()
+    {
+        return "{" + cypherName + "}";
+    }
+}
@@ -25,11 +25,11 @@ import java.util.Properties;
 
 import org.datanucleus.exceptions.NucleusUserException;
 import org.datanucleus.store.connection.ManagedConnection;
+import org.datanucleus.store.neo4j.Neo4jStoreManager;
+import org.datanucleus.store.neo4j.Neo4jUtils;
 import org.datanucleus.store.valuegenerator.AbstractDatastoreGenerator;
 import org.datanucleus.store.valuegenerator.ValueGenerationBlock;
 import org.datanucleus.store.valuegenerator.ValueGenerator;
-import org.neo4j.cypher.javacompat.ExecutionEngine;
-import org.neo4j.cypher.javacompat.ExecutionResult;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 
@@ -76,15 +76,14 @@ public class IncrementGenerator extends AbstractDatastoreGenerator implements Va
         try
         {
             ManagedConnection mconn = connectionProvider.retrieveConnection();
-            GraphDatabaseService db = (GraphDatabaseService)mconn.getConnection();
+            GraphDatabaseService db = Neo4jUtils.getGraphDatabaseForWrite(mconn);
 
             // Find the generator Node (if present)
             Node generatorNode = null;
             if (db.index().existsForNodes(INCREMENT_INDEX))
             {
                 String cypherStr = "START n=node:" + INCREMENT_INDEX + "(" + INCREMENT_NAME + "=\"" + name + "\") RETURN n";
-                ExecutionEngine engine = new ExecutionEngine(db);
-                ExecutionResult queryResult = engine.execute(cypherStr);
+                Iterable<Map<String, Object>> queryResult = ((Neo4jStoreManager)storeMgr).getCypherEngineRegistry().execute(db, cypherStr);
                 Iterator<Map<String, Object>> iter = queryResult.iterator();
                 while (iter.hasNext())
                 {